@@ -3,6 +3,7 @@
  */
 package app_kvEcs;
 
+import app_kvServer.KVServer;
 import common.hashing.Hashing;
 import common.logger.Constants;
 import common.messages.AdminMessage;
@@ -176,16 +177,17 @@ public class CommandManager {
     /**
      * Prepares the servers data and sends the request over to the CommandManager
      * @param numberOfNodes the number of nodes to be created
-     * @param cacheSize the cash size of the nodes to be created
+     * @param cacheSize the cash size of the nodes to be created, a number of entries or a byte budget (e.g. 64MB)
      * @param displacementStrategy the displacement strategy of the nodes to be created
      * @return if the operation was successful
      */
     public boolean initService(String numberOfNodes, String cacheSize, String displacementStrategy) throws Exception {
         int nodes = Integer.parseInt(numberOfNodes);
-        int cache = Integer.parseInt(cacheSize);
+        String cache = cacheSize;
         String displacement = displacementStrategy;
         
         if(nodes > availableServers.size()) return false;
+        if(!KVServer.validCacheSize(cache) || !KVServer.validStrategy(displacement)) return false;
         
         ArrayList<Server> servers = createServerEntries(nodes, cache, displacement);   
         
@@ -256,12 +258,13 @@ public class CommandManager {
     /**
      * Adds a new server to the range of servers running by handing over the request
      * to the CommandManager. 
-     * @param cacheSize the cache size of the new server to create
+     * @param cacheSize the cache size of the new server to create, a number of entries or a byte budget (e.g. 64MB)
      * @param displacementStrategy the displacement strategy of the new server to create
      * @return successful?
      */
     public boolean addNode(String cacheSize, String displacementStrategy) {
-        int cache = Integer.parseInt(cacheSize);
+        String cache = cacheSize;
+        if(!KVServer.validCacheSize(cache) || !KVServer.validStrategy(displacementStrategy)) return false;
                 
         // what, if all servers are running?
         
@@ -382,7 +385,7 @@ public class CommandManager {
         sendMetaData();
         
         // add a new node
-        this.addNode(Integer.toString(server.getCacheSize()), server.getDisplacementStrategy());
+        this.addNode(server.getCacheSize(), server.getDisplacementStrategy());
         
         LOGGER.info("ECS: added new node");
     }
@@ -843,7 +846,7 @@ public class CommandManager {
      * @param cacheSize the case size of the nodes to create
      * @param displacement the displacement strategy of the nodes to create
      */
-    private ArrayList<Server> createServerEntries(int numberOfNodes, int cacheSize, String displacement){
+    private ArrayList<Server> createServerEntries(int numberOfNodes, String cacheSize, String displacement){
         ArrayList<Server> servers = new ArrayList<>();
         
         // availableServers already initiated
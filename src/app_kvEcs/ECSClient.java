@@ -255,6 +255,10 @@ public class ECSClient {
         sb.append("\t\t\t\t shuts down all the initialized servers \n");
         sb.append(PROMPT).append("addNode <cacheSize> <displacementStrategy>");
         sb.append("\t\t stops the initialized servers \n");
+        sb.append(PROMPT).append("\t\t\t\t ");
+        sb.append("displacementStrategy: FIFO | LRU | LFU | TLFU | ADAPTIVE \n");
+        sb.append(PROMPT).append("\t\t\t\t ");
+        sb.append("cacheSize: number of entries or byte budget (e.g. 64MB) \n");
         sb.append(PROMPT).append("removeNode");
         sb.append("\t\t removes a server at an arbitraty position \n");
 
@@ -12,7 +12,7 @@ public class Server {
    
     private final String ip;
     private final int port; // TWO PORT PROBLEM - SOLVE WITH OFFSET?
-    private final int cacheSize;
+    private final String cacheSize; // a number of entries or a byte budget (e.g. 64MB)
     private final String displacementStrategy;
     private final byte[] hashPosition;   // This is the hash position of the server in the circle
     
@@ -27,7 +27,7 @@ public class Server {
      * @param displacement
      * @param hashPosition
      */
-    public Server(String ip, int port, int cacheSize, String displacement, byte[] hashPosition) {
+    public Server(String ip, int port, String cacheSize, String displacement, byte[] hashPosition) {
         this.ip = ip;
         this.port = port;
         this.cacheSize = cacheSize;
@@ -43,7 +43,7 @@ public class Server {
         return this.port;
     }
     
-    public int getCacheSize(){
+    public String getCacheSize(){
         return this.cacheSize;
     }
     
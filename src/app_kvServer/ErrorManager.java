@@ -10,8 +10,6 @@ import common.logger.Constants;
 import common.messages.AdminMessage;
 import common.messages.KVAdminMessage;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
 import java.nio.ByteBuffer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -39,12 +37,10 @@ public class ErrorManager {
         AdminMessage errorMessage  = new AdminMessage(KVAdminMessage.AdminType.SERVER_DOWN, payload); 
         
         // establish connection to the ecs and send message
-        Socket socket = null;
-        OutputStream out = null;
+        ResponseWriter out = null;
         
         try{
-            socket = new Socket(EcsErrorAddress.IP, EcsErrorAddress.PORT);
-            out = socket.getOutputStream();        
+            out = ResponseWriter.connect(EcsErrorAddress.IP, EcsErrorAddress.PORT);
             sendBytes(errorMessage.getByteMessage(), out);
         }
         catch(IOException ioe){
@@ -54,7 +50,6 @@ public class ErrorManager {
         
         try{
             out.close();
-            socket.close();
         }
         catch(IOException ioe){
             LOGGER.error("Unable to close output stream or socket");
@@ -72,15 +67,12 @@ public class ErrorManager {
     }
     
     /**
-     * Sends a byte array to the given OutputStream. 
+     * Sends a byte array to the given writer. 
      * 
      * @param byteMessage the bytes of the message to send
-     * @throws IOException in case unable to write to output stream
+     * @throws IOException in case unable to write to the connection
      */
-    private void sendBytes(byte[] byteMessage, OutputStream out) throws IOException{
-        for(byte b : byteMessage) {
-                out.write(b);
-        }        
-        out.flush();
+    private void sendBytes(byte[] byteMessage, ResponseWriter out) throws IOException{
+        out.send(byteMessage, false);
     } 
 }
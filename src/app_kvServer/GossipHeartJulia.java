@@ -10,12 +10,12 @@ import common.messages.AdminMessage;
 import common.messages.KVAdminMessage;
 import common.messages.KVMessage;
 import common.messages.Message;
+import common.messages.MessageView;
 import common.messages.StatusValidation;
-import common.reader.UniversalReader;
+import common.reader.FrameDecoder;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import manager.CacheManager;
 import manager.SubscriptionManager;
 import org.apache.logging.log4j.LogManager;
@@ -29,24 +29,27 @@ import org.apache.logging.log4j.Logger;
  * received it. In case of a request to move data or subs we delegate the 
  * request to either the cache manager or the subscription manager of the 
  * current server. 
+ * The messages are decoded by the SelectorFrontEnd of the PingListener. 
  */
-public class GossipHeartJulia implements Runnable {
+public class GossipHeartJulia implements RequestHandler {
     private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
 
-    private final Socket socket;
+    private final ResponseWriter out;
     private final CacheManager manager;
     private final SubscriptionManager subManager;
     private String serverName;
     private int port;
+    private final MessageView request = new MessageView(); // reused for every replication message
     
     /**
      * CONSTRUCTOR
-     * @param socket the socket where the connection from another server comes from
+     * @param out the writer of the connection from another server
      * @param manager the cache manager of the current server
      * @param subManager the subscription manager of the current server
      */
-    public GossipHeartJulia(Socket socket, CacheManager manager, SubscriptionManager subManager) {
-        this.socket = socket;
+    public GossipHeartJulia(ResponseWriter out, CacheManager manager, SubscriptionManager subManager) {
+        Socket socket = out.getChannel().socket();
+        this.out = out;
         this.manager = manager;
         this.subManager = subManager;
         this.serverName = socket.getInetAddress().getHostAddress();
@@ -54,122 +57,106 @@ public class GossipHeartJulia implements Runnable {
     }
     
     /**
-     * Sends the given array of bytes to the given output stream. 
+     * Sends the given array of bytes to the given writer. 
      * @param byteMessage the byte message to send
-     * @param out the output stream to write to
+     * @param out the writer of the connection
      * @throws IOException in case the writing process throws an error
      */
-    private void sendBytes(byte[] byteMessage, OutputStream out) throws IOException {
-        for(byte b : byteMessage) {
-            out.write(b);
-        }        
-        out.flush();
+    private void sendBytes(byte[] byteMessage, ResponseWriter out) throws IOException {
+        out.send(byteMessage, false);
     }
     
     /**
-     * Sends the given array of bytes to the given output stream. 
+     * Sends the given array of bytes to the given writer. 
      * Attaches a carriage return in the end. 
      * @param byteMessage the byte message to send
-     * @param out the output stream to write to
+     * @param out the writer of the connection
      * @throws IOException in case the writing process throws an error
      */
-    private void sendBytesR(byte[] byteMessage, OutputStream out) throws IOException {
-        for(byte b : byteMessage) {
-            out.write(b);
-        }  
-        out.write((byte) 13);
-        out.flush();
+    private void sendBytesR(byte[] byteMessage, ResponseWriter out) throws IOException {
+        out.send(byteMessage, true);
     }
     
     /**
-     * Gets called automatically because this class is a Runnable. 
+     * Sends the confirmation that the connection was established. 
+     * @throws IOException if the confirmation could not be sent
+     */
+    @Override
+    public void open() throws IOException {
+        sendBytesR((new Message(KVMessage.StatusType.PUT, serverName.getBytes(), Integer.toString(port).getBytes())).getByteMessage(), out);
+    }
+
+    /**
+     * Gets called by a worker of the PingListener for every received message. 
      * 
-     * Manages the established connection to another server. Sends replies to
-     * incoming connections. 
+     * Sends replies to the other server. 
      * Delegates "move data" and "move subscriptions" operations to the 
      * responsible managers of the current server. 
+     * @param frame the received message
+     * @return false, if the other server disconnected
      */
     @Override
-    public void run() {
-        OutputStream out = null; 
-        InputStream in = null;
-        UniversalReader ur = new UniversalReader();
-
-        try {
-            in = socket.getInputStream();
-            out = socket.getOutputStream();
-        } catch(IOException io) {
-            LOGGER.error("could not open streams.");
-        }
-        
+    public boolean handle(ByteBuffer frame) {
         try {
-            sendBytesR((new Message(KVMessage.StatusType.PUT, serverName.getBytes(), Integer.toString(port).getBytes())).getByteMessage(), out);
-        } catch (IOException ex) {
-            LOGGER.error("could not send connection confirmation.");
-        }
-
-        while(true){     
-            try {
-                // checks, whether it received a replication message, a subscription message, or a ping
-                // whatever we receive here, it always comes from a server and never from a client because of port separation
-                byte[] raw = ur.readMessage(in);
+            // checks, whether it received a replication message, a subscription message, or a ping
+            // whatever we receive here, it always comes from a server and never from a client because of port separation
+            if(StatusValidation.validKVStatus(frame.get(frame.position()))) { // if replication message
+                MessageView message = request.wrap(frame);
+                boolean replied = false;
 
-                if(StatusValidation.validKVStatus(raw[0])) { // if replication message
-                    Message message = new Message(raw);
-                    Message reply = null;
+                if(message.getValid() && ( message.getStatus().equals(KVMessage.StatusType.PUT) || message.getStatus().equals(KVMessage.StatusType.DELETE ))) {
+                    // handling put, delete, update, or sub
+                    KVMessage.StatusType feedback;
+                    if(message.getStatus().equals(KVMessage.StatusType.PUT))
+                        feedback = manager.put(message.getKey(), message.getValue());
+                    else
+                        feedback = manager.put(message.getKey(), "null");
+                        
+                    if(feedback.equals(KVMessage.StatusType.PUT_SUCCESS) || 
+                       feedback.equals(KVMessage.StatusType.PUT_ERROR) ||
+                       feedback.equals(KVMessage.StatusType.PUT_UPDATE)) {
+                        // handling a put or update, the reply echoes the received key and value
+                        out.send(feedback, message.getKeySlice(), message.getValueSlice());
+                        replied = true;
 
-                    if(message.getValid() && ( message.getStatus().equals(KVMessage.StatusType.PUT) || message.getStatus().equals(KVMessage.StatusType.DELETE ))) {
-                        // handling put, delete, update, or sub
-                        KVMessage.StatusType feedback;
-                        if(message.getStatus().equals(KVMessage.StatusType.PUT))
-                            feedback = manager.put(message.getKey(), message.getValue());
-                        else
-                            feedback = manager.put(message.getKey(), "null");
-                            
-                        if(feedback.equals(KVMessage.StatusType.PUT_SUCCESS) || 
-                           feedback.equals(KVMessage.StatusType.PUT_ERROR) ||
-                           feedback.equals(KVMessage.StatusType.PUT_UPDATE)) {
-                            // handling a put or update
-                            reply = new Message(feedback, message.getKeyAsBytes(), message.getValueAsBytes());
-
-                        } else if(feedback.equals(KVMessage.StatusType.DELETE_SUCCESS) ||
-                                  feedback.equals(KVMessage.StatusType.DELETE_ERROR)) {
-                            // handling a delete
-                            reply = new Message(feedback, message.getKeyAsBytes());
-                        }
-                    } else if(message.getValid() && message.getStatus().equals(KVMessage.StatusType.SUB)) {
-                        // handling a subscription
-			subManager.addSubscription(message.getKey(), message.getValue()); 
-			reply = new Message(KVMessage.StatusType.SUB_SUCCESS);				
+                    } else if(feedback.equals(KVMessage.StatusType.DELETE_SUCCESS) ||
+                              feedback.equals(KVMessage.StatusType.DELETE_ERROR)) {
+                        // handling a delete
+                        out.send(feedback, message.getKeySlice());
+                        replied = true;
                     }
-                    if(reply == null)
+                } else if(message.getValid() && message.getStatus().equals(KVMessage.StatusType.SUB)) {
+                    // handling a subscription
+			subManager.addSubscription(message.getKey(), message.getValue()); 
+			sendBytesR((new Message(KVMessage.StatusType.SUB_SUCCESS)).getByteMessage(), out);
+			replied = true;
+                }
+                if(!replied)
 			LOGGER.error("could not create reply to received message - reply = null");
-                    else {
-			sendBytesR(reply.getByteMessage(), out);
-                    }
 
-                } else { // if ping message
-                    AdminMessage message = new AdminMessage(raw);
-                    byte[] replyBytes = new byte[1];
+            } else { // if ping message
+                AdminMessage message = new AdminMessage(FrameDecoder.toArray(frame));
+                byte[] replyBytes = new byte[1];
 
-                    if(message.getValid() && (message.getStatus().equals(KVAdminMessage.AdminType.PING)))
-                        replyBytes[0] = (byte) 41;
-                    else 
-                        replyBytes[0] = (byte) 42;
+                if(message.getValid() && (message.getStatus().equals(KVAdminMessage.AdminType.PING)))
+                    replyBytes[0] = (byte) 41;
+                else 
+                    replyBytes[0] = (byte) 42;
 
-                    sendBytes(replyBytes, out);
-                }
-            } catch (IOException | RuntimeException ex) {
-                LOGGER.info("Server disconnected");
-                System.out.println("Server disconnected");
-                break;
+                sendBytes(replyBytes, out);
             }
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.info("Server disconnected");
+            System.out.println("Server disconnected");
+            return false;
         }
-                 
+        return true;
+    }
+
+    @Override
+    public void close() {
         try{
-            in.close();
             out.close();
-            socket.close();
         }
         catch(IOException ioe){
             LOGGER.error("Unable to close streams or socket");
@@ -11,8 +11,6 @@ import common.messages.*;
 import common.reader.UniversalReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import manager.CacheManager;
@@ -47,15 +45,12 @@ public class GossipHeartRomeo extends Thread {
     }
    
     /**
-     * Sends a byte array to the given OutputStream.  
+     * Sends a byte array to the given writer.  
      * @param byteMessage
      * @throws IOException 
      */
-    private void sendBytes(byte[] byteMessage, OutputStream out) throws IOException{
-        for(byte b : byteMessage) {
-                out.write(b);
-        }        
-        out.flush();
+    private void sendBytes(byte[] byteMessage, ResponseWriter out) throws IOException{
+        out.send(byteMessage, false);
     } 
         
     /**
@@ -65,7 +60,7 @@ public class GossipHeartRomeo extends Thread {
      * @param successorPort
      * @throws IOException if unable to send ping message
      */
-    private void sendPing(OutputStream out) throws IOException {
+    private void sendPing(ResponseWriter out) throws IOException {
 	LOGGER.info("sendPing");
         AdminMessage pingMsg = new AdminMessage(KVAdminMessage.AdminType.PING);        
         sendBytes(pingMsg.getByteMessage(), out);
@@ -130,17 +125,15 @@ public class GossipHeartRomeo extends Thread {
             int secondPort_original = successor2.getPort();
             int secondPort = PortOffset.getGossipPort(successor2.getPort()); // gossip offset
 
-            Socket socket = null;
+            ResponseWriter out = null;
             InputStream in = null;
-            OutputStream out = null;
 
             // SEND PING MESSAGE TO THE FIRST SUCCESSOR
             // Open connection
             try{
                 //LOGGER.info("Romeo opening socket to successor 1");
-                socket = new Socket(firstIP, firstPort);
-                in = socket.getInputStream();
-                out = socket.getOutputStream();
+                out = ResponseWriter.connect(firstIP, firstPort);
+                in = out.getChannel().socket().getInputStream();
                 
                 // send the ping
                 //LOGGER.info("Romeo sends ping to successor 1");
@@ -165,9 +158,7 @@ public class GossipHeartRomeo extends Thread {
             }
 
             try{
-                in.close();
                 out.close();
-                socket.close();
             }
             catch(IOException ex){
                 LOGGER.error("Unable to close streams or socket");
@@ -177,9 +168,8 @@ public class GossipHeartRomeo extends Thread {
             // SEND PING MESSAGE TO THE SECOND SUCCESSOR
             // Open connection
             try{
-                socket = new Socket(secondIP, secondPort);
-                in = socket.getInputStream();
-                out = socket.getOutputStream();
+                out = ResponseWriter.connect(secondIP, secondPort);
+                in = out.getChannel().socket().getInputStream();
                 
                 // send the ping
                 sendPing(out);                                 
@@ -202,9 +192,7 @@ public class GossipHeartRomeo extends Thread {
             }
 
             try{
-                in.close();
                 out.close();
-                socket.close();
             }
             catch(IOException ex){
                 LOGGER.error("Unable to close streams or socket");
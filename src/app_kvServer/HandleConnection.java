@@ -3,28 +3,26 @@ package app_kvServer;
 import common.constants.PortOffset;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.Socket;
 import common.messages.KVMessage.StatusType;
 import common.messages.*;
 import manager.CacheManager;
 import common.logger.*;
-import common.reader.UniversalReader;
-import java.nio.charset.StandardCharsets;
+import common.reader.FrameDecoder;
+import java.nio.ByteBuffer;
 import manager.SubscriptionManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * Handles the accepted connection.
- *
+ * The messages are decoded by the SelectorFrontEnd, the first one has to authenticate the user.
  */
-public class HandleConnection implements Runnable {
+public class HandleConnection implements RequestHandler {
 
 	private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
 
-	private InputStream in;
-	private OutputStream out;
+	private ResponseWriter out;
 	private CacheManager manager;
 	private MetaData metaData;
 	private String clientName; //client address - includes client port
@@ -32,22 +30,20 @@ public class HandleConnection implements Runnable {
 	private int port; //server port
 	private Users userList;
 	private SubscriptionManager subManager;
-
-	HandleConnection(Socket client, CacheManager manager, MetaData metaData, Users userList, SubscriptionManager subManager) {
-            try {
-                this.in = client.getInputStream();
-                this.out = client.getOutputStream();
-                this.clientName = client.getRemoteSocketAddress().toString();
-                this.serverName = client.getInetAddress().getHostAddress();
-                this.port = client.getLocalPort();
-                LOGGER.info("Accepted connection from: " + this.clientName);
-                this.manager = manager;
-                this.metaData = metaData;
-                this.userList = userList;
-                this.subManager = subManager;
-            } catch (IOException io) {
-                LOGGER.error("Could not accept client.");
-            }
+	private AuthTuple user_pw = null; // null until the user is authenticated
+	private final MessageView request = new MessageView(); // reused for every message of the connection
+
+	HandleConnection(ResponseWriter out, CacheManager manager, MetaData metaData, Users userList, SubscriptionManager subManager) {
+            Socket socket = out.getChannel().socket();
+            this.out = out;
+            this.clientName = socket.getRemoteSocketAddress().toString();
+            this.serverName = socket.getInetAddress().getHostAddress();
+            this.port = socket.getLocalPort();
+            LOGGER.info("Accepted connection from: " + this.clientName);
+            this.manager = manager;
+            this.metaData = metaData;
+            this.userList = userList;
+            this.subManager = subManager;
 	}
 
 	/**
@@ -58,31 +54,62 @@ public class HandleConnection implements Runnable {
 	private void sendReply(Message reply) {
             System.out.println("Sending: " + reply.getByteMessage().length);
             try {
-                for (byte b : reply.getByteMessage()) {
-                        out.write(b);
-                }
+                out.send(reply);
+            } catch (IOException io) {
+                // what to do, if the reply fails?
+            }
+	}
 
-                out.write("\r".getBytes(StandardCharsets.UTF_8));
+	/**
+	 * sends a reply with a value to client, the value is not copied into a message
+	 *
+	 * @param status - the status of the reply
+	 * @param key - the key of the reply
+	 * @param value - the value of the reply
+	 */
+	private void sendReply(StatusType status, ByteBuffer key, ByteBuffer value) {
+            try {
+                out.send(status, key, value);
+            } catch (IOException io) {
+                // what to do, if the reply fails?
+            }
+	}
 
-                out.flush();
+	/**
+	 * sends a reply without a value to client
+	 *
+	 * @param status - the status of the reply
+	 * @param key - the key of the reply
+	 */
+	private void sendReply(StatusType status, ByteBuffer key) {
+            try {
+                out.send(status, key);
             } catch (IOException io) {
                 // what to do, if the reply fails?
             }
 	}
 
+	/**
+	 * sends a GET_SUCCESS reply whose value is transferred directly from the storage file
+	 * to the socket, the value is never copied to the heap
+	 *
+	 * @param key - the requested key
+	 * @param keyBytes - the requested key as sent by the client
+	 * @return false, if the value has to be looked up with manager.get() instead
+	 * @throws IOException if the reply could not be sent
+	 */
+	private boolean sendReplyFromDisk(String key, ByteBuffer keyBytes) throws IOException {
+            return manager.getFromDisk(key, region -> out.send(StatusType.GET_SUCCESS, keyBytes, region));
+	}
+
 	/**
 	 * Sends an Message to a server.
 	 *
 	 * @param out
 	 * @throws IOException if unable to send message
 	 */
-	private void sendReplication(Message message, OutputStream out) throws IOException { // Maybe merge this with sendReply() ?
-            byte[] byteMessage = message.getByteMessage();
-
-            for (byte b : byteMessage) {
-                out.write(b);
-            }
-            out.flush();
+	private void sendReplication(MessageView message, ResponseWriter out) throws IOException { // Maybe merge this with sendReply() ?
+            out.send(message.getFrame(), false);
 	}
 
 	/**
@@ -91,7 +118,7 @@ public class HandleConnection implements Runnable {
 	 *
 	 * @param message
 	 */
-	private void replicate(Message message) {
+	private void replicate(MessageView message) {
             // determine successors
             MetaDataEntry successor1 = metaData.getSuccessor(this.serverName, this.port);
             MetaDataEntry successor2 = metaData.getSuccessor(successor1.getIP(), successor1.getPort());
@@ -106,28 +133,26 @@ public class HandleConnection implements Runnable {
             LOGGER.info("succ1 ip " + successor1.getIP());
             LOGGER.info("succ1 port " + successor1.getPort());
 
-            Socket socket = null;
             ErrorManager errorManager = new ErrorManager();
 
             // we have to be careful to not use the class variables in and out
-            OutputStream outputStream = null;
+            ResponseWriter writer = null;
             InputStream inputStream = null;
-            UniversalReader ur = new UniversalReader();
+            FrameDecoder decoder = new FrameDecoder();
             int hack = -1;
 
             // send message to first successor
             try {
-                socket = new Socket(firstIP, firstPort); // initial connection
-                inputStream = socket.getInputStream();
-                outputStream = socket.getOutputStream();
+                writer = ResponseWriter.connect(firstIP, firstPort); // initial connection
+                inputStream = writer.getChannel().socket().getInputStream();
 
-                Message connected = new Message(ur.readMessage(inputStream)); // init message
+                Message connected = new Message(FrameDecoder.toArray(decoder.readFrame(inputStream))); // init message
                 if (!connected.getStatus().equals(StatusType.PUT)) {
                     LOGGER.error("did not receive confirmation.: " + connected.getByteMessage()[0]);
                     return; // abort replication
                 }
 
-                hack = inputStream.read();
+                hack = decoder.read(inputStream);
                 if (hack == -1) {
                     throw new IOException();
                 } else if (!(hack == 13)) {
@@ -135,12 +160,12 @@ public class HandleConnection implements Runnable {
                     return; // abort replication
                 }
 
-                sendReplication(message, outputStream);
+                sendReplication(message, writer);
 
-                Message reply = new Message(ur.readMessage(inputStream));
+                Message reply = new Message(FrameDecoder.toArray(decoder.readFrame(inputStream)));
                 LOGGER.info("received status byte: " + reply.getByteMessage()[0]);
 
-                hack = inputStream.read();
+                hack = decoder.read(inputStream);
                 if (hack == -1) {
                     throw new IOException();
                 } else if (!(hack == 13)) {
@@ -157,26 +182,24 @@ public class HandleConnection implements Runnable {
             }
 
             try {
-                    inputStream.close();
-                    outputStream.close();
-                    socket.close();
+                    writer.close();
             } catch (IOException ex) {
                     LOGGER.error("Unable to close streams or socket");
             }
 
             // send message to second successor
+            decoder.release();
             try {
-                socket = new Socket(secondIP, secondPort);
-                inputStream = socket.getInputStream();
-                outputStream = socket.getOutputStream();
+                writer = ResponseWriter.connect(secondIP, secondPort);
+                inputStream = writer.getChannel().socket().getInputStream();
 
-                Message connected = new Message(ur.readMessage(inputStream)); // init message
+                Message connected = new Message(FrameDecoder.toArray(decoder.readFrame(inputStream))); // init message
                 if (!connected.getStatus().equals(StatusType.PUT)) {
                     LOGGER.error("did not receive confirmation.");
                     return; // abort replication
                 }
 
-                hack = inputStream.read();
+                hack = decoder.read(inputStream);
                 if (hack == -1) {
                     throw new IOException();
                 } else if (!(hack == 13)) {
@@ -184,12 +207,12 @@ public class HandleConnection implements Runnable {
                     return; // abort replication
                 }
 
-                sendReplication(message, outputStream);
+                sendReplication(message, writer);
 
-                Message reply = new Message(ur.readMessage(inputStream)); // what to do with /r ?
+                Message reply = new Message(FrameDecoder.toArray(decoder.readFrame(inputStream))); // what to do with /r ?
                 LOGGER.info("received status byte: " + reply.getByteMessage()[0]);
 
-                hack = inputStream.read();
+                hack = decoder.read(inputStream);
                 if (hack == -1) {
                     throw new IOException();
                 } else if (!(hack == 13)) {
@@ -206,196 +229,211 @@ public class HandleConnection implements Runnable {
             }
 
             try {
-                inputStream.close();
-                outputStream.close();
-                socket.close();
+                writer.close();
             } catch (IOException ex) {
                 LOGGER.error("Unable to close streams or socket");
             }
 	}
 
         @Override
-	public void run() {
-            boolean connected = true;
-            UniversalReader reader = new UniversalReader();
-
-            /*
-            System.out.println("server " + serverName);
-            System.out.println("client " + clientName);
-             */
+	public void open() throws IOException {
             System.out.println("ServerName: " + serverName);
             System.out.println("Port: " + Integer.toString(port));
 
             LOGGER.info("before sendRyply");
             sendReply(new Message(StatusType.PUT, serverName.getBytes(), Integer.toString(port).getBytes())); // client should know, that port is not coded as string
             LOGGER.info("after sendReply");
+	}
 
-            /*
-                AUTHENTIFICATION
-             */
-            byte[] authBytes = null;
-            Message toDo = null;
-
-            try {
-                authBytes = reader.readMessage(in);
-            } catch (IOException | RuntimeException io_run) {
-                System.out.println("Something went wrong.");
-                connected = false;
+	/**
+	 * the first message authenticates the user, all others are requests
+	 */
+        @Override
+	public boolean handle(ByteBuffer message) {
+            if (user_pw == null) {
+                return authenticate(request.wrap(message));
             }
+            return handleRequest(request.wrap(message));
+	}
+
+	/**
+	 * checks the user and password of the first message
+	 *
+	 * @param toDo - the received message
+	 * @return user is valid - true; false, if the connection has to be closed
+	 */
+	private boolean authenticate(MessageView toDo) {
+            boolean connected;
 
             LOGGER.info("received auth bytes");
 
-            toDo = new Message(authBytes);
-            AuthTuple user_pw = null;
+            AuthTuple auth = null;
             if (toDo.getValid()) {
-                user_pw = new AuthTuple(toDo.getValueAsBytes());
-                LOGGER.info("handle - user: " + user_pw.getUser());
+                auth = new AuthTuple(toDo.getValueAsBytes());
+                LOGGER.info("handle - user: " + auth.getUser());
                 String derp = "";
                 for (int i = 0; i < 16; i++) {
-                    derp += user_pw.getPwHash()[i];
+                    derp += auth.getPwHash()[i];
                     if (i < 15) {
                         derp += "-";
                     }
                 }
                 LOGGER.info("handle - pw: " + derp);
-                connected = userList.valid(user_pw);
+                connected = userList.valid(auth);
             } else {
                 connected = false;
             }
 
             if (connected) {
+                user_pw = auth;
                 sendReply(new Message(StatusType.AUTH_SUCCESS));
             } else {
                 sendReply(new Message(StatusType.AUTH_ERROR));
             }
+            return connected;
+	}
 
-            while (connected) { // waiting for input
-                // status byte + length byte + 20 bytes key-max. + 120 kb = 120 022 byte
-                byte[] incomingMinimal;
-                toDo = null;
-
-                // listens to stream as long, as connected
-                try {
-                    incomingMinimal = reader.readMessage(in);
-                } catch (IOException | RuntimeException io_run) {
-                    System.out.println("Something went wrong.");
-                    break;
-                }
+	/**
+	 * processes a request of an authenticated user
+	 *
+	 * @param toDo - the received message, it is only valid during this call
+	 * @return false, if the connection has to be closed
+	 */
+	private boolean handleRequest(MessageView toDo) {
+            boolean connected = true;
+            System.out.println("Valid is: " + toDo.getValid());
+
+            if (toDo.getValid()) { // reply with FAILED, if message is not valid
+                String key = toDo.getKey(); // decoded once, replies use the key as received
+                /* ---------------------------------------------------------- */                    
+                
+                // old debug output
+                /*System.out.println("looking up in metadata: " + serverName + ":" + port);
+                MetaDataEntry e = metaData.getFirst();
+                if (e == null) {
+                    System.out.println("meta data empty");
+                } else {
+                    System.out.println("first element: " + e.getIP() + ":" + e.getPort());
+                }*/
+                
+                /* ---------------------------------------------------------- */
+
+                // is the message valid ?
+                // is the server stopped ?
+                // GET - withinGetRange?
+                // PUT/DELETE - withinWritingRange ?
+                //              is the server Stopped?
+                /*
+                if(!metaData.getEntry(serverName, port).withinHashRange(toDo.getKey().getBytes(StandardCharsets.UTF_8)) ) {
+                    sendReply(new Message(StatusType.NOT_RESPONSIBLE, "meta".getBytes(), metaData.toBytes()));
+                 */
+                if (!manager.isStopped()) {
+                    switch (toDo.getStatus()) {
+                        case GET:
+                            if (metaData.withinReadingRange(this.serverName, this.port, key)) { // within reading range ?
+                                try {
+                                    // the off-heap cache hands out the bytes of the value, it is not decoded and encoded again
+                                    if (manager.getCachedBytes(key, value -> sendReply(StatusType.GET_SUCCESS, toDo.getKeySlice(), value))) {
+                                        break;
+                                    }
 
-                toDo = new Message(incomingMinimal);
-                System.out.println("Valid is: " + toDo.getValid());
-
-                if (toDo.getValid()) { // reply with FAILED, if message is not valid
-                    /* ---------------------------------------------------------- */                    
-                    
-                    // old debug output
-                    /*System.out.println("looking up in metadata: " + serverName + ":" + port);
-                    MetaDataEntry e = metaData.getFirst();
-                    if (e == null) {
-                        System.out.println("meta data empty");
-                    } else {
-                        System.out.println("first element: " + e.getIP() + ":" + e.getPort());
-                    }*/
-                    
-                    /* ---------------------------------------------------------- */
-
-                    // is the message valid ?
-                    // is the server stopped ?
-                    // GET - withinGetRange?
-                    // PUT/DELETE - withinWritingRange ?
-                    //              is the server Stopped?
-                    /*
-                    if(!metaData.getEntry(serverName, port).withinHashRange(toDo.getKey().getBytes(StandardCharsets.UTF_8)) ) {
-                        sendReply(new Message(StatusType.NOT_RESPONSIBLE, "meta".getBytes(), metaData.toBytes()));
-                     */
-                    if (!manager.isStopped()) {
-                        switch (toDo.getStatus()) {
-                            case GET:
-                                if (metaData.withinReadingRange(this.serverName, this.port, toDo.getKey())) { // within reading range ?
-                                    String feedback_get = manager.get(toDo.getKey());
-
-                                    if (feedback_get != null) {
-                                            sendReply(new Message(StatusType.GET_SUCCESS, toDo.getKeyAsBytes(), feedback_get.getBytes()));
-                                    } else {
-                                            sendReply(new Message(StatusType.GET_ERROR, toDo.getKeyAsBytes()));
+                                    // large values that are not cached go straight from disk to the socket
+                                    if (sendReplyFromDisk(key, toDo.getKeySlice())) {
+                                        break;
                                     }
-                                } else { // not responsible
-                                    sendReply(new Message(StatusType.NOT_RESPONSIBLE, "meta".getBytes(), metaData.toBytes()));
+                                } catch (IOException io) {
+                                    LOGGER.error("Unable to send value from disk", io);
+                                    connected = false;
+                                    break;
                                 }
 
-                                break;
-                            case PUT:
-                            case DELETE:
-                            case SUB:
-                            case UNSUB:// it seems that the DELETE flag is not really needed (but old code works fine)
-                                if (!metaData.withinWritingRange(this.serverName, this.port, toDo.getKey())) { // not within writing range ?
-                                    sendReply(new Message(StatusType.NOT_RESPONSIBLE, "meta".getBytes(), metaData.toBytes()));
-                                } else if (manager.isWriteLocked()) {
-                                    sendReply(new Message(StatusType.SERVER_WRITE_LOCK));
+                                String feedback_get = manager.get(key);
+
+                                if (feedback_get != null) {
+                                        sendReply(StatusType.GET_SUCCESS, toDo.getKeySlice(), ByteBuffer.wrap(feedback_get.getBytes()));
                                 } else {
-                                    switch (toDo.getStatus()) { // this is where e-mails may be sent
-                                        case PUT:
-                                            StatusType feedback_put = manager.put(toDo.getKey(), toDo.getValue());
-
-                                            if (feedback_put.equals(StatusType.PUT_SUCCESS) || feedback_put.equals(StatusType.PUT_UPDATE)) { // send e-mail for update
-                                                replicate(toDo);
-                                                if (feedback_put.equals(StatusType.PUT_UPDATE) && subManager.isSubscribedTo(toDo.getKey())) {
-                                                        // SEND MAIL
-                                                        (new EMailService(user_pw.getUser(), feedback_put, toDo)).start();
-                                                }
-                                                sendReply(new Message(feedback_put, toDo.getKeyAsBytes(), toDo.getValueAsBytes()));
-
-                                            } else {
-                                                sendReply(new Message(StatusType.PUT_ERROR, toDo.getKeyAsBytes(), toDo.getValueAsBytes()));
+                                        sendReply(StatusType.GET_ERROR, toDo.getKeySlice());
+                                }
+                            } else { // not responsible
+                                sendReply(new Message(StatusType.NOT_RESPONSIBLE, "meta".getBytes(), metaData.toBytes()));
+                            }
+
+                            break;
+                        case PUT:
+                        case DELETE:
+                        case SUB:
+                        case UNSUB:// it seems that the DELETE flag is not really needed (but old code works fine)
+                            if (!metaData.withinWritingRange(this.serverName, this.port, key)) { // not within writing range ?
+                                sendReply(new Message(StatusType.NOT_RESPONSIBLE, "meta".getBytes(), metaData.toBytes()));
+                            } else if (manager.isWriteLocked()) {
+                                sendReply(new Message(StatusType.SERVER_WRITE_LOCK));
+                            } else {
+                                switch (toDo.getStatus()) { // this is where e-mails may be sent
+                                    case PUT:
+                                        StatusType feedback_put = manager.put(key, toDo.getValue());
+
+                                        if (feedback_put.equals(StatusType.PUT_SUCCESS) || feedback_put.equals(StatusType.PUT_UPDATE)) { // send e-mail for update
+                                            replicate(toDo);
+                                            if (feedback_put.equals(StatusType.PUT_UPDATE) && subManager.isSubscribedTo(key)) {
+                                                    // SEND MAIL
+                                                    (new EMailService(user_pw.getUser(), feedback_put, toDo.toMessage())).start();
                                             }
+                                            sendReply(feedback_put, toDo.getKeySlice(), toDo.getValueSlice());
 
-                                            break;
-                                        case DELETE: // send e-mail for delete
-                                            StatusType feedback_del = manager.put(toDo.getKey(), "null");
-
-                                            if (feedback_del.equals(StatusType.DELETE_SUCCESS)) {
-                                                if (subManager.isSubscribedTo(toDo.getKey())) {
-                                                        (new EMailService(user_pw.getUser(), feedback_del, toDo)).start();
-                                                }
-                                                replicate(toDo);
-                                                sendReply(new Message(StatusType.DELETE_SUCCESS, toDo.getKeyAsBytes()));
-                                            } else {
-                                                sendReply(new Message(StatusType.DELETE_ERROR, toDo.getKeyAsBytes()));
-                                            }
+                                        } else {
+                                            sendReply(StatusType.PUT_ERROR, toDo.getKeySlice(), toDo.getValueSlice());
+                                        }
 
-                                            break;
-                                        case SUB:
-                                            if (!subManager.isSubscribedTo(toDo.getKey())) {
-                                                subManager.addSubscription(toDo.getKey(), user_pw.getUser());
-                                                (new EMailService(user_pw.getUser(), StatusType.SUB, toDo)).start();
-                                            }
-                                            sendReply(new Message(StatusType.SUB_SUCCESS));
-                                            break;
-                                        case UNSUB:
-                                            if (subManager.isSubscribedTo(toDo.getKey())) {
-                                                subManager.removeSubscription(toDo.getKey(), user_pw.getUser());
-                                                (new EMailService(user_pw.getUser(), StatusType.UNSUB, toDo)).start();
+                                        break;
+                                    case DELETE: // send e-mail for delete
+                                        StatusType feedback_del = manager.put(key, "null");
+
+                                        if (feedback_del.equals(StatusType.DELETE_SUCCESS)) {
+                                            if (subManager.isSubscribedTo(key)) {
+                                                    (new EMailService(user_pw.getUser(), feedback_del, toDo.toMessage())).start();
                                             }
-                                            sendReply(new Message(StatusType.SUB_SUCCESS));
-                                    }
+                                            replicate(toDo);
+                                            sendReply(StatusType.DELETE_SUCCESS, toDo.getKeySlice());
+                                        } else {
+                                            sendReply(StatusType.DELETE_ERROR, toDo.getKeySlice());
+                                        }
+
+                                        break;
+                                    case SUB:
+                                        if (!subManager.isSubscribedTo(key)) {
+                                            subManager.addSubscription(key, user_pw.getUser());
+                                            (new EMailService(user_pw.getUser(), StatusType.SUB, toDo.toMessage())).start();
+                                        }
+                                        sendReply(new Message(StatusType.SUB_SUCCESS));
+                                        break;
+                                    case UNSUB:
+                                        if (subManager.isSubscribedTo(key)) {
+                                            subManager.removeSubscription(key, user_pw.getUser());
+                                            (new EMailService(user_pw.getUser(), StatusType.UNSUB, toDo.toMessage())).start();
+                                        }
+                                        sendReply(new Message(StatusType.SUB_SUCCESS));
                                 }
-                                break;
-
-                            default:
-                                sendReply(new Message(StatusType.FAILED, "-".getBytes(), "INVALID FORMAT".getBytes()));
-                                LOGGER.error(clientName + " invalid request");
-                                break;
-                        }
-                    } else {
-                        sendReply(new Message(StatusType.SERVER_STOPPED));
+                            }
+                            break;
+
+                        default:
+                            sendReply(new Message(StatusType.FAILED, "-".getBytes(), "INVALID FORMAT".getBytes()));
+                            LOGGER.error(clientName + " invalid request");
+                            break;
                     }
                 } else {
-                    sendReply(new Message(StatusType.FAILED, "-".getBytes(), "INVALID FORMAT".getBytes()));
-                    LOGGER.error(clientName + " invalid request");
+                    sendReply(new Message(StatusType.SERVER_STOPPED));
                 }
+            } else {
+                sendReply(new Message(StatusType.FAILED, "-".getBytes(), "INVALID FORMAT".getBytes()));
+                LOGGER.error(clientName + " invalid request");
             }
+            return connected;
+	}
+
+        @Override
+	public void close() {
             try {
-                in.close();
                 out.close();
             } catch (IOException e) {
                 LOGGER.error("Unable to close streams");
@@ -8,7 +8,7 @@ package app_kvServer;
 import common.constants.PortOffset;
 import common.messages.AdminMessage;
 import common.messages.MetaData;
-import common.reader.UniversalReader;
+import common.reader.FrameDecoder;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -66,9 +66,10 @@ public class HandleEcs extends Thread {
                 InputStream in = ecsServerClient.getInputStream();      // create input stream
                 OutputStream out = ecsServerClient.getOutputStream();   // create output stream
 
-                UniversalReader reader = new UniversalReader();
+                FrameDecoder decoder = new FrameDecoder();
                 byte[] incomingMinimal;
-                incomingMinimal = reader.readMessage(in);
+                incomingMinimal = FrameDecoder.toArray(decoder.readFrame(in));
+                decoder.release();
 
                 AdminMessage adminMessage = new AdminMessage(incomingMinimal);
 
@@ -9,8 +9,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.ServerSocketChannel;
 import static javax.script.ScriptEngine.FILENAME;
 import manager.CacheManager;
 import manager.SubscriptionManager;
@@ -24,9 +23,14 @@ import org.apache.logging.log4j.Logger;
 public class KVServer extends Thread {
     private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
     
+    // the connections of the clients and of the other servers are read by a few I/O threads,
+    // the requests are handled by a bounded pool of workers
+    static final int IO_THREADS = Integer.getInteger("kvserver.io.threads", 2);
+    static final int WORKER_THREADS = Integer.getInteger("kvserver.workers", 32);
+    
     private int port;
     private String ip;
-    private ExecutorService executor;
+    private SelectorFrontEnd frontEnd;
     private CacheManager manager;
     private ServerSocket server;
     private MetaData metaData; // needs to be initialized
@@ -41,15 +45,18 @@ public class KVServer extends Thread {
      */
     public KVServer(int port, CacheManager manager, Users userList, SubscriptionManager subManager) {
         this.port = port;
-        this.executor = Executors.newCachedThreadPool();
         this.manager = manager;
         this.metaData = new MetaData();
         this.userList = userList;
         this.subManager = subManager;
         
         try {
-            this.server = new ServerSocket(port);
+            // the socket is created by a channel, so that the connections can be served by a selector
+            this.server = ServerSocketChannel.open().socket();
+            this.server.bind(new InetSocketAddress(port));
 	    this.ip = server.getInetAddress().getHostAddress();
+            this.frontEnd = new SelectorFrontEnd("KVServer", IO_THREADS, WORKER_THREADS,
+                    out -> new HandleConnection(out, this.manager, this.metaData, this.userList, this.subManager));
         } catch(IOException ioe) {
             LOGGER.error("Unable to create ServerSocket in main server thread on: " + port);
             System.err.println("Unable to create ServerSocket in main server thread");
@@ -72,8 +79,8 @@ public class KVServer extends Thread {
     @Override
     public void run() {
         while(true) {
-            try{ // passes ingoing connections to thread pool
-                executor.execute(new HandleConnection(getListener().accept(), manager, metaData, userList, subManager));
+            try{ // passes ingoing connections to the selector front end
+                frontEnd.register(getListener().getChannel().accept());
                 
             } catch(IOException io) {
                 System.out.println("nothing...");
@@ -103,6 +110,36 @@ public class KVServer extends Thread {
          return true;
      }
      
+     /**
+      * Parses a cache size that is given as a byte budget, i.e. a number with the unit B, KB, MB or GB.
+      * @param size - given cache size, e.g. 64MB
+      * @return the budget in bytes; -1 if the size is not a byte budget
+      */
+     public static long parseByteBudget(String size) {
+         String[] units = { "GB", "MB", "KB", "B" };
+         long[] factors = { 1000L*1000*1000, 1000L*1000, 1000L, 1L };
+         for (int i = 0; i < units.length; i++) {
+             if (!size.toUpperCase().endsWith(units[i]))
+                 continue;
+             try {
+                 long budget = Long.parseLong(size.substring(0, size.length()-units[i].length()));
+                 return (budget > 0) ? budget*factors[i] : -1;
+             } catch(NumberFormatException nf) {
+                 return -1;
+             }
+         }
+         return -1;
+     }
+     
+     /**
+      * Answers if the given cache size is valid.
+      * @param size - given cache size: a number of entries or a byte budget (e.g. 64MB)
+      * @return size is valid - true; size is not valid - false
+      */
+     public static boolean validCacheSize(String size) {
+         return validNumber(size) || parseByteBudget(size) > 0;
+     }
+     
      /**
       * Answers if the given port is in a valid port range.
       * @param port - given port
@@ -122,13 +159,15 @@ public class KVServer extends Thread {
              case "FIFO": return true;
              case "LRU": return true;
              case "LFU": return true;
+             case "TLFU": return true;
+             case "ADAPTIVE": return true;
              default: return false;
          }
      }
         
     public static void main(String[]args) throws InterruptedException { // accept it or catch it?
         // handle wrong launch arguments - arg0/port arg1/cacheSize arg2/strategy
-        if(!( args.length == 3 && validNumber(args[0]) && validNumber(args[1]) && validStrategy(args[2]) && validPort(Integer.parseInt(args[0])) )) {
+        if(!( args.length == 3 && validNumber(args[0]) && validCacheSize(args[1]) && validStrategy(args[2]) && validPort(Integer.parseInt(args[0])) )) {
             System.out.println("Invalid Launch Arguments");
             System.exit(5);
         }
@@ -187,7 +226,10 @@ public class KVServer extends Thread {
         
         // launch arguments are not used anymore?
         SubscriptionManager sub_manager = new SubscriptionManager();
-        CacheManager manager = new CacheManager(Integer.parseInt(args[1]), args[2], Integer.parseInt(args[0]));
+        // the cache size is either a number of entries or a byte budget
+        long budget = parseByteBudget(args[1]);
+        CacheManager manager = (budget > 0) ? new CacheManager(Integer.MAX_VALUE, budget, args[2], Integer.parseInt(args[0]))
+                : new CacheManager(Integer.parseInt(args[1]), args[2], Integer.parseInt(args[0]));
         manager.setSubscriptionManager(sub_manager);
         KVServer theServer = new KVServer(Integer.parseInt(args[0]), manager, userList, sub_manager);
         
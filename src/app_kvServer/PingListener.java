@@ -9,9 +9,9 @@ import common.constants.PortOffset;
 import common.logger.Constants;
 import common.messages.MetaData;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.ServerSocketChannel;
 import manager.CacheManager;
 import manager.SubscriptionManager;
 import org.apache.logging.log4j.LogManager;
@@ -20,13 +20,14 @@ import org.apache.logging.log4j.Logger;
 /**
  * Has a server socket running all the time which waits for another server
  * to connect to send us some information. 
- * If a connection attempt is detected, a new Runnable (GossipHeartJulia) is 
- * started to process the communication. 
+ * If a connection attempt is detected, the connection is passed to a 
+ * SelectorFrontEnd whose workers process the communication with a 
+ * GossipHeartJulia. 
  */
 public class PingListener extends Thread {
     private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
     
-    private final ExecutorService executor;
+    private SelectorFrontEnd frontEnd;
     private ServerSocket listener;
     private int gossipPort;
     private final CacheManager manager;
@@ -43,16 +44,20 @@ public class PingListener extends Thread {
         this.gossipPort = PortOffset.getGossipPort(mainServerPort);
         this.subManager = subManager;
         
+        this.manager = manager;
+        
         try {
-            this.listener = new ServerSocket(gossipPort);            
+            this.listener = ServerSocketChannel.open().socket();
+            this.listener.bind(new InetSocketAddress(gossipPort));
+            // the gossip connections have their own workers, so that replication cannot wait for
+            // workers that are busy replicating themselves
+            this.frontEnd = new SelectorFrontEnd("PingListener", 1, KVServer.WORKER_THREADS,
+                    out -> new GossipHeartJulia(out, this.manager, this.subManager));
             LOGGER.info("Launched Ping Listener on port: " + PortOffset.getGossipPort(mainServerPort));
         } 
         catch(IOException e) {
             LOGGER.error("Unable to create ServerSocket to receive connections in PingListener class");
         }
-        
-        this.executor = Executors.newCachedThreadPool();
-        this.manager = manager;
     }
     
     /**
@@ -62,7 +67,7 @@ public class PingListener extends Thread {
     public void run() {
         while(true) {
             try{ 
-                executor.execute(new GossipHeartJulia(listener.accept(), manager, subManager));
+                frontEnd.register(listener.getChannel().accept());
                 
             } catch(IOException io) {
                 LOGGER.error("Unable to receive incoming connection from a server in PingListener class");
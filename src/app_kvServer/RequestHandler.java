@@ -0,0 +1,28 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The protocol of a connection that is served by the SelectorFrontEnd.
+ * The front end decodes the messages, a worker passes them to the handler one at a time.
+ */
+public interface RequestHandler {
+    /**
+     * called by a worker before the first message, e.g. to send the greeting
+     * @throws IOException if the connection has to be closed
+     */
+    void open() throws IOException;
+
+    /**
+     * processes a message and sends the reply
+     * @param message a complete message as decoded by the FrameDecoder
+     * @return false if the connection has to be closed
+     */
+    boolean handle(ByteBuffer message);
+
+    /**
+     * called once when the connection is closed
+     */
+    void close();
+}
@@ -0,0 +1,277 @@
+package app_kvServer;
+
+import common.messages.KVMessage.StatusType;
+import common.messages.Message;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import manager.FileRegion;
+
+/**
+ * Sends messages with gathering writes instead of writing every byte on its own.
+ * The header, the value and the carriage return of a message are passed to the channel
+ * together, so a message usually costs one system call and the value is not copied.
+ * While a connection has more pipelined requests, the replies are collected and sent as
+ * one batch.
+ * A non-blocking channel is written as if it was blocking: the writer waits on a selector
+ * of its own while the send buffer of the socket is full, a channel can be registered with
+ * several selectors at once.
+ */
+public class ResponseWriter implements Closeable {
+    // a reply that cannot be sent within this time closes the connection
+    private static final long WRITE_TIMEOUT = 30*1000;
+    // a batch is sent when it reaches this size, even if more requests are pending
+    private static final int MAX_BATCH = 64*1024;
+    // the headers of a batch are encoded into this space, a full space sends the batch
+    private static final int HEADER_SPACE = 4*1024;
+    private static final byte[] CARRIAGE_RETURN = { 13 };
+
+    private static final ThreadLocal<Selector> WAIT_SELECTOR = ThreadLocal.withInitial(() -> {
+        try {
+            return Selector.open();
+        } catch (IOException io) {
+            throw new UncheckedIOException(io);
+        }
+    });
+
+    private final GatheringByteChannel channel;
+    private final ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+    private final ByteBuffer headers = ByteBuffer.allocate(HEADER_SPACE);
+    private long batched = 0;
+    private boolean batching = false;
+
+    /**
+     *
+     * @param channel the connection, in blocking or non-blocking mode
+     */
+    public ResponseWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * opens a blocking connection to another server or the ecs
+     * @param ip the address to connect to
+     * @param port the port to connect to
+     * @return a writer for the new connection, its socket provides the input stream
+     * @throws IOException if the connection could not be established
+     */
+    public static ResponseWriter connect(String ip, int port) throws IOException {
+        try {
+            return new ResponseWriter(SocketChannel.open(new InetSocketAddress(ip, port)));
+        } catch (UnresolvedAddressException ua) {
+            throw new UnknownHostException(ip);
+        }
+    }
+
+    /**
+     *
+     * @return the socket channel of the connection
+     */
+    public SocketChannel getChannel() {
+        return (SocketChannel) channel;
+    }
+
+    /**
+     * while batching, messages are only sent by flush() or when the batch is full
+     * @param batching collect the messages - true; send every message at once - false
+     * @throws IOException if the collected messages could not be sent
+     */
+    public void setBatching(boolean batching) throws IOException {
+        this.batching = batching;
+        if (!batching)
+            flush();
+    }
+
+    /**
+     * waits until the send buffer of the socket has space again
+     * @throws IOException if the connection was closed or the client does not read
+     */
+    private void awaitWritable() throws IOException {
+        if (!(channel instanceof SocketChannel) || ((SocketChannel) channel).isBlocking()) {
+            Thread.yield();
+            return;
+        }
+
+        Selector selector = WAIT_SELECTOR.get();
+        SelectionKey key = ((SocketChannel) channel).register(selector, SelectionKey.OP_WRITE);
+        try {
+            long end = System.currentTimeMillis() + WRITE_TIMEOUT;
+            long now;
+            // select() also returns early if the worker is interrupted
+            while ((now = System.currentTimeMillis()) < end) {
+                if (selector.select(end - now) > 0)
+                    return;
+            }
+            throw new IOException("write timed out");
+        }
+        finally {
+            key.cancel();
+            // deregisters the channel, so that it can be registered again by the next wait
+            selector.selectNow();
+        }
+    }
+
+    /**
+     * adds the buffers to the batch and sends it unless more messages follow
+     */
+    private void send(ByteBuffer... buffers) throws IOException {
+        for (ByteBuffer buf : buffers) {
+            batch.add(buf);
+            batched += buf.remaining();
+        }
+        if (!batching || batched >= MAX_BATCH)
+            flush();
+    }
+
+    /**
+     * sends the collected messages with as few gathering writes as the socket allows
+     * @throws IOException if the messages could not be sent
+     */
+    public void flush() throws IOException {
+        if (batch.isEmpty())
+            return;
+
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[batch.size()]);
+        batch.clear();
+        batched = 0;
+        // the headers are not encoded again until the buffers are written
+        headers.clear();
+        int first = 0;
+        while (first < buffers.length) {
+            if (channel.write(buffers, first, buffers.length - first) == 0)
+                awaitWritable();
+            while (first < buffers.length && !buffers[first].hasRemaining())
+                first++;
+        }
+    }
+
+    /**
+     * encodes the header of a message into the header space
+     * @param valueLength the length of the value; -1 for a short message without value field
+     * @return the header
+     */
+    private ByteBuffer header(StatusType status, ByteBuffer key, int valueLength) throws IOException {
+        if (headers.remaining() < 1 + 1 + key.remaining() + 4)
+            flush();
+        int start = headers.position();
+        if (valueLength < 0)
+            Message.encode(headers, status, key);
+        else
+            Message.encodeHeader(headers, status, key, valueLength);
+        ByteBuffer header = headers.duplicate();
+        header.position(start);
+        header.limit(headers.position());
+        return header.slice();
+    }
+
+    /**
+     * sends a message as it was received, e.g. to forward it
+     * @param frame the message between position and limit, it is not consumed
+     * @param carriageReturn if the message is followed by a carriage return
+     * @throws IOException if the message could not be sent
+     */
+    public void send(ByteBuffer frame, boolean carriageReturn) throws IOException {
+        if (carriageReturn)
+            send(frame.duplicate(), ByteBuffer.wrap(CARRIAGE_RETURN));
+        else
+            send(frame.duplicate());
+    }
+
+    /**
+     * sends the bytes of a message
+     * @param byteMessage the message, e.g. of getByteMessage()
+     * @param carriageReturn if the message is followed by a carriage return
+     * @throws IOException if the message could not be sent
+     */
+    public void send(byte[] byteMessage, boolean carriageReturn) throws IOException {
+        if (carriageReturn)
+            send(ByteBuffer.wrap(byteMessage), ByteBuffer.wrap(CARRIAGE_RETURN));
+        else
+            send(ByteBuffer.wrap(byteMessage));
+    }
+
+    /**
+     * sends a message and a carriage return
+     * @param message the message
+     * @throws IOException if the message could not be sent
+     */
+    public void send(Message message) throws IOException {
+        send(message.getByteMessage(), true);
+    }
+
+    /**
+     * sends a message with a value and a carriage return, the value is not copied into the message
+     * @param status the status of the message
+     * @param key the key of the message
+     * @param value the value of the message
+     * @throws IOException if the message could not be sent
+     */
+    public void send(StatusType status, byte[] key, byte[] value) throws IOException {
+        send(status, ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+    }
+
+    /**
+     * sends a message with a value and a carriage return, e.g. with the slices of a MessageView
+     * @param status the status of the message
+     * @param key the key of the message between position and limit
+     * @param value the value of the message between position and limit, it is not copied
+     * @throws IOException if the message could not be sent
+     */
+    public void send(StatusType status, ByteBuffer key, ByteBuffer value) throws IOException {
+        send(header(status, key, value.remaining()), value.duplicate(), ByteBuffer.wrap(CARRIAGE_RETURN));
+    }
+
+    /**
+     * sends a message without value field and a carriage return
+     * @param status the status of the message
+     * @param key the key of the message between position and limit
+     * @throws IOException if the message could not be sent
+     */
+    public void send(StatusType status, ByteBuffer key) throws IOException {
+        send(header(status, key, -1), ByteBuffer.wrap(CARRIAGE_RETURN));
+    }
+
+    /**
+     * sends a message whose value is transferred directly from a storage file, and a carriage return
+     * the region is only pinned until the caller releases it, so it is sent at once
+     * @param status the status of the message
+     * @param key the key of the message between position and limit
+     * @param region the location of the value
+     * @throws IOException if the file could not be read or the message could not be sent
+     */
+    public void send(StatusType status, ByteBuffer key, FileRegion region) throws IOException {
+        send(header(status, key, region.size()));
+        flush();
+
+        long done = 0;
+        while (done < region.size()) {
+            long n = region.transferTo(done, channel);
+            if (n == 0)
+                awaitWritable();
+            done += n;
+        }
+        send(ByteBuffer.wrap(CARRIAGE_RETURN));
+    }
+
+    /**
+     * sends the collected messages and closes the connection
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
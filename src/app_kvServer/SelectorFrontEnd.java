@@ -0,0 +1,282 @@
+package app_kvServer;
+
+import common.logger.Constants;
+import common.reader.FrameDecoder;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Serves many connections with a few threads instead of one thread per connection.
+ * Every I/O thread owns a selector and reads from its connections without blocking. The received
+ * bytes are collected by a FrameDecoder until a message is complete, complete messages are passed
+ * to a bounded pool of workers. The messages of one connection are handled one after another in the order
+ * they arrived, so the replies keep the order of the requests. The replies to pipelined requests
+ * are sent as one batch.
+ * A connection stops reading while too many of its messages wait for a worker.
+ */
+public class SelectorFrontEnd {
+    private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
+
+    // a connection is not read while this many messages wait for a worker
+    private static final int MAX_PENDING = 16;
+    // returned to a worker when the client is gone and all of its messages are handled
+    private static final ByteBuffer DISCONNECTED = ByteBuffer.allocate(0);
+
+    private final IoThread[] ioThreads;
+    private final ExecutorService workers;
+    private final Function<ResponseWriter, RequestHandler> handlers;
+    private int next = 0;
+
+    /**
+     *
+     * @param name the prefix of the names of the I/O threads
+     * @param ioThreads the number of threads that read from the connections
+     * @param workers the number of threads that handle the messages
+     * @param handlers creates the handler of an accepted connection, the handler sends its replies with the writer
+     * @throws IOException if a selector could not be opened
+     */
+    public SelectorFrontEnd(String name, int ioThreads, int workers, Function<ResponseWriter, RequestHandler> handlers) throws IOException {
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers));
+        this.handlers = handlers;
+        this.ioThreads = new IoThread[Math.max(1, ioThreads)];
+        for (int i = 0; i < this.ioThreads.length; i++) {
+            this.ioThreads[i] = new IoThread(name + "-io-" + i);
+            this.ioThreads[i].start();
+        }
+    }
+
+    /**
+     * serves an accepted connection, the I/O threads take turns
+     * @param channel the accepted connection
+     * @throws IOException if the channel could not be switched to non-blocking mode
+     */
+    public void register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        ResponseWriter writer = new ResponseWriter(channel);
+        RequestHandler handler = handlers.apply(writer);
+        IoThread io = ioThreads[next];
+        next = (next + 1) % ioThreads.length;
+        io.execute(() -> io.add(new Connection(channel, writer, handler, io)));
+    }
+
+    /**
+     * Reads from the connections that are registered with its selector.
+     * Other threads pass changes of the registrations as tasks, because a selector blocks
+     * registrations while it waits.
+     */
+    private class IoThread extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        public IoThread(String name) throws IOException {
+            super(name);
+            this.selector = Selector.open();
+        }
+
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void add(Connection connection) {
+            try {
+                connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException io) {
+                LOGGER.error("Unable to register connection", io);
+                connection.close();
+                return;
+            }
+            // the greeting is sent by a worker
+            connection.schedule(new ArrayList<ByteBuffer>(), false);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null)
+                        task.run();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable())
+                            ((Connection) key.attachment()).read();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Error in I/O thread " + getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A connection collects the received bytes until messages are complete and
+     * passes them to its handler on a worker.
+     */
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final ResponseWriter writer;
+        private final RequestHandler handler;
+        private final IoThread io;
+        private SelectionKey key;
+        private final FrameDecoder decoder = new FrameDecoder();
+        // only used by the worker that is scheduled
+        private boolean opened = false;
+
+        // guarded by this
+        private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+        private boolean scheduled = false;
+        private boolean paused = false;
+        private boolean disconnected = false;
+        private boolean closed = false;
+
+        public Connection(SocketChannel channel, ResponseWriter writer, RequestHandler handler, IoThread io) {
+            this.channel = channel;
+            this.writer = writer;
+            this.handler = handler;
+            this.io = io;
+        }
+
+        /**
+         * called by the I/O thread when the channel is readable
+         */
+        private void read() {
+            List<ByteBuffer> messages = new ArrayList<ByteBuffer>();
+            boolean eof;
+            try {
+                eof = decoder.fill(channel) < 0;
+                ByteBuffer frame;
+                while ((frame = decoder.next()) != null) {
+                    // the buffer of the decoder is reused, the worker gets a copy of the message
+                    byte[] message = new byte[frame.remaining()];
+                    frame.get(message);
+                    messages.add(ByteBuffer.wrap(message));
+                }
+            } catch (IOException | RuntimeException e) {
+                // the client is gone or the stream cannot be parsed any further
+                eof = true;
+            }
+
+            if (eof) {
+                key.cancel();
+                decoder.release();
+            }
+            if (schedule(messages, eof))
+                key.interestOps(0);
+        }
+
+        /**
+         * queues the messages and passes the connection to a worker if none is handling it
+         * @return true if the connection has to stop reading
+         */
+        private synchronized boolean schedule(List<ByteBuffer> messages, boolean eof) {
+            if (closed)
+                return false;
+            pending.addAll(messages);
+            disconnected |= eof;
+            if (!scheduled) {
+                scheduled = true;
+                workers.execute(this);
+            }
+            if (!disconnected && pending.size() >= MAX_PENDING) {
+                paused = true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return if more messages wait after the one that is handled
+         */
+        private synchronized boolean morePending() {
+            return !pending.isEmpty();
+        }
+
+        /**
+         * @return the next message, DISCONNECTED if the connection has to be closed,
+         * null if the worker is done
+         */
+        private synchronized ByteBuffer poll() {
+            ByteBuffer message = pending.poll();
+            if (paused && pending.size() < MAX_PENDING/2) {
+                paused = false;
+                io.execute(() -> {
+                    if (key.isValid())
+                        key.interestOps(SelectionKey.OP_READ);
+                });
+            }
+            if (message == null) {
+                // the connection stays scheduled, so that no other worker starts before it is closed
+                if (disconnected)
+                    return DISCONNECTED;
+                scheduled = false;
+            }
+            return message;
+        }
+
+        private void close() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                pending.clear();
+            }
+            handler.close();
+            try {
+                // e.g. the error reply to a failed authentication may still be in the batch
+                writer.close();
+            } catch (IOException io) {
+                LOGGER.error("Unable to close connection", io);
+            }
+            // the decoder belongs to the I/O thread, its borrowed buffer goes back to the pool there
+            io.execute(() -> {
+                if (key != null)
+                    key.cancel();
+                decoder.release();
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!opened) {
+                    opened = true;
+                    handler.open();
+                }
+                ByteBuffer message;
+                while ((message = poll()) != null) {
+                    if (message == DISCONNECTED) {
+                        close();
+                        return;
+                    }
+                    // the reply to the last pending message sends the batch
+                    writer.setBatching(morePending());
+                    if (!handler.handle(message)) {
+                        close();
+                        return;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Closing connection after an error", e);
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package cache;
+
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Switches between the LRU, LFU and FIFO strategy at runtime
+ * Ghost caches of every strategy simulate the requests for a sample of the keys. They only
+ * store the keys, so they are cheap compared to the cache. After every epoch the hits of the
+ * simulations are compared and the tuples move into a cache of the winning strategy if it
+ * clearly beats the current one.
+ */
+public class AdaptiveCache implements Cache {
+    /**
+     * the strategies that are simulated, in the order of the hit counters
+     */
+    public static final String[] POLICIES = { "LRU", "LFU", "FIFO" };
+
+    // the ghost caches simulate about this many keys
+    private static final int GHOST_SIZE = 1024;
+    // a strategy has to hit this many percent more of the sampled requests to be chosen
+    private static final int SWITCH_MARGIN = 2;
+
+    /**
+     *
+     * @param s the maximum number of elements the cache can store
+     */
+    public AdaptiveCache(int s) {
+        this(s, 0);
+    }
+
+    /**
+     *
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    public AdaptiveCache(int s, long w) {
+        maxSize = s;
+        maxWeight = w;
+        // with a byte budget, assume tuples of about 1000 bytes
+        long capacity = (w > 0) ? Math.max(w/1000, 1) : Math.max(s, 1);
+        sampleRate = (int)Math.max(1, Long.highestOneBit(capacity/GHOST_SIZE));
+        int ghost_size = (int)Math.max(1, capacity/sampleRate);
+        ghosts = new Cache[] { new LRUCache(ghost_size), new LFUCache(ghost_size), new FIFOCache(ghost_size) };
+        epochLength = Math.max(1000, 2*ghost_size);
+        current = create(policy);
+    }
+
+    private final Cache[] ghosts;
+    private final long[] hits = new long[POLICIES.length];
+    private final int[] epochHits = new int[POLICIES.length];
+    private int maxSize;
+    private long maxWeight;
+    private int sampleRate;
+    private int epochLength;
+    private int epochRequests = 0;
+    private long requests = 0;
+    private int policy = 0;
+    private int switches = 0;
+    private Cache current;
+
+    private Cache create(int p) {
+        if (POLICIES[p].equals("LFU"))
+            return new LFUCache(maxSize, maxWeight);
+        else if (POLICIES[p].equals("FIFO"))
+            return new FIFOCache(maxSize, maxWeight);
+        return new LRUCache(maxSize, maxWeight);
+    }
+
+    /**
+     *
+     * @return if the requests for the key are simulated
+     */
+    private boolean sampled(String key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return ((h >>> 16) & (sampleRate-1)) == 0;
+    }
+
+    /**
+     * references a key in a ghost cache
+     * @return if the key was in the ghost cache
+     */
+    private static boolean access(Cache ghost, String key) {
+        if (ghost.get(key) != null)
+            return true;
+        if (ghost.put(key, "", false) == StatusType.PUT_ERROR)
+            ghost.replace(key, "", false);
+        return false;
+    }
+
+    /**
+     * moves all tuples into a cache of the strategy that hit most often in the last epoch
+     */
+    private void endEpoch() {
+        int best = policy;
+        for (int p = 0; p < POLICIES.length; p++) {
+            if (epochHits[p] > epochHits[best])
+                best = p;
+        }
+        if (best != policy && (epochHits[best]-epochHits[policy])*100 > SWITCH_MARGIN*epochRequests) {
+            // the tuples are inserted in the replacement order of the old cache
+            Cache next = create(best);
+            CacheEntry entry = current.iteratorStart();
+            while (entry != null) {
+                if (!entry.isDeleted())
+                    next.put(entry.getKey(), entry.getValue(), entry.isDirty());
+                entry = current.iteratorNext();
+            }
+            current = next;
+            policy = best;
+            switches++;
+        }
+
+        epochRequests = 0;
+        for (int p = 0; p < POLICIES.length; p++)
+            epochHits[p] = 0;
+    }
+
+    /**
+     *
+     * @return the strategy that is used right now
+     */
+    public String getPolicy() {
+        return POLICIES[policy];
+    }
+
+    /**
+     *
+     * @return the number of times the strategy was changed
+     */
+    public int getSwitches() {
+        return switches;
+    }
+
+    /**
+     *
+     * @return the number of sampled get requests
+     */
+    public long getSimulatedRequests() {
+        return requests;
+    }
+
+    /**
+     *
+     * @param p the index of the strategy in POLICIES
+     * @return the number of sampled get requests that the simulation of the strategy could serve
+     */
+    public long getSimulatedHits(int p) {
+        return hits[p];
+    }
+
+    @Override
+    public int size() {
+        return current.size();
+    }
+
+    @Override
+    public long weight() {
+        return current.weight();
+    }
+
+    @Override
+    public Boolean isOverweight() {
+        return current.isOverweight();
+    }
+
+    /**
+     * changes the capacity of the cache, the ghost caches keep their size
+     */
+    @Override
+    public void setCapacity(int s, long w) {
+        maxSize = s;
+        maxWeight = w;
+        current.setCapacity(s, w);
+    }
+
+    @Override
+    public StatusType put(String key, String value, Boolean is_dirty) {
+        // clean tuples are loaded after get() missed, the access was already simulated there
+        if (is_dirty && sampled(key)) {
+            for (Cache ghost : ghosts)
+                access(ghost, key);
+        }
+        return current.put(key, value, is_dirty);
+    }
+
+    @Override
+    public String get(String key) {
+        // the strategy only changes here, never between getFirst() and replace()
+        if (sampled(key)) {
+            for (int p = 0; p < ghosts.length; p++) {
+                if (access(ghosts[p], key)) {
+                    hits[p]++;
+                    epochHits[p]++;
+                }
+            }
+            requests++;
+            if (++epochRequests >= epochLength)
+                endEpoch();
+        }
+        return current.get(key);
+    }
+
+    @Override
+    public CacheEntry replace(String key, String value, Boolean is_dirty) {
+        return current.replace(key, value, is_dirty);
+    }
+
+    @Override
+    public Boolean containsKey(String key) {
+        return current.containsKey(key);
+    }
+
+    @Override
+    public CacheEntry getFirst() {
+        return current.getFirst();
+    }
+
+    @Override
+    public CacheEntry evict() {
+        return current.evict();
+    }
+
+    @Override
+    public CacheEntry iteratorStart() {
+        return current.iteratorStart();
+    }
+
+    @Override
+    public CacheEntry iteratorNext() {
+        return current.iteratorNext();
+    }
+
+    @Override
+    public void vacuum() {
+        current.vacuum();
+    }
+}
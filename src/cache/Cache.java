@@ -1,8 +1,11 @@
 package cache;
 
 import common.messages.KVMessage.StatusType;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Set;
 import java.util.Map;
+import java.util.function.Predicate;
 
 public interface Cache {
     /**
@@ -11,12 +14,34 @@ public interface Cache {
      */
     public int size();
     
+    /**
+     *
+     * @return the sum of the weights (key plus value size) of the elements in the cache
+     */
+    public long weight();
+    
+    /**
+     *
+     * @return true if the elements exceed the capacity of the cache (the maximum number of elements
+     * or the byte budget), this can happen when an update makes a value larger or the capacity was reduced
+     */
+    public Boolean isOverweight();
+    
+    /**
+     * change the capacity of the cache, no elements are removed
+     * the caller evicts with evict() until isOverweight() returns false
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    public void setCapacity(int s, long w);
+    
     /**
      * insert a KV-tuple into the cache or update if it is already there
      * @param key the key to be inserted
      * @param value the value to be inserted
      * @param is_dirty indicates if the new cache entry is dirty
-     * @return PUT_SUCCESS, UPDATE_SUCCESS, DELETE_SUCCESS or PUT_ERROR
+     * @return PUT_SUCCESS, UPDATE_SUCCESS, DELETE_SUCCESS or PUT_ERROR if there is
+     * no room for the new tuple (too many elements or not enough bytes left in the budget)
      */
     public StatusType put(String key, String value, Boolean is_dirty);
     
@@ -38,6 +63,13 @@ public interface Cache {
      */
     public CacheEntry replace(String key, String value, Boolean is_dirty);
     
+    /**
+     * remove the KV-tuple that getFirst() returns
+     * this assumes that the cache is non-empty!
+     * @return the cache entry that was removed
+     */
+    public CacheEntry evict();
+    
     /**
      * check if the cache contains a given key
      * @param key the key to be checked
@@ -67,4 +99,23 @@ public interface Cache {
      * remove all elements that are flagged as deleted
      */         
     public void vacuum();
+    
+    /**
+     * copy the entries whose keys match a filter
+     * the copies do not change with the cache, so the caller only has to lock the cache
+     * while the snapshot is taken and can iterate it afterwards without blocking get and put
+     * @param filter selects the keys to be copied
+     * @return an iterator over copies of the matching entries that are not flagged as deleted,
+     * in the order of iteratorStart()
+     */
+    public default Iterator<CacheEntry> snapshot(Predicate<String> filter) {
+        ArrayList<CacheEntry> entries = new ArrayList<CacheEntry>();
+        CacheEntry entry = iteratorStart();
+        while (entry != null) {
+            if (!entry.isDeleted() && filter.test(entry.getKey()))
+                entries.add(new CacheEntry(entry.getKey(), entry.getValue(), entry.isDirty()));
+            entry = iteratorNext();
+        }
+        return entries.iterator();
+    }
 }
@@ -13,6 +13,16 @@ public class CacheEntry {
         value = v;
         dirty = b;
         deleted = false;
+        weight = (v == null) ? 0 : utf8Length(k) + utf8Length(v);
+    }
+    
+    /**
+     * for entries that keep their value elsewhere, they have to override the value methods
+     * @param k the key
+     * @param b indicates if the entry is dirty or not
+     */
+    protected CacheEntry(String k, Boolean b) {
+        this(k, null, b);
     }
     
     /**
@@ -22,6 +32,7 @@ public class CacheEntry {
     public void setValue(String v) {
         if (!value.equals(v))
             dirty = true;
+        weight += utf8Length(v) - utf8Length(value);
         value = v;
     }
     
@@ -41,6 +52,32 @@ public class CacheEntry {
         return value;
     }
     
+    /**
+     *
+     * @return the number of bytes the entry accounts for in a cache with a byte budget (UTF-8 bytes of key and value)
+     */
+    public long getWeight() {
+        return weight;
+    }
+    
+    /**
+     * counts the bytes of the UTF-8 encoding of a string without encoding it
+     * @param s the string
+     * @return the number of bytes
+     */
+    static int utf8Length(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800)
+                // a surrogate pair takes 4 bytes, 2 for each of its chars
+                length += Character.isSurrogate(c) ? 1 : 2;
+            else if (c >= 0x80)
+                length++;
+        }
+        return length;
+    }
+    
     /**
      *
      * @return if the entry is dirty
@@ -49,6 +86,20 @@ public class CacheEntry {
         return dirty;
     }
  
+    /**
+     * marks this entry as modified
+     */
+    protected void setDirty() {
+        dirty = true;
+    }
+ 
+    /**
+     * marks this entry as clean after it was written to disk
+     */
+    public void setClean() {
+        dirty = false;
+    }
+ 
     /**
      * marks this entry to be deleted later
      */
@@ -68,4 +119,5 @@ public class CacheEntry {
     private String value;
     private Boolean dirty;
     private Boolean deleted;
+    private long weight;
 }
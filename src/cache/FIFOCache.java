@@ -18,12 +18,24 @@ public class FIFOCache implements Cache {
      * @param s the maximum number of elements the cache can store
      */     
     public FIFOCache(int s) {
+        this(s, 0);
+    }
+    
+    /**
+     *
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */     
+    public FIFOCache(int s, long w) {
         maxSize = s;
+        maxWeight = w;
     }
     
     private final LinkedList<CacheEntry> queue = new LinkedList<CacheEntry>();
     private final HashMap<String,CacheEntry> indexMap = new HashMap<String,CacheEntry>();
     private int maxSize;
+    private long maxWeight;
+    private long weight = 0;
     private ListIterator<CacheEntry> itr;
     
     @Override 
@@ -32,6 +44,9 @@ public class FIFOCache implements Cache {
         queue.removeIf(pred);  
             
         indexMap.values().removeIf(pred);
+        weight = 0;
+        for (CacheEntry e : queue)
+            weight += e.getWeight();
     }    
     
     @Override
@@ -52,38 +67,73 @@ public class FIFOCache implements Cache {
         return queue.size();
     }
     
+    @Override
+    public long weight() {
+        return weight;
+    }
+    
+    @Override
+    public Boolean isOverweight() {
+        return indexMap.size() > maxSize || (maxWeight > 0 && weight > maxWeight);
+    }
+
+    /**
+     * changes the capacity, the caller evicts while isOverweight() returns true
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    @Override
+    public void setCapacity(int s, long w) {
+        maxSize = s;
+        maxWeight = w;
+    }
+    
     @Override
     public StatusType put(String key, String value, Boolean is_dirty) {
         // check if key is in the cache
         CacheEntry tuple = indexMap.get(key);
         if (tuple != null) {
+            weight -= tuple.getWeight();
             tuple.setValue(value);
+            weight += tuple.getWeight();
             return StatusType.PUT_UPDATE;
         }
         
         // check if cache is full
-        if (indexMap.size() == maxSize)
+        tuple = new CacheEntry(key,value,is_dirty);
+        if (indexMap.size() >= maxSize || (maxWeight > 0 && !queue.isEmpty() && weight+tuple.getWeight() > maxWeight))
             return StatusType.PUT_ERROR;
         
         // insert
-        tuple = new CacheEntry(key,value,is_dirty);
         indexMap.put(key, tuple);
         queue.addLast(tuple);
+        weight += tuple.getWeight();
         return StatusType.PUT_SUCCESS;
     }
     
     @Override
     public CacheEntry replace(String key, String value, Boolean is_dirty) {
+        // remove the first tuple
+        CacheEntry replaced_tuple = evict();
+        
+        // insert new tuple
+        CacheEntry tuple = new CacheEntry(key,value,is_dirty);
+        indexMap.put(key, tuple);
+        queue.addLast(tuple);
+        weight += tuple.getWeight();
+        return replaced_tuple;
+    }  
+    
+    @Override
+    public CacheEntry evict() {
         // remove from queue
         CacheEntry replaced_tuple = queue.removeFirst();
         
         // remove from map
         indexMap.remove(replaced_tuple.getKey());
-        
-        // insert new tuple
-        put(key, value, is_dirty);
+        weight -= replaced_tuple.getWeight();
         return replaced_tuple;
-    }  
+    }
     
     @Override
     public String get(String key) {
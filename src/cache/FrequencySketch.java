@@ -0,0 +1,94 @@
+package cache;
+
+/**
+ * Count-min sketch that estimates how often a key was accessed recently
+ * Every key is counted in 4 rows of 4 bit counters, the estimate is the smallest of them.
+ * When the number of counted accesses reaches 10 times the capacity, all counters are
+ * halved, so that the estimates follow changes of the popularity of keys.
+ */
+public class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0xc3a5c85d, 0x85ebca6b, 0x27d4eb2f };
+    // halving a word must not shift the lowest bit of a counter into the one below
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    // 16 counters of 4 bit per word
+    private final long[][] table;
+    private final int mask;
+    private final int sample_size;
+    private int additions = 0;
+
+    /**
+     *
+     * @param capacity the number of keys whose frequencies should be told apart
+     */
+    public FrequencySketch(int capacity) {
+        int width = Integer.highestOneBit(Math.max(capacity, 8)-1) << 1;
+        table = new long[DEPTH][(width+15) >>> 4];
+        mask = width-1;
+        sample_size = 10*Math.max(capacity, 1);
+    }
+
+    /**
+     * counts an access to a key
+     * @param key the accessed key
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            if (counter(i, index) < MAX_COUNT) {
+                table[i][index >>> 4] += 1L << shiftOf(index);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sample_size)
+            reset();
+    }
+
+    /**
+     *
+     * @param key the key to look for
+     * @return the estimated number of recent accesses to the key, at most 15
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++)
+            frequency = Math.min(frequency, counter(i, indexOf(hash, i)));
+        return frequency;
+    }
+
+    /**
+     * halves all counters
+     */
+    private void reset() {
+        for (long[] row : table) {
+            for (int j = 0; j < row.length; j++)
+                row[j] = (row[j] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int counter(int row, int index) {
+        return (int) (table[row][index >>> 4] >>> shiftOf(index)) & MAX_COUNT;
+    }
+
+    private static int shiftOf(int index) {
+        return (index & 15) << 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[row];
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        return h;
+    }
+}
@@ -2,236 +2,327 @@ package cache;
 
 import common.messages.KVMessage.StatusType;
 import java.util.HashMap;
-import java.util.ArrayList;
-import java.util.ListIterator;
-import java.util.function.Predicate;
 
 /**
- * We implemented the LFU-cache using a binary min-heap
- * The heap is represented by an ArrayList
+ * We implemented the LFU-cache using a doubly-linked list of frequency buckets
+ * Every bucket holds the nodes that were referenced equally often in a doubly-linked list,
+ * with the most recently used node at the head. The buckets are sorted by frequency,
+ * so the least frequently used node is the tail of the first bucket and every operation
+ * takes constant time.
+ * The frequencies are halved after every 10*maxSize references, so that keys which are
+ * not used anymore lose their priority.
  * A HashMap is additionally used to provide fast lookup
- */   
+ */
 public class LFUCache implements Cache {
     /**
-     * A heap node contains
+     * A list node contains
      * entry: the cache entry represented by this node
-     * priority: The number of times the tuple was referenced
-     * idx: The position of the node in nodeList
-     */       
-    private class HeapNode {
-        public HeapNode(CacheEntry e, int i) {
-            priority = 1;
-            idx = i;
+     * bucket: the bucket of the number of times the tuple was referenced
+     */
+    private class ListNode {
+        public ListNode(CacheEntry e) {
             entry = e;
         }
-        
-        public void incPriority() {
-            priority++;
-        }
-        
-        public Boolean lessThan(HeapNode node) {
-            return this.priority < node.priority;
-        }
-        
+
         public void setValue(String v) {
             entry.setValue(v);
         }
-        
+
         public String getValue() {
             return entry.getValue();
         }
-        
-        public int idx;
-        public int priority;
+
         public CacheEntry entry;
+        public FrequencyBucket bucket;
+        public ListNode next=null;
+        public ListNode prev=null;
     }
-    
+
+    /**
+     * A frequency bucket contains all nodes with the same frequency
+     */
+    private class FrequencyBucket {
+        public FrequencyBucket(int f) {
+            frequency = f;
+        }
+
+        public void addFirst(ListNode node) {
+            node.bucket = this;
+            node.prev = null;
+            node.next = head;
+            if (head != null)
+                head.prev = node;
+            head = node;
+            if (tail == null)
+                tail = node;
+        }
+
+        public void remove(ListNode node) {
+            if (node.prev != null)
+                node.prev.next = node.next;
+            else
+                head = node.next;
+            if (node.next != null)
+                node.next.prev = node.prev;
+            else
+                tail = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        public int frequency;
+        public ListNode head=null;
+        public ListNode tail=null;
+        public FrequencyBucket next=null;
+        public FrequencyBucket prev=null;
+    }
+
     /**
      *
      * @param s the maximum number of elements the cache can store
-     */       
+     */
     public LFUCache(int s) {
-        maxSize = s;
+        this(s, 0);
+    }
+
+    /**
+     *
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    public LFUCache(int s, long w) {
+        setCapacity(s, w);
     }
-    
-    private final ArrayList<HeapNode> nodeList = new ArrayList<HeapNode>();
-    private final HashMap<String,HeapNode> indexMap = new HashMap<String,HeapNode>();
+
+    private final HashMap<String,ListNode> indexMap = new HashMap<String,ListNode>();
     private int maxSize;
-    private ListIterator<HeapNode> itr;
-    
-    private void swap(HeapNode i_node, HeapNode j_node) {
-        int i = i_node.idx;
-        
-        // swap elements in the list
-        nodeList.set(i, j_node);
-        nodeList.set(j_node.idx, i_node);  
-        
-        // swap index information
-        i_node.idx = j_node.idx;
-        j_node.idx = i;
-    }
-    
-    private void bubbleDown(HeapNode node) {
-        HeapNode left = left(node.idx);
-        HeapNode right = right(node.idx);
-        while ((left != null && node.priority > left.priority) || (right != null && node.priority > right.priority)) {
-            // reaching this point, left cannot be null!
-            if (right == null || left.priority < right.priority)
-                swap(node, left);
-            else
-                swap(node, right);
-            
-            left = left(node.idx);
-            right = right(node.idx);
-        }
+    private long maxWeight;
+    private long weight = 0;
+    private int agingPeriod;
+    private int references = 0;
+    private FrequencyBucket firstBucket=null;
+    private FrequencyBucket itrBucket;
+    private ListNode itr;
+
+    /**
+     * inserts a new bucket after the given one
+     * @param prev the bucket before the new one, or null to insert at the front
+     */
+    private FrequencyBucket insertBucket(FrequencyBucket prev, int frequency) {
+        FrequencyBucket bucket = new FrequencyBucket(frequency);
+        bucket.prev = prev;
+        bucket.next = (prev == null) ? firstBucket : prev.next;
+        if (bucket.next != null)
+            bucket.next.prev = bucket;
+        if (prev == null)
+            firstBucket = bucket;
+        else
+            prev.next = bucket;
+        return bucket;
+    }
+
+    private void removeBucket(FrequencyBucket bucket) {
+        if (bucket.prev != null)
+            bucket.prev.next = bucket.next;
+        else
+            firstBucket = bucket.next;
+        if (bucket.next != null)
+            bucket.next.prev = bucket.prev;
     }
-    
-    private void bubbleUp(HeapNode node) {
-        HeapNode parent = parent(node.idx);
-        while (parent != null && node.priority < parent.priority) {
-            swap(node, parent);
-            parent = parent(node.idx);
-        }        
+
+    /**
+     * removes a node from its bucket, drops the bucket if it becomes empty
+     */
+    private void unlink(ListNode node) {
+        FrequencyBucket bucket = node.bucket;
+        bucket.remove(node);
+        if (bucket.head == null)
+            removeBucket(bucket);
     }
-    
-    private void incPriority(HeapNode node) {
-        node.incPriority();
-        bubbleDown(node);
+
+    /**
+     * moves a node into the bucket of the next higher frequency
+     */
+    private void incPriority(ListNode node) {
+        FrequencyBucket bucket = node.bucket;
+        FrequencyBucket target = bucket.next;
+        if (target == null || target.frequency != bucket.frequency+1)
+            target = insertBucket(bucket, bucket.frequency+1);
+        unlink(node);
+        target.addFirst(node);
+
+        if (++references >= agingPeriod)
+            age();
+    }
+
+    /**
+     * inserts a new node with frequency 1
+     */
+    private void insert(ListNode node) {
+        FrequencyBucket bucket = firstBucket;
+        if (bucket == null || bucket.frequency != 1)
+            bucket = insertBucket(null, 1);
+        bucket.addFirst(node);
+        indexMap.put(node.entry.getKey(), node);
+        weight += node.entry.getWeight();
+    }
+
+    /**
+     * halves the frequencies of all nodes
+     * buckets that end up with the same frequency are merged, the nodes of the more
+     * frequently used bucket are put in front
+     */
+    private void age() {
+        references = 0;
+        FrequencyBucket bucket = firstBucket;
+        while (bucket != null) {
+            FrequencyBucket next = bucket.next;
+            bucket.frequency = Math.max(1, bucket.frequency/2);
+            if (bucket.prev != null && bucket.prev.frequency == bucket.frequency) {
+                // append the nodes of the previous bucket to this one
+                FrequencyBucket merged = bucket.prev;
+                for (ListNode node = merged.head; node != null; node = node.next)
+                    node.bucket = bucket;
+                bucket.tail.next = merged.head;
+                merged.head.prev = bucket.tail;
+                bucket.tail = merged.tail;
+                removeBucket(merged);
+            }
+            bucket = next;
+        }
     }
-    
+
     @Override
     public void vacuum() {
-        // remove elements
-        Predicate<HeapNode> pred = n-> n.entry.isDeleted();
-        nodeList.removeIf(pred);
-        
-        indexMap.values().removeIf(pred);    
-        
-        if (nodeList.isEmpty())
-          return;      
-        
-        // update idx of all nodes
-        for (int i = 0; i < nodeList.size(); i++)
-            nodeList.get(i).idx = i;
-        
-        // rebuild the heap
-        for (int i = nodeList.size()/2-1; i>=0; --i)
-          heapify(i);
-    }
-    
+        indexMap.values().removeIf(n-> n.entry.isDeleted());
+
+        FrequencyBucket bucket = firstBucket;
+        while (bucket != null) {
+            FrequencyBucket next = bucket.next;
+            ListNode node = bucket.head;
+            while (node != null) {
+                ListNode next_node = node.next;
+                if (node.entry.isDeleted()) {
+                    unlink(node);
+                    weight -= node.entry.getWeight();
+                }
+                node = next_node;
+            }
+            bucket = next;
+        }
+    }
+
     @Override
     public CacheEntry iteratorStart() {
-        itr = nodeList.listIterator();
+        itrBucket = firstBucket;
+        itr = (itrBucket == null) ? null : itrBucket.tail;
         return iteratorNext();
     }
-    
+
     @Override
     public CacheEntry iteratorNext() {
-        if (!itr.hasNext())
+        while (itr == null && itrBucket != null) {
+            itrBucket = itrBucket.next;
+            itr = (itrBucket == null) ? null : itrBucket.tail;
+        }
+        if (itr == null)
             return null;
-        return itr.next().entry;
+
+        CacheEntry entry = itr.entry;
+        itr = itr.prev;
+        return entry;
     }
-    
+
     @Override
     public int size() {
-        return nodeList.size();
+        return indexMap.size();
     }
-    
+
+    @Override
+    public long weight() {
+        return weight;
+    }
+
+    @Override
+    public Boolean isOverweight() {
+        return indexMap.size() > maxSize || (maxWeight > 0 && weight > maxWeight);
+    }
+
+    /**
+     * changes the capacity, the caller evicts while isOverweight() returns true
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    @Override
+    public void setCapacity(int s, long w) {
+        maxSize = s;
+        maxWeight = w;
+        // with a byte budget, assume tuples of about 1000 bytes
+        long capacity = (w > 0) ? Math.max(w/1000, 1) : Math.max(s, 1);
+        agingPeriod = (int)Math.min(10*capacity, Integer.MAX_VALUE);
+    }
+
     @Override
     public StatusType put(String key, String value, Boolean is_dirty) {
         // check if key is in the cache
-        HeapNode node = indexMap.get(key);
+        ListNode node = indexMap.get(key);
         if (node != null) {
+            weight -= node.entry.getWeight();
             node.setValue(value);
+            weight += node.entry.getWeight();
             incPriority(node);
             return StatusType.PUT_UPDATE;
         }
-        
+
         // check if cache is full
-        if (indexMap.size() == maxSize)
+        node = new ListNode(new CacheEntry(key,value,is_dirty));
+        if (indexMap.size() >= maxSize || (maxWeight > 0 && firstBucket != null && weight+node.entry.getWeight() > maxWeight))
             return StatusType.PUT_ERROR;
-        
+
         // insert
-        node = new HeapNode(new CacheEntry(key,value,is_dirty), nodeList.size());
-        indexMap.put(key,node);
-        nodeList.add(node);
-        bubbleUp(node);
+        insert(node);
         return StatusType.PUT_SUCCESS;
     }
-    
+
     @Override
     public CacheEntry replace(String key, String value, Boolean is_dirty) {
-        // retrieve current min
-        CacheEntry root = nodeList.get(0).entry;
-        
-        // replace in node list
-        HeapNode node = new HeapNode(new CacheEntry(key,value,is_dirty), 0);
-        nodeList.set(0,node);
-        
-        // replace in index map
-        indexMap.remove(root.getKey());
-        indexMap.put(key, node);
-        
-        return root;
-    }
-    
+        // NOTE: we assume that this is only called when the cache is full
+        CacheEntry replaced_entry = evict();
+
+        // insert new key
+        insert(new ListNode(new CacheEntry(key,value,is_dirty)));
+        return replaced_entry;
+    }
+
+    @Override
+    public CacheEntry evict() {
+        // remove the least recently used node of the lowest frequency
+        ListNode replaced_node = firstBucket.tail;
+        unlink(replaced_node);
+        indexMap.remove(replaced_node.entry.getKey());
+        weight -= replaced_node.entry.getWeight();
+        return replaced_node.entry;
+    }
+
     @Override
     public String get(String key) {
-        HeapNode node = indexMap.get(key);
+        ListNode node = indexMap.get(key);
         if (node == null)
             return null;
-        
+
         incPriority(node);
         return node.getValue();
     }
-    
+
     @Override
     public Boolean containsKey(String key) {
         return indexMap.containsKey(key);
-    }    
-    
-    @Override
-    public CacheEntry getFirst() {
-        HeapNode root = nodeList.get(0);
-        if (root == null)
-            return null;
-        return root.entry;
-    }    
-    
-    private void heapify(int index) {
-        HeapNode left = left(index);
-        if(left == null)
-            return;
-        int parentIndex = index;
-        if( left.priority < nodeList.get(parentIndex).priority )
-            parentIndex = left.idx;
-        HeapNode right = right(index);
-        if( right != null && right.priority < nodeList.get(parentIndex).priority )
-            parentIndex = right.idx;
-        if(parentIndex != index) {
-            swap(nodeList.get(parentIndex), nodeList.get(index));
-            heapify(parentIndex);
-        }
-    }    
-    
-    private HeapNode parent(int i) {
-        int idx = (i - 1) / 2;
-        if (idx < 0)
-            return null;
-        return nodeList.get(idx);
     }
 
-    private HeapNode left(int i) {
-        int idx = 2*i + 1;
-        if (idx >= nodeList.size())
+    @Override
+    public CacheEntry getFirst() {
+        if (firstBucket == null)
             return null;
-        return nodeList.get(idx);
+        return firstBucket.tail.entry;
     }
-
-    private HeapNode right(int i) {
-        int idx = 2*i + 2;
-        if (idx >= nodeList.size())
-            return null;        
-        return nodeList.get(idx);
-    }    
 }
@@ -33,11 +33,23 @@ public class LRUCache implements Cache {
      * @param s the maximum number of elements the cache can store
      */          
     public LRUCache(int s) {
+        this(s, 0);
+    }
+    
+    /**
+     *
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */          
+    public LRUCache(int s, long w) {
         maxSize = s;
+        maxWeight = w;
     }
 
     private final HashMap<String,ListNode> indexMap = new HashMap<String,ListNode>();
     private int maxSize;
+    private long maxWeight;
+    private long weight = 0;
     private ListNode listHead=null;
     private ListNode listTail=null;
     private ListNode itr;
@@ -79,6 +91,7 @@ public class LRUCache implements Cache {
                     listTail = node.next;
                 if (node == listHead)
                     listHead = node.prev;
+                weight -= node.entry.getWeight();
             }
             node = node.next;
         } 
@@ -106,22 +119,50 @@ public class LRUCache implements Cache {
         return indexMap.size();
     }    
     
+    @Override
+    public long weight() {
+        return weight;
+    }
+    
+    @Override
+    public Boolean isOverweight() {
+        return indexMap.size() > maxSize || (maxWeight > 0 && weight > maxWeight);
+    }
+
+    /**
+     * changes the capacity, the caller evicts while isOverweight() returns true
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    @Override
+    public void setCapacity(int s, long w) {
+        maxSize = s;
+        maxWeight = w;
+    }
+    
     @Override
     public StatusType put(String key, String value, Boolean is_dirty) {
         // check if key is in the cache
         ListNode node = indexMap.get(key);
         if (node != null) {
+            weight -= node.entry.getWeight();
             node.setValue(value);
+            weight += node.entry.getWeight();
             reference(node);
             return StatusType.PUT_UPDATE;
         }
         
         // check if cache is full
-        if (indexMap.size() == maxSize)
+        node = new ListNode(new CacheEntry(key,value,is_dirty));
+        if (indexMap.size() >= maxSize || (maxWeight > 0 && listHead != null && weight+node.entry.getWeight() > maxWeight))
             return StatusType.PUT_ERROR;
         
+        insert(node);
+        return StatusType.PUT_SUCCESS;
+    }
+    
+    private void insert(ListNode node) {
         // insert at the head of the list
-        node = new ListNode(new CacheEntry(key,value,is_dirty));
         node.prev = listHead;
         if (listHead != null)
             listHead.next = node;
@@ -130,25 +171,36 @@ public class LRUCache implements Cache {
             listTail = node;
         
         // insert into map
-        indexMap.put(key,node);
-        return StatusType.PUT_SUCCESS;
+        indexMap.put(node.entry.getKey(),node);
+        weight += node.entry.getWeight();
     }
     
     @Override
     public CacheEntry replace(String key, String value, Boolean is_dirty) {
         // NOTE: we assume that this is only called when the cache is full
         // remove the node at the tail
+        CacheEntry replaced_entry = evict();
+        
+        // insert new key
+        insert(new ListNode(new CacheEntry(key,value,is_dirty)));
+        return replaced_entry;
+    }      
+    
+    @Override
+    public CacheEntry evict() {
         ListNode replaced_node = listTail;
         indexMap.remove(replaced_node.entry.getKey());
+        weight -= replaced_node.entry.getWeight();
         if (listTail != listHead) {
             listTail.next.prev = null;
             listTail = listTail.next;
         }
-        
-        // insert new key
-        put(key,value,is_dirty);
+        else {
+            listTail = null;
+            listHead = null;
+        }
         return replaced_node.entry;
-    }      
+    }
     
     @Override
     public String get(String key) {
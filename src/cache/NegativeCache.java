@@ -0,0 +1,70 @@
+package cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers keys that were recently found to be absent from the storage
+ * A lookup of such a key can be answered without searching the storage again.
+ * The oldest key is dropped when the cache is full. Every write of a key has to
+ * remove it, the cache itself is not thread-safe.
+ */
+public class NegativeCache {
+    private final int maxSize;
+    private final LinkedHashMap<String,Boolean> keys;
+
+    /**
+     *
+     * @param s the maximum number of keys the cache can store, 0 disables the cache
+     */
+    public NegativeCache(int s) {
+        maxSize = s;
+        keys = new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param key a key that is not in the storage
+     */
+    public void add(String key) {
+        if (maxSize > 0)
+            keys.put(key, Boolean.TRUE);
+    }
+
+    /**
+     *
+     * @param key the key to look for
+     * @return if the key was found to be absent and not written since
+     */
+    public boolean contains(String key) {
+        return keys.get(key) != null;
+    }
+
+    /**
+     * called when a key is written
+     * @param key the key to forget
+     * @return if the key was known to be absent
+     */
+    public boolean remove(String key) {
+        return keys.remove(key) != null;
+    }
+
+    /**
+     * forgets all keys, e.g. after data was moved
+     */
+    public void clear() {
+        keys.clear();
+    }
+
+    /**
+     *
+     * @return the number of keys known to be absent
+     */
+    public int size() {
+        return keys.size();
+    }
+}
@@ -0,0 +1,168 @@
+package cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Allocates chunks for values in direct ByteBuffers outside of the Java heap
+ * Chunks come in size classes that are powers of two between 64 bytes and 128 KB. Every class
+ * carves its chunks out of 1 MB slabs that are allocated when needed and never given back,
+ * freed chunks are reused by later values of the same class.
+ * A chunk is identified by a handle that holds its class and its number within the class.
+ * A chunk can be pinned while its value is sent, freeing it is deferred until the last pin
+ * is released. Pins may be released from other threads, otherwise the allocator is not thread-safe.
+ */
+public class SlabAllocator {
+    private static final int MIN_SHIFT = 6;
+    private static final int MAX_SHIFT = 17;
+    private static final int SLAB_SIZE = 1024*1024;
+    private static final int CHUNK_BITS = 26;
+
+    /**
+     * the largest value that fits into a chunk
+     */
+    public static final int MAX_VALUE_SIZE = 1 << MAX_SHIFT;
+
+    private final ArrayList<ArrayList<ByteBuffer>> slabs = new ArrayList<ArrayList<ByteBuffer>>();
+    // the stack of free chunks and the number of chunks handed out so far of every class
+    private final int[][] free_chunks = new int[MAX_SHIFT-MIN_SHIFT+1][];
+    private final int[] free_count = new int[MAX_SHIFT-MIN_SHIFT+1];
+    private final int[] used_chunks = new int[MAX_SHIFT-MIN_SHIFT+1];
+    private long allocated = 0;
+    // the number of pins of the pinned chunks and the pinned chunks that were freed meanwhile
+    private final HashMap<Integer,Integer> pins = new HashMap<Integer,Integer>();
+    private final HashSet<Integer> freed_pinned = new HashSet<Integer>();
+
+    public SlabAllocator() {
+        for (int c = 0; c < free_chunks.length; c++) {
+            slabs.add(new ArrayList<ByteBuffer>());
+            free_chunks[c] = new int[16];
+        }
+    }
+
+    /**
+     *
+     * @param length the number of bytes of a value
+     * @return the size class that holds values of this length
+     */
+    private static int classOf(int length) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1)-1);
+        return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+    }
+
+    private static int chunkSize(int c) {
+        return 1 << (c+MIN_SHIFT);
+    }
+
+    /**
+     * reserves a chunk for a value
+     * @param length the number of bytes of the value, at most MAX_VALUE_SIZE
+     * @return the handle of the chunk
+     */
+    public synchronized int allocate(int length) {
+        if (length > MAX_VALUE_SIZE)
+            throw new IllegalArgumentException("value too large for the slab allocator: "+length);
+
+        int c = classOf(length);
+        int chunk;
+        if (free_count[c] > 0)
+            chunk = free_chunks[c][--free_count[c]];
+        else {
+            chunk = used_chunks[c]++;
+            int per_slab = SLAB_SIZE/chunkSize(c);
+            if (chunk/per_slab >= slabs.get(c).size()) {
+                slabs.get(c).add(ByteBuffer.allocateDirect(SLAB_SIZE));
+                allocated += SLAB_SIZE;
+            }
+        }
+        return (c << CHUNK_BITS) | chunk;
+    }
+
+    /**
+     * returns a chunk to its size class, a pinned chunk when it is released
+     * @param handle the handle of the chunk
+     */
+    public synchronized void free(int handle) {
+        if (pins.containsKey(handle))
+            freed_pinned.add(handle);
+        else
+            reclaim(handle);
+    }
+
+    /**
+     * pins a chunk, it is not reused until unpin() is called
+     * @param handle the handle of the chunk
+     * @param length the number of bytes of the value
+     * @return a read-only view of the value in the chunk
+     */
+    public synchronized ByteBuffer pin(int handle, int length) {
+        pins.merge(handle, 1, Integer::sum);
+        ByteBuffer chunk = chunk(handle);
+        chunk.limit(chunk.position()+length);
+        return chunk.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * releases a pin of a chunk, the chunk is reclaimed if it was freed meanwhile
+     * @param handle the handle of the chunk
+     */
+    public synchronized void unpin(int handle) {
+        if (pins.computeIfPresent(handle, (h, n) -> (n == 1) ? null : n-1) == null && freed_pinned.remove(handle))
+            reclaim(handle);
+    }
+
+    private void reclaim(int handle) {
+        int c = handle >>> CHUNK_BITS;
+        if (free_count[c] == free_chunks[c].length)
+            free_chunks[c] = Arrays.copyOf(free_chunks[c], free_chunks[c].length*2);
+        free_chunks[c][free_count[c]++] = handle & ((1 << CHUNK_BITS)-1);
+    }
+
+    /**
+     * @param handle the handle of a chunk
+     * @return a buffer positioned at the start of the chunk, with the limit at its end
+     */
+    private ByteBuffer chunk(int handle) {
+        int c = handle >>> CHUNK_BITS;
+        int chunk = handle & ((1 << CHUNK_BITS)-1);
+        int size = chunkSize(c);
+        int per_slab = SLAB_SIZE/size;
+        ByteBuffer slab = slabs.get(c).get(chunk/per_slab).duplicate();
+        int offset = (chunk%per_slab)*size;
+        slab.limit(offset+size);
+        slab.position(offset);
+        return slab;
+    }
+
+    /**
+     * copies a value into its chunk
+     * @param handle the handle of the chunk
+     * @param value the bytes of the value
+     */
+    public void write(int handle, byte[] value) {
+        chunk(handle).put(value);
+    }
+
+    /**
+     * copies a value out of its chunk
+     * @param handle the handle of the chunk
+     * @param length the number of bytes of the value
+     * @return the bytes of the value
+     */
+    public byte[] read(int handle, int length) {
+        byte[] value = new byte[length];
+        chunk(handle).get(value);
+        return value;
+    }
+
+    /**
+     *
+     * @return the number of bytes of direct memory held by the slabs
+     */
+    public long getAllocatedBytes() {
+        return allocated;
+    }
+}
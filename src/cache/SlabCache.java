@@ -0,0 +1,329 @@
+package cache;
+
+import common.messages.KVMessage.StatusType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * We implemented the off-heap cache as an LRU-cache whose values live in slabs of direct memory
+ * The heap only holds the keys, a handle to the slab chunk of every value and the links of the
+ * LRU list, so large values do not have to be copied by the garbage collector.
+ * Values are encoded as UTF-8 and decoded again when get() is called, getBytes() pins
+ * the chunk of a value for a reply without copying or decoding it. An evicted value is copied back
+ * to the heap, because it is still written to disk after its chunk was freed.
+ * A HashMap is additionally used to provide fast lookup
+ */
+public class SlabCache implements Cache {
+    /**
+     * A slab entry contains
+     * handle: the chunk of the value in the allocator, -1 if the value is kept on the heap
+     * length: the number of bytes of the value
+     * keyLength: the number of bytes of the key
+     */
+    private class SlabEntry extends CacheEntry {
+        public SlabEntry(String k, String v, Boolean b) {
+            super(k, b);
+            keyLength = utf8Length(k);
+            store(v);
+        }
+
+        /**
+         * copies the value into a chunk, values that are too large for a chunk stay on the heap
+         */
+        private void store(String v) {
+            byte[] bytes = v.getBytes(StandardCharsets.UTF_8);
+            length = bytes.length;
+            if (length > SlabAllocator.MAX_VALUE_SIZE) {
+                handle = -1;
+                heapValue = v;
+                return;
+            }
+            handle = allocator.allocate(length);
+            allocator.write(handle, bytes);
+            heapValue = null;
+        }
+
+        /**
+         * returns the chunk of the value, the value moves to the heap
+         * called when the entry leaves the cache, because evicted entries are still written to disk
+         */
+        public void release() {
+            if (handle < 0)
+                return;
+            heapValue = getValue();
+            allocator.free(handle);
+            handle = -1;
+        }
+
+        @Override
+        public String getValue() {
+            if (handle < 0)
+                return heapValue;
+            return new String(allocator.read(handle, length), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void setValue(String v) {
+            String old = getValue();
+            if (handle >= 0)
+                allocator.free(handle);
+            store(v);
+            if (!old.equals(v))
+                setDirty();
+        }
+
+        @Override
+        public long getWeight() {
+            return keyLength + length;
+        }
+
+        public int keyLength;
+        public int handle;
+        public int length;
+        public String heapValue;
+        public SlabEntry next=null;
+        public SlabEntry prev=null;
+    }
+
+    /**
+     *
+     * @param s the maximum number of elements the cache can store
+     */
+    public SlabCache(int s) {
+        this(s, 0);
+    }
+
+    /**
+     *
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    public SlabCache(int s, long w) {
+        maxSize = s;
+        maxWeight = w;
+    }
+
+    private final HashMap<String,SlabEntry> indexMap = new HashMap<String,SlabEntry>();
+    private final SlabAllocator allocator = new SlabAllocator();
+    private int maxSize;
+    private long maxWeight;
+    private long weight = 0;
+    private SlabEntry listHead=null;
+    private SlabEntry listTail=null;
+    private SlabEntry itr;
+
+    /**
+     * inserts an entry at the head of the list
+     */
+    private void insert(SlabEntry entry) {
+        entry.prev = listHead;
+        entry.next = null;
+        if (listHead != null)
+            listHead.next = entry;
+        listHead = entry;
+        if (listTail == null)
+            listTail = entry;
+
+        indexMap.put(entry.getKey(), entry);
+        weight += entry.getWeight();
+    }
+
+    private void unlink(SlabEntry entry) {
+        if (entry.prev != null)
+            entry.prev.next = entry.next;
+        else
+            listTail = entry.next;
+        if (entry.next != null)
+            entry.next.prev = entry.prev;
+        else
+            listHead = entry.prev;
+    }
+
+    /**
+     * removes an entry and frees its chunk
+     */
+    private void remove(SlabEntry entry) {
+        unlink(entry);
+        indexMap.remove(entry.getKey());
+        weight -= entry.getWeight();
+        entry.release();
+    }
+
+    private void reference(SlabEntry entry) {
+        if (entry == listHead)
+            return;
+        unlink(entry);
+        entry.prev = listHead;
+        entry.next = null;
+        listHead.next = entry;
+        listHead = entry;
+    }
+
+    /**
+     * The bytes of a value that are handed out without copying them
+     * The chunk of the value is not reused until release() is called, even if the entry is
+     * updated or leaves the cache meanwhile, so release() does not need the lock of the cache.
+     */
+    public class PinnedValue {
+        private final int handle;
+        private final ByteBuffer bytes;
+
+        private PinnedValue(int h, ByteBuffer b) {
+            handle = h;
+            bytes = b;
+        }
+
+        /**
+         *
+         * @return a read-only view of the UTF-8 bytes of the value, valid until release() is called
+         */
+        public ByteBuffer getBytes() {
+            return bytes;
+        }
+
+        /**
+         * releases the chunk of the value
+         */
+        public void release() {
+            if (handle >= 0)
+                allocator.unpin(handle);
+        }
+    }
+
+    /**
+     * pins the bytes of a value without creating a String, e.g. for the reply to a get
+     * values that are too large for a chunk are encoded from the heap
+     * @param key the key of the tuple
+     * @return the UTF-8 bytes of the value, null if the key is not in the cache
+     */
+    public PinnedValue getBytes(String key) {
+        SlabEntry entry = indexMap.get(key);
+        if (entry == null)
+            return null;
+
+        reference(entry);
+        if (entry.handle < 0)
+            return new PinnedValue(-1, ByteBuffer.wrap(entry.heapValue.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer());
+        return new PinnedValue(entry.handle, allocator.pin(entry.handle, entry.length));
+    }
+
+    /**
+     *
+     * @return the number of bytes of direct memory held by the cache
+     */
+    public long getAllocatedBytes() {
+        return allocator.getAllocatedBytes();
+    }
+
+    @Override
+    public void vacuum() {
+        SlabEntry entry = listTail;
+        while (entry != null) {
+            SlabEntry next = entry.next;
+            if (entry.isDeleted())
+                remove(entry);
+            entry = next;
+        }
+    }
+
+    @Override
+    public CacheEntry iteratorStart() {
+        itr = listTail;
+        return iteratorNext();
+    }
+
+    @Override
+    public CacheEntry iteratorNext() {
+        if (itr == null)
+            return null;
+
+        CacheEntry entry = itr;
+        itr = itr.next;
+        return entry;
+    }
+
+    @Override
+    public int size() {
+        return indexMap.size();
+    }
+
+    @Override
+    public long weight() {
+        return weight;
+    }
+
+    @Override
+    public Boolean isOverweight() {
+        return indexMap.size() > maxSize || (maxWeight > 0 && weight > maxWeight);
+    }
+
+    /**
+     * changes the capacity, the caller evicts while isOverweight() returns true
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    @Override
+    public void setCapacity(int s, long w) {
+        maxSize = s;
+        maxWeight = w;
+    }
+
+    @Override
+    public StatusType put(String key, String value, Boolean is_dirty) {
+        // check if key is in the cache
+        SlabEntry entry = indexMap.get(key);
+        if (entry != null) {
+            weight -= entry.getWeight();
+            entry.setValue(value);
+            weight += entry.getWeight();
+            reference(entry);
+            return StatusType.PUT_UPDATE;
+        }
+
+        // check if cache is full, before the value is copied into a chunk
+        if (indexMap.size() >= maxSize || (maxWeight > 0 && listHead != null
+                && weight+CacheEntry.utf8Length(key)+CacheEntry.utf8Length(value) > maxWeight))
+            return StatusType.PUT_ERROR;
+
+        insert(new SlabEntry(key,value,is_dirty));
+        return StatusType.PUT_SUCCESS;
+    }
+
+    @Override
+    public CacheEntry replace(String key, String value, Boolean is_dirty) {
+        // NOTE: we assume that this is only called when the cache is full
+        CacheEntry replaced_entry = evict();
+
+        // insert new key
+        insert(new SlabEntry(key,value,is_dirty));
+        return replaced_entry;
+    }
+
+    @Override
+    public CacheEntry evict() {
+        SlabEntry replaced_entry = listTail;
+        remove(replaced_entry);
+        return replaced_entry;
+    }
+
+    @Override
+    public String get(String key) {
+        SlabEntry entry = indexMap.get(key);
+        if (entry == null)
+            return null;
+
+        reference(entry);
+        return entry.getValue();
+    }
+
+    @Override
+    public Boolean containsKey(String key) {
+        return indexMap.containsKey(key);
+    }
+
+    @Override
+    public CacheEntry getFirst() {
+        return listTail;
+    }
+}
@@ -0,0 +1,178 @@
+package cache;
+
+import common.messages.KVMessage.StatusType;
+
+/**
+ * Splits the cache into stripes selected by the hash of the key
+ * Every stripe is a cache of its own with its own replacement structure, so that
+ * the stripes can be locked independently. The cache itself is not thread-safe:
+ * the caller locks the stripe of a key for single-key operations and all stripes
+ * for the operations that span the whole cache (iterator, vacuum).
+ */
+public class StripedCache implements Cache {
+    private final Cache[] stripes;
+    private int itr_stripe;
+
+    /**
+     *
+     * @param stripes the caches that hold the stripes, the maximum size of the striped cache
+     * is the sum of their sizes
+     */
+    public StripedCache(Cache[] stripes) {
+        this.stripes = stripes;
+    }
+
+    /**
+     *
+     * @return the number of stripes
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     *
+     * @param key the key of a tuple
+     * @return the stripe that holds the key
+     */
+    public int stripeOf(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return Math.floorMod(h, stripes.length);
+    }
+
+    /**
+     *
+     * @param s the number of the stripe
+     * @return the cache of the stripe
+     */
+    public Cache getStripe(int s) {
+        return stripes[s];
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Cache stripe : stripes)
+            size += stripe.size();
+        return size;
+    }
+
+    @Override
+    public long weight() {
+        long weight = 0;
+        for (Cache stripe : stripes)
+            weight += stripe.weight();
+        return weight;
+    }
+
+    /**
+     *
+     * @return true if any stripe exceeds its capacity
+     */
+    @Override
+    public Boolean isOverweight() {
+        for (Cache stripe : stripes) {
+            if (stripe.isOverweight())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * splits the capacity evenly over the stripes
+     */
+    @Override
+    public void setCapacity(int s, long w) {
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i].setCapacity(s/stripes.length + ((i < s%stripes.length) ? 1 : 0),
+                    w/stripes.length + ((i < w%stripes.length) ? 1 : 0));
+    }
+    
+    /**
+     * inserts into the stripe of the key
+     * @return PUT_ERROR if the stripe of the key is full
+     */
+    @Override
+    public StatusType put(String key, String value, Boolean is_dirty) {
+        return stripes[stripeOf(key)].put(key, value, is_dirty);
+    }
+
+    @Override
+    public String get(String key) {
+        return stripes[stripeOf(key)].get(key);
+    }
+
+    /**
+     * replaces a tuple in the stripe of the key
+     * this assumes that the stripe of the key is non-empty!
+     */
+    @Override
+    public CacheEntry replace(String key, String value, Boolean is_dirty) {
+        return stripes[stripeOf(key)].replace(key, value, is_dirty);
+    }
+
+    @Override
+    public Boolean containsKey(String key) {
+        return stripes[stripeOf(key)].containsKey(key);
+    }
+
+    /**
+     * the striped cache has no single replacement order,
+     * use getStripe(stripeOf(key)).getFirst() to find the entry that replace() evicts
+     * @return the entry that is replaced next in the first non-empty stripe
+     */
+    @Override
+    public CacheEntry getFirst() {
+        for (Cache stripe : stripes) {
+            CacheEntry entry = stripe.getFirst();
+            if (entry != null)
+                return entry;
+        }
+        return null;
+    }
+
+    /**
+     * removes the entry that getFirst() returns
+     */
+    @Override
+    public CacheEntry evict() {
+        for (Cache stripe : stripes) {
+            if (stripe.size() > 0)
+                return stripe.evict();
+        }
+        return null;
+    }
+
+    @Override
+    public CacheEntry iteratorStart() {
+        itr_stripe = 0;
+        CacheEntry entry = stripes[0].iteratorStart();
+        return (entry != null) ? entry : nextStripe();
+    }
+
+    @Override
+    public CacheEntry iteratorNext() {
+        CacheEntry entry = stripes[itr_stripe].iteratorNext();
+        return (entry != null) ? entry : nextStripe();
+    }
+
+    /**
+     * positions the iterator at the first element of the next non-empty stripe
+     */
+    private CacheEntry nextStripe() {
+        while (itr_stripe+1 < stripes.length) {
+            itr_stripe++;
+            CacheEntry entry = stripes[itr_stripe].iteratorStart();
+            if (entry != null)
+                return entry;
+        }
+        return null;
+    }
+
+    @Override
+    public void vacuum() {
+        for (Cache stripe : stripes)
+            stripe.vacuum();
+    }
+}
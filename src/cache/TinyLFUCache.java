@@ -0,0 +1,309 @@
+package cache;
+
+import common.messages.KVMessage.StatusType;
+import java.util.HashMap;
+
+/**
+ * We implemented the W-TinyLFU-cache using three LRU lists and a frequency sketch
+ * New tuples enter a small admission window (1% of the cache). Tuples that leave the
+ * window only stay in the cache if they were accessed more often than the tuple that
+ * would be replaced for them, so keys that are used once (e.g. by a scan) do not push
+ * out the hot keys. The main area is a segmented LRU: tuples start in the probation
+ * segment and move to the protected segment (80% of the main area) when they are hit again.
+ * A HashMap is additionally used to provide fast lookup
+ */
+public class TinyLFUCache implements Cache {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private class ListNode {
+        public ListNode(CacheEntry e) {
+            entry = e;
+        }
+
+        public CacheEntry entry;
+        public int segment;
+        public ListNode next=null;
+        public ListNode prev=null;
+    }
+
+    /**
+     * doubly-linked list with the most recently used node at the head
+     */
+    private class Segment {
+        public ListNode head=null;
+        public ListNode tail=null;
+        public int size=0;
+        public long weight=0;
+
+        public void addFirst(ListNode node, int s) {
+            node.segment = s;
+            node.prev = null;
+            node.next = head;
+            if (head != null)
+                head.prev = node;
+            head = node;
+            if (tail == null)
+                tail = node;
+            size++;
+            weight += node.entry.getWeight();
+        }
+
+        public void remove(ListNode node) {
+            if (node.prev != null)
+                node.prev.next = node.next;
+            else
+                head = node.next;
+            if (node.next != null)
+                node.next.prev = node.prev;
+            else
+                tail = node.prev;
+            node.prev = null;
+            node.next = null;
+            size--;
+            weight -= node.entry.getWeight();
+        }
+    }
+
+    /**
+     *
+     * @param s the maximum number of elements the cache can store
+     */
+    public TinyLFUCache(int s) {
+        this(s, 0);
+    }
+
+    /**
+     * with a byte budget the segments are sized by weight instead of by count
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     * @param n the expected number of elements, sizes the frequency sketch
+     */
+    public TinyLFUCache(int s, long w, int n) {
+        setCapacity(s, w);
+        sketch = new FrequencySketch(n);
+    }
+
+    /**
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    public TinyLFUCache(int s, long w) {
+        // with a byte budget, assume tuples of about 1000 bytes
+        this(s, w, (w > 0) ? (int)Math.min(Math.max(w/1000, 1), 1000*1000) : s);
+    }
+
+    private final HashMap<String,ListNode> indexMap = new HashMap<String,ListNode>();
+    private final Segment[] segments = { new Segment(), new Segment(), new Segment() };
+    private final FrequencySketch sketch;
+    private int maxSize;
+    private long maxWeight;
+    private long weight = 0;
+    // the sizes of the segments, in bytes if the cache has a byte budget
+    private long windowSize;
+    private long protectedSize;
+    private int itrSegment;
+    private ListNode itr;
+
+    /**
+     * @return the size of a segment, in bytes if the cache has a byte budget
+     */
+    private long measure(int s) {
+        return (maxWeight > 0) ? segments[s].weight : segments[s].size;
+    }
+
+    /**
+     * moves a node that was hit to the head of its segment
+     * a hit in the probation segment promotes the node to the protected segment
+     */
+    private void reference(ListNode node) {
+        Segment segment = segments[node.segment];
+        segment.remove(node);
+        if (node.segment != PROBATION) {
+            segment.addFirst(node, node.segment);
+            return;
+        }
+
+        segments[PROTECTED].addFirst(node, PROTECTED);
+        while (measure(PROTECTED) > protectedSize && segments[PROTECTED].tail != node) {
+            // demote the least recently used protected node
+            ListNode demoted = segments[PROTECTED].tail;
+            segments[PROTECTED].remove(demoted);
+            segments[PROBATION].addFirst(demoted, PROBATION);
+        }
+    }
+
+    /**
+     * inserts a node into the window, a node that leaves the window moves to the probation segment
+     * this assumes that the cache is not full
+     */
+    private void insert(ListNode node) {
+        segments[WINDOW].addFirst(node, WINDOW);
+        indexMap.put(node.entry.getKey(), node);
+        while (measure(WINDOW) > windowSize && segments[WINDOW].tail != node) {
+            ListNode candidate = segments[WINDOW].tail;
+            segments[WINDOW].remove(candidate);
+            segments[PROBATION].addFirst(candidate, PROBATION);
+        }
+    }
+
+    private void remove(ListNode node) {
+        segments[node.segment].remove(node);
+        indexMap.remove(node.entry.getKey());
+    }
+
+    /**
+     * with a byte budget the window rarely holds exactly its size, so its oldest node
+     * always competes with the victim of the main area
+     * @return the node that is evicted when a new tuple is inserted into a full cache
+     */
+    private ListNode victim() {
+        ListNode main = (segments[PROBATION].tail != null) ? segments[PROBATION].tail : segments[PROTECTED].tail;
+        if (segments[WINDOW].tail == null || (maxWeight == 0 && segments[WINDOW].size < windowSize))
+            return main;
+        ListNode candidate = segments[WINDOW].tail;
+        if (main == null)
+            return candidate;
+
+        // the candidate from the window is only admitted if it is used more often than the victim
+        if (sketch.frequency(candidate.entry.getKey()) > sketch.frequency(main.entry.getKey()))
+            return main;
+        return candidate;
+    }
+
+    @Override
+    public void vacuum() {
+        for (Segment segment : segments) {
+            ListNode node = segment.head;
+            while (node != null) {
+                ListNode next = node.next;
+                if (node.entry.isDeleted())
+                    remove(node);
+                node = next;
+            }
+        }
+    }
+
+    @Override
+    public CacheEntry iteratorStart() {
+        itrSegment = 0;
+        itr = segments[0].tail;
+        return iteratorNext();
+    }
+
+    @Override
+    public CacheEntry iteratorNext() {
+        while (itr == null && itrSegment+1 < segments.length) {
+            itrSegment++;
+            itr = segments[itrSegment].tail;
+        }
+        if (itr == null)
+            return null;
+
+        CacheEntry entry = itr.entry;
+        itr = itr.prev;
+        return entry;
+    }
+
+    @Override
+    public int size() {
+        return indexMap.size();
+    }
+
+    @Override
+    public long weight() {
+        return segments[WINDOW].weight + segments[PROBATION].weight + segments[PROTECTED].weight;
+    }
+
+    @Override
+    public Boolean isOverweight() {
+        return indexMap.size() > maxSize || (maxWeight > 0 && weight() > maxWeight);
+    }
+
+    /**
+     * changes the capacity and the sizes of the segments, the caller evicts while isOverweight() returns true
+     * the frequency sketch keeps its size
+     * @param s the maximum number of elements the cache can store
+     * @param w the maximum number of bytes (keys plus values) the cache can store, 0 for no limit
+     */
+    @Override
+    public void setCapacity(int s, long w) {
+        maxSize = s;
+        maxWeight = w;
+        long capacity = (w > 0) ? w : s;
+        windowSize = Math.max(1, capacity/100);
+        protectedSize = (capacity-windowSize)*8/10;
+    }
+
+    @Override
+    public StatusType put(String key, String value, Boolean is_dirty) {
+        // clean tuples are loaded after get() missed, the access was already counted there
+        if (is_dirty)
+            sketch.increment(key);
+
+        // check if key is in the cache
+        ListNode node = indexMap.get(key);
+        if (node != null) {
+            Segment segment = segments[node.segment];
+            segment.weight -= node.entry.getWeight();
+            node.entry.setValue(value);
+            segment.weight += node.entry.getWeight();
+            reference(node);
+            return StatusType.PUT_UPDATE;
+        }
+
+        // check if cache is full
+        node = new ListNode(new CacheEntry(key,value,is_dirty));
+        if (indexMap.size() >= maxSize || (maxWeight > 0 && !indexMap.isEmpty() && weight()+node.entry.getWeight() > maxWeight))
+            return StatusType.PUT_ERROR;
+
+        // insert into the window
+        insert(node);
+        return StatusType.PUT_SUCCESS;
+    }
+
+    @Override
+    public CacheEntry replace(String key, String value, Boolean is_dirty) {
+        // NOTE: we assume that this is only called when the cache is full
+        // evict the tuple that getFirst() returns, the access to key was already
+        // counted by the preceding put() or get()
+        CacheEntry replaced_entry = evict();
+
+        // insert new key
+        insert(new ListNode(new CacheEntry(key,value,is_dirty)));
+        return replaced_entry;
+    }
+
+    @Override
+    public CacheEntry evict() {
+        ListNode replaced_node = victim();
+        remove(replaced_node);
+        return replaced_node.entry;
+    }
+
+    @Override
+    public String get(String key) {
+        sketch.increment(key);
+
+        ListNode node = indexMap.get(key);
+        if (node == null)
+            return null;
+
+        reference(node);
+        return node.entry.getValue();
+    }
+
+    @Override
+    public Boolean containsKey(String key) {
+        return indexMap.containsKey(key);
+    }
+
+    @Override
+    public CacheEntry getFirst() {
+        ListNode node = victim();
+        if (node == null)
+            return null;
+        return node.entry;
+    }
+}
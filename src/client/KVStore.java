@@ -82,8 +82,8 @@ public class KVStore implements KVCommInterface{
         listeners = new HashSet<>(); 
         
         connection = new KVConnection(clientSocket, listeners);
-        connection.start();      
         connection.setLatestMessage(null); // needed to receive correct server replies to the operations put and get
+        connection.start(); // after the reset, the greeting of the server may arrive at once
         
         // receive reply from server
         while(connection.getLatestMessage() == null) {
@@ -119,8 +119,8 @@ public class KVStore implements KVCommInterface{
         listeners = new HashSet<>(); 
         
         connection = new KVConnection(clientSocket, listeners);
-        connection.start();      
         connection.setLatestMessage(null); // needed to receive correct server replies to the operations put and get
+        connection.start(); // after the reset, the greeting of the server may arrive at once
         
         // receive reply from server
         while(connection.getLatestMessage() == null) {
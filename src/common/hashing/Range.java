@@ -57,6 +57,32 @@ public class Range {
         return value.compareTo(max) <= 0 || value.compareTo(min) >= 0;       
     }
     
+    /**
+     * @param lo the smallest value of an interval of 128-bit MD5-hash values
+     * @param hi the largest value of the interval, lo <= hi
+     * @return if all values of the interval are within the range
+     */
+    public boolean containsAll(BigInteger lo, BigInteger hi) {
+        if (min.compareTo(max) < 0)
+            return lo.compareTo(min) >= 0 && hi.compareTo(max) <= 0;
+        
+        // the interval has to be on one side of the wrap around
+        return hi.compareTo(max) <= 0 || lo.compareTo(min) >= 0;
+    }
+    
+    /**
+     * @param lo the smallest value of an interval of 128-bit MD5-hash values
+     * @param hi the largest value of the interval, lo <= hi
+     * @return if any value of the interval is within the range
+     */
+    public boolean containsAny(BigInteger lo, BigInteger hi) {
+        if (min.compareTo(max) < 0)
+            return hi.compareTo(min) >= 0 && lo.compareTo(max) <= 0;
+        
+        // here we need to wrap around
+        return lo.compareTo(max) <= 0 || hi.compareTo(min) >= 0;
+    }
+    
      /**
       * Splits the range using a given value as separator
       * @param value the value used as separator between the two segments
@@ -3,6 +3,10 @@ package common.messages;
 import java.nio.ByteBuffer;
 
 public class Message implements KVMessage {
+    /**
+     * payloads have to be shorter than this
+     */
+    static final int MAX_PAYLOAD_LENGTH = 120000;
 
     private byte[] byteMessage; 
     private boolean valid;
@@ -93,7 +97,7 @@ public class Message implements KVMessage {
         
     }
         
-    private boolean messageIsByte(StatusType status) {
+    static boolean messageIsByte(StatusType status) {
         switch(status) {
             case SERVER_STOPPED: return true;
             case SERVER_WRITE_LOCK: return true;
@@ -109,7 +113,7 @@ public class Message implements KVMessage {
      * Answers according to an already set status flag, if the message has no value field
      * @return no value field - true; value field - false
      */
-    private boolean messageIsShort(StatusType status) {
+    static boolean messageIsShort(StatusType status) {
         switch(status) {
             case GET: return true;
             case GET_ERROR: return true;
@@ -128,7 +132,7 @@ public class Message implements KVMessage {
      * @param status - given status
      * @return status byte
      */
-    private byte statusToByte(StatusType status) {
+    static byte statusToByte(StatusType status) {
         switch(status) {
             case GET: return (byte) 1;
             case GET_ERROR: return (byte) 2;
@@ -162,6 +166,18 @@ public class Message implements KVMessage {
      * @return status if valid or null if not valid
      */
     private StatusType byteToStatus(byte status) {
+        StatusType type = decodeStatus(status);
+        if(type == null)
+            valid = false;
+        return type;
+    }
+    
+    /**
+     * Decoding status byte without changing a message.
+     * @param status - given status byte
+     * @return status if valid or null if not valid
+     */
+    static StatusType decodeStatus(byte status) {
         switch((int) status) {
             case 1: return StatusType.GET;
             case 2: return StatusType.GET_ERROR;
@@ -185,7 +201,6 @@ public class Message implements KVMessage {
             case 61: return StatusType.SUB_ERROR;
             case 62: return StatusType.UNSUB;
             default: 
-                valid = false;
                 return null;// WRONG STATUS TYPE - RETURNING NULL SHOULD NOT MATTER
         }
     }
@@ -193,7 +208,7 @@ public class Message implements KVMessage {
     
     /* Validation ----------------------------------------------------------- */
     
-    private boolean validStatus(byte status) {
+    static boolean validStatus(byte status) {
         switch((int) status) {
             case 1:
             case 2:
@@ -227,7 +242,7 @@ public class Message implements KVMessage {
      * @param key_length
      * @return 
      */
-    private boolean validKeyLength(byte key_length) {
+    static boolean validKeyLength(byte key_length) {
         if((int) key_length > 20 || (int) key_length < 1) {
             return false;
         }
@@ -252,9 +267,7 @@ public class Message implements KVMessage {
         if(byteMessage.length < 1 + 1 + (int) byteMessage[1] + 4 + 1) { // status | key_length | key | 4 bytes | min. 1 byte
             return false;
         }
-        byte[] payloadLength = new byte[4];
-        System.arraycopy(byteMessage, 1 + 1 + (int) byteMessage[1], payloadLength, 0, 4);
-        return (byteMessage.length - 1 - 1 - (int) byteMessage[1] - 4 - byteArrayToLength(payloadLength)) == 0;
+        return (byteMessage.length - 1 - 1 - (int) byteMessage[1] - 4 - payloadLength(byteMessage)) == 0;
     }
     
     /**
@@ -263,16 +276,19 @@ public class Message implements KVMessage {
      * @return indicator
      */
     private boolean validPayloadLength(byte[] byteMessage) {
-        byte[] payloadLength = new byte[4];
-        System.arraycopy(byteMessage, 1 + 1 + (int) byteMessage[1], payloadLength, 0, 4);
-        return byteArrayToLength(payloadLength) < 120000;
+        return payloadLength(byteMessage) < MAX_PAYLOAD_LENGTH;
     }
     
     
     /* Helper --------------------------------------------------------------- */
     
-    private int byteArrayToLength(byte[] length) {
-        return ByteBuffer.wrap(length).getInt();
+    /**
+     * Reads the length field behind the key in place.
+     * @param byteMessage - a long message
+     * @return the payload length
+     */
+    private int payloadLength(byte[] byteMessage) {
+        return ByteBuffer.wrap(byteMessage).getInt(1 + 1 + (int) byteMessage[1]);
     }
    
     
@@ -288,20 +304,28 @@ public class Message implements KVMessage {
      */
     private byte[] composeMessage(StatusType status, byte[] key, byte[] value) { // composes long message
         byte[] byteMessage = new byte[1 + 1 + key.length + 4 + value.length];
-        byteMessage[0] = statusToByte(status); // writes status byte
-        byteMessage[1] = (byte) key.length; // writes length byte
-        System.arraycopy(key, 0, byteMessage, 2, key.length); // writes key
-        System.arraycopy(ByteBuffer.allocate(4).putInt(value.length).array(), 0, byteMessage, 1 + 1 + key.length, 4); // writes valueLength
-        System.arraycopy(value, 0, byteMessage, 1 + 1 + key.length + 4, value.length); // writes value
+        encode(ByteBuffer.wrap(byteMessage), status, ByteBuffer.wrap(key), ByteBuffer.wrap(value));
         
         return byteMessage;
     }
     
+    /**
+     * Composes the beginning of a long message, for values that are written separately.
+     * @param status - given status
+     * @param key - given key
+     * @param valueLength - the length of the value that follows
+     * @return status | length | key | valueLength as byte array
+     */
+    public static byte[] composeHeader(StatusType status, byte[] key, int valueLength) {
+        byte[] header = new byte[1 + 1 + key.length + 4];
+        encodeHeader(ByteBuffer.wrap(header), status, ByteBuffer.wrap(key), valueLength);
+        
+        return header;
+    }
+    
     private byte[] composeMessage(StatusType status, byte[] key) { // composes short message
         byte[] byteMessage = new byte[1 + 1 + key.length];
-        byteMessage[0] = statusToByte(status);
-        byteMessage[1] = (byte) key.length;
-        System.arraycopy(key, 0, byteMessage, 2, key.length);
+        encode(ByteBuffer.wrap(byteMessage), status, ByteBuffer.wrap(key));
         
         return byteMessage;
     }
@@ -312,6 +336,59 @@ public class Message implements KVMessage {
         return statusByte;
     }
     
+    /* Encoder -------------------------------------------------------------- */
+    
+    /**
+     * Writes status | length | key | valueLength directly into the given buffer.
+     * The key is read between its position and limit and is not consumed.
+     * @param target - the buffer to write to, its position moves behind the header
+     * @param status - given status
+     * @param key - given key
+     * @param valueLength - the length of the value that follows
+     * @return target
+     * @throws java.nio.BufferOverflowException if the header does not fit into target
+     */
+    public static ByteBuffer encodeHeader(ByteBuffer target, StatusType status, ByteBuffer key, int valueLength) {
+        return encode(target, status, key).putInt(valueLength);
+    }
+    
+    /**
+     * Writes a long message directly into the given buffer.
+     * Key and value are read between their position and limit and are not consumed.
+     * @param target - the buffer to write to, its position moves behind the message
+     * @param status - given status
+     * @param key - given key
+     * @param value - given value
+     * @return target
+     * @throws java.nio.BufferOverflowException if the message does not fit into target
+     */
+    public static ByteBuffer encode(ByteBuffer target, StatusType status, ByteBuffer key, ByteBuffer value) {
+        return encodeHeader(target, status, key, value.remaining()).put(value.duplicate());
+    }
+    
+    /**
+     * Writes a short message directly into the given buffer.
+     * @param target - the buffer to write to, its position moves behind the message
+     * @param status - given status
+     * @param key - given key, it is not consumed
+     * @return target
+     * @throws java.nio.BufferOverflowException if the message does not fit into target
+     */
+    public static ByteBuffer encode(ByteBuffer target, StatusType status, ByteBuffer key) {
+        return encode(target, status).put((byte) key.remaining()).put(key.duplicate());
+    }
+    
+    /**
+     * Writes a byte message directly into the given buffer.
+     * @param target - the buffer to write to, its position moves behind the message
+     * @param status - given status
+     * @return target
+     * @throws java.nio.BufferOverflowException if the message does not fit into target
+     */
+    public static ByteBuffer encode(ByteBuffer target, StatusType status) {
+        return target.put(statusToByte(status));
+    }
+    
     /* Gets ----------------------------------------------------------------- */
     
     @Override
@@ -323,10 +400,8 @@ public class Message implements KVMessage {
     
     @Override
     public byte[] getValueAsBytes() {
-        byte[] payloadLength = new byte[4];
-        System.arraycopy(byteMessage, 1 + 1 + (int) byteMessage[1], payloadLength, 0, 4);
-        byte[] payload = new byte[byteArrayToLength(payloadLength)];
-        System.arraycopy(byteMessage, 1 + 1 + (int) byteMessage[1] + 4, payload, 0, byteArrayToLength(payloadLength));
+        byte[] payload = new byte[payloadLength(byteMessage)];
+        System.arraycopy(byteMessage, 1 + 1 + (int) byteMessage[1] + 4, payload, 0, payload.length);
         return payload;
     }
    
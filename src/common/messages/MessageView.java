@@ -0,0 +1,201 @@
+package common.messages;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message that is read in place from a received frame instead of copied.
+ * The frame is validated once by wrap() with the same rules as Message, key and value
+ * are returned as read-only slices of the frame. The view can be reused for the next
+ * frame, so it must not be passed on: toMessage() makes a copy that can be kept.
+ */
+public class MessageView implements KVMessage {
+
+    private ByteBuffer frame;
+    private boolean valid;
+    private StatusType status;
+    private int keyLength;
+    private int valueLength; // -1 if the message has no value field
+
+    public MessageView() {
+    }
+
+    /**
+     *
+     * @param frame - a complete message, e.g. of the FrameDecoder
+     */
+    public MessageView(ByteBuffer frame) {
+        wrap(frame);
+    }
+
+    /**
+     * Reads the fields of the next message.
+     * valid is set to false, if the message format is not valid.
+     * @param frame - the message between position and limit, it is not copied
+     * and has to stay unchanged while the view is used
+     * @return this view
+     */
+    public MessageView wrap(ByteBuffer frame) {
+        this.frame = frame.slice().asReadOnlyBuffer();
+        this.keyLength = 0;
+        this.valueLength = -1;
+
+        int length = this.frame.remaining();
+        this.status = (length > 0) ? Message.decodeStatus(this.frame.get(0)) : null;
+        if (status == null) {
+            this.valid = false;
+        } else if (Message.messageIsByte(status)) {
+            this.valid = length == 1;
+        } else if (length < 2 || !Message.validKeyLength(this.frame.get(1))) {
+            this.valid = false;
+        } else {
+            int key = this.frame.get(1);
+            if (Message.messageIsShort(status)) {
+                this.valid = length == 1 + 1 + key;
+            } else if (length < 1 + 1 + key + 4 + 1) { // status | key_length | key | 4 bytes | min. 1 byte
+                this.valid = false;
+            } else {
+                int payload = this.frame.getInt(1 + 1 + key);
+                this.valid = length == 1 + 1 + key + 4 + payload && payload < Message.MAX_PAYLOAD_LENGTH;
+                if (valid)
+                    this.valueLength = payload;
+            }
+            // the slices are only available if the fields are complete
+            if (valid)
+                this.keyLength = key;
+        }
+        return this;
+    }
+
+    /**
+     *
+     * @return the whole message as a read-only buffer, e.g. to forward it
+     */
+    public ByteBuffer getFrame() {
+        return frame.duplicate();
+    }
+
+    /**
+     *
+     * @return the key as a read-only slice of the frame; empty for byte messages and invalid messages
+     */
+    public ByteBuffer getKeySlice() {
+        return slice(2, keyLength);
+    }
+
+    /**
+     *
+     * @return the value as a read-only slice of the frame; empty if the message has no value or is not valid
+     */
+    public ByteBuffer getValueSlice() {
+        if (valueLength < 0)
+            return slice(0, 0);
+        return slice(1 + 1 + keyLength + 4, valueLength);
+    }
+
+    /**
+     * The chars are the bytes of the key, which is enough for ASCII keys. getKey() decodes it instead.
+     * @return the key without copying it
+     */
+    public CharSequence getKeyChars() {
+        return new ByteChars(getKeySlice());
+    }
+
+    /**
+     * The chars are the bytes of the value. getValue() decodes it instead.
+     * @return the value without copying it
+     */
+    public CharSequence getValueChars() {
+        return new ByteChars(getValueSlice());
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        ByteBuffer buf = frame.duplicate();
+        buf.position(offset).limit(offset + length);
+        return buf.slice();
+    }
+
+    /**
+     *
+     * @return a copy of the message that stays valid after the view is reused
+     */
+    public Message toMessage() {
+        Message message = new Message(toArray(getFrame()));
+        message.setValid(valid);
+        return message;
+    }
+
+    private static byte[] toArray(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /* Gets ----------------------------------------------------------------- */
+
+    @Override
+    public byte[] getKeyAsBytes() {
+        return toArray(getKeySlice());
+    }
+
+    @Override
+    public byte[] getValueAsBytes() {
+        return toArray(getValueSlice());
+    }
+
+    @Override
+    public String getKey() {
+        return new String(getKeyAsBytes());
+    }
+
+    @Override
+    public String getValue() {
+        return new String(getValueAsBytes());
+    }
+
+    @Override
+    public StatusType getStatus() {
+        return status;
+    }
+
+    public boolean getValid() {
+        return valid;
+    }
+
+    /**
+     * The bytes of a slice as chars, one char per byte.
+     */
+    private static class ByteChars implements CharSequence {
+        private final ByteBuffer bytes;
+
+        ByteChars(ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int length() {
+            return bytes.remaining();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= bytes.remaining())
+                throw new IndexOutOfBoundsException("index " + index + ", length " + bytes.remaining());
+            return (char) (bytes.get(bytes.position() + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > bytes.remaining() || start > end)
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + bytes.remaining());
+            ByteBuffer sub = bytes.duplicate();
+            sub.position(bytes.position() + start).limit(bytes.position() + end);
+            return new ByteChars(sub.slice());
+        }
+
+        @Override
+        public String toString() {
+            return StandardCharsets.ISO_8859_1.decode(bytes.duplicate()).toString();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package common.reader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of buffers that can hold the largest message.
+ * Most messages fit into the small buffer of their decoder, only a message with a large
+ * payload borrows one of these buffers while it is received, so that the large buffers are
+ * reused instead of allocated for every message.
+ */
+public class BufferPool {
+    private static final BufferPool SHARED = new BufferPool(FrameDecoder.MAX_FRAME_LENGTH, 64);
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     *
+     * @param bufferSize the capacity of every buffer
+     * @param maxPooled the number of returned buffers that are kept, the others are left to the garbage collector
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     *
+     * @return the pool that is shared by all decoders
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     *
+     * @return the capacity of the buffers
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     *
+     * @return the number of buffers that wait to be reused
+     */
+    public int getPooled() {
+        return pooled.get();
+    }
+
+    /**
+     *
+     * @return an empty buffer, a new one if the pool is empty
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buf = buffers.poll();
+        if (buf == null)
+            return ByteBuffer.allocate(bufferSize);
+        pooled.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * @param buf a buffer of acquire() that is not used anymore
+     */
+    public void release(ByteBuffer buf) {
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffers.add(buf);
+    }
+}
@@ -0,0 +1,268 @@
+package common.reader;
+
+import common.messages.StatusValidation;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes the messages of one connection from a buffer that is reused for all of them.
+ * The bytes are read in large chunks, the status, the key length and the payload length
+ * are parsed in place and every message is returned as a slice of the buffer. A message
+ * that does not fit into the small buffer of the decoder is received in a buffer of the pool.
+ * The framing is the same as the one of UniversalReader: a KV message is the status byte,
+ * the key length, the key, the payload length and the payload, admin messages have no key.
+ * Messages without a value or with the status only are shorter.
+ */
+public class FrameDecoder {
+    /**
+     * the length of the longest message, larger payloads are not part of the message
+     */
+    public static final int MAX_FRAME_LENGTH = 120030;
+    private static final int BUFFER_SIZE = 8*1024;
+
+    private final BufferPool pool;
+    private final ByteBuffer small;
+    private ByteBuffer buffer;
+    private int start = 0; // the first byte that was not returned yet, the buffer ends at its position
+
+    public FrameDecoder() {
+        this(BufferPool.shared());
+    }
+
+    /**
+     *
+     * @param pool the pool that lends the buffers for large messages
+     */
+    public FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+        this.small = ByteBuffer.allocate(BUFFER_SIZE);
+        this.buffer = small;
+    }
+
+    /**
+     * Answers if a KV message consists of the status byte only
+     */
+    static boolean kvMessageIsByte(byte status) {
+        switch((int) status) {
+            case 14:// SERVER_STOPPED
+            case 15:// SERVER_WRITE_LOCK
+            case 17:// AUTH_SUCCESS
+            case 18:// AUTH_ERROR
+            case 20:// SUB_SUCCESS
+            case 61:// SUB_ERROR
+                return true;
+            default: return false;
+        }
+    }
+
+    /**
+     * Answers according to an already set status flag, if the message has no value field
+     * @return no value field - true; value field - false
+     */
+    static boolean kvMessageIsShort(byte status) {
+        switch((int) status) {
+            case 1:// GET
+            case 2:// GET_ERROR
+            case 8:// DELETE
+            case 10:// DELETE_ERROR
+            case 9:// DELETE_SUCCESS
+            case 62:// UNSUB
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Answers if an admin message has no payload
+     */
+    static boolean adminMessageIsShort(byte status) {
+        switch((int) status) {
+            /* short AdminMessage */
+            case 21:// START
+            case 22:// STOP
+            case 23:// SHUT_DOWN
+            case 25:// LOCK_WRITE
+            case 26:// UNLOCK_WRITE
+            case 28:// PING
+            case 29:// CRASH
+
+            /* short ConfirmationMessage */
+            case 41:// RECEIVED_AND_EXECUTED
+            case 42:// AN_ERROR_OCCURED
+                return true;
+
+            default: return false; // hence, META_DATA and MOVE_DATA also delivers false
+        }
+    }
+
+    /**
+     * Determines the length of the message at the position of the buffer without consuming it.
+     * @param buf the received bytes between position and limit
+     * @return the length of the message; -1 if more bytes are needed
+     * @throws RuntimeException if a length field is negative
+     */
+    public static int frameLength(ByteBuffer buf) {
+        int begin = buf.position();
+        if (buf.remaining() < 1)
+            return -1;
+        byte statusByte = buf.get(begin);
+
+        if (StatusValidation.validAdminStatus(statusByte)) {
+            return adminMessageIsShort(statusByte) ? 1 : withPayload(buf, 1);
+        }
+        if (!StatusValidation.validKVStatus(statusByte) || kvMessageIsByte(statusByte))
+            return 1;
+
+        if (buf.remaining() < 2)
+            return -1;
+        int keyLength = buf.get(begin + 1);
+        if (keyLength < 0)
+            throw new RuntimeException("invalid key length");
+        int messageLength = 2 + keyLength;
+        if (kvMessageIsShort(statusByte))
+            return (buf.remaining() >= messageLength) ? messageLength : -1;
+        return withPayload(buf, messageLength);
+    }
+
+    /**
+     * @param messageLength the length of the message up to the payload length field
+     * @return the length of the message including the payload; -1 if more bytes are needed
+     */
+    private static int withPayload(ByteBuffer buf, int messageLength) {
+        if (buf.remaining() < messageLength + 4)
+            return -1;
+        int payloadLength = buf.getInt(buf.position() + messageLength);
+        if (payloadLength < 0)
+            throw new RuntimeException("invalid payload length");
+        messageLength += 4;
+        // a payload that does not fit into the largest buffer is not part of the message
+        if ((long) payloadLength + messageLength < MAX_FRAME_LENGTH)
+            messageLength += payloadLength;
+        return (buf.remaining() >= messageLength) ? messageLength : -1;
+    }
+
+    /**
+     * @param frame a message of the decoder
+     * @return the bytes of the message, the backing array if the message covers all of it
+     */
+    public static byte[] toArray(ByteBuffer frame) {
+        if (frame.hasArray() && frame.arrayOffset() == 0 && frame.position() == 0
+                && frame.remaining() == frame.array().length)
+            return frame.array();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * returns the next message if all of its bytes were received
+     * the message is a slice of the buffer, it is valid until the next call of fill(), readFrame() or read()
+     * @return the message; null if more bytes are needed
+     * @throws RuntimeException if the bytes are no valid message
+     */
+    public ByteBuffer next() {
+        ByteBuffer received = buffer.duplicate();
+        received.limit(buffer.position());
+        received.position(start);
+        int length = frameLength(received);
+        if (length < 0)
+            return null;
+
+        received.limit(start + length);
+        start += length;
+        return received.slice();
+    }
+
+    /**
+     * makes space for more bytes
+     * the bytes that were not returned yet move to the front, a buffer of the pool is borrowed
+     * while a message does not fit into the small buffer
+     */
+    private void prepare() {
+        if (start == buffer.position()) {
+            buffer.clear();
+            start = 0;
+            if (buffer != small) {
+                pool.release(buffer);
+                buffer = small;
+            }
+            return;
+        }
+
+        if (start > 0) {
+            buffer.flip();
+            buffer.position(start);
+            buffer.compact();
+            start = 0;
+        }
+        if (!buffer.hasRemaining() && buffer == small) {
+            ByteBuffer large = pool.acquire();
+            small.flip();
+            large.put(small);
+            small.clear();
+            buffer = large;
+        }
+    }
+
+    /**
+     * reads as many bytes as the channel has, e.g. from a non-blocking socket
+     * @param channel the connection
+     * @return the number of bytes read; -1 if the connection was closed
+     * @throws IOException if the channel could not be read
+     */
+    public int fill(ReadableByteChannel channel) throws IOException {
+        prepare();
+        return channel.read(buffer);
+    }
+
+    /**
+     * reads the next message from a stream
+     * more bytes than needed may be read, so the stream has to be read with this decoder only
+     * @param in the stream of the connection
+     * @return the message as a slice of the buffer
+     * @throws IOException if the stream could not be read
+     * @throws RuntimeException if the stream was closed or the bytes are no valid message
+     */
+    public ByteBuffer readFrame(InputStream in) throws IOException, RuntimeException {
+        ByteBuffer frame;
+        while ((frame = next()) == null) {
+            prepare();
+            int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (n == -1) throw new RuntimeException("disconnected");
+            buffer.position(buffer.position() + n);
+        }
+        return frame;
+    }
+
+    /**
+     * reads a single byte that is not part of a message, e.g. the carriage return after a reply
+     * @param in the stream of the connection
+     * @return the byte; -1 if the stream was closed
+     * @throws IOException if the stream could not be read
+     */
+    public int read(InputStream in) throws IOException {
+        if (start == buffer.position()) {
+            prepare();
+            int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (n == -1)
+                return -1;
+            buffer.position(buffer.position() + n);
+        }
+        return buffer.get(start++) & 0xff;
+    }
+
+    /**
+     * returns a borrowed buffer to the pool, called when the connection is closed
+     */
+    public void release() {
+        if (buffer != small) {
+            pool.release(buffer);
+            buffer = small;
+        }
+        buffer.clear();
+        start = 0;
+    }
+}
@@ -35,7 +35,7 @@ public class UniversalReader {
      * @throws RuntimeException
      */
     public byte[] readMessage(InputStream in) throws IOException, RuntimeException {
-        byte[] buffer = new byte[120030];
+        byte[] buffer = new byte[FrameDecoder.MAX_FRAME_LENGTH];
         int messageLength = 0;
         byte statusByte;
         readBytes(buffer, 1, in);
@@ -55,45 +55,12 @@ public class UniversalReader {
     
     
     private class KVReader extends UniversalReader {   
-        private boolean messageIsByte(byte status) {
-            switch((int) status) {
-                case 14:// SERVER_STOPPED  
-                case 15:// SERVER_WRITE_LOCK
-                case 17:// AUTH_SUCCESS
-                case 18:// AUTH_ERROR
-                case 20:// SUB_SUCCESS
-                case 61:// SUB_ERROR
-                    return true;
-                default: return false;
-            }
-        }
-
-
-        /**
-         * Answers according to an already set status flag, if the message has no value field
-         * @return no value field - true; value field - false
-         */
-        private boolean messageIsShort(byte status) {
-            switch((int) status) {
-                case 1:// GET
-                case 2:// GET_ERROR
-                case 8:// DELETE
-                case 10:// DELETE_ERROR
-                case 9:// DELETE_SUCCESS
-                case 62:// UNSUB
-                    return true;
-                default: 
-                    return false;
-            }
-        }
-
-
         public byte[] readKVMessage(InputStream in, byte[] buffer, int messageLength) throws IOException, RuntimeException {
             byte statusByte;
             statusByte = buffer[0];
 
             if(StatusValidation.validKVStatus(statusByte)) {
-                if(!messageIsByte(statusByte)) {
+                if(!FrameDecoder.kvMessageIsByte(statusByte)) {
                     byte[] keyLength = new byte[1];
                     readBytes(keyLength, 1, in);
                     System.arraycopy(keyLength, 0, buffer, messageLength, keyLength.length);
@@ -102,7 +69,7 @@ public class UniversalReader {
                     readBytes(key, key.length, in);
                     System.arraycopy(key, 0, buffer, messageLength, key.length);
                     messageLength += key.length;
-                    if(!messageIsShort(statusByte)) {
+                    if(!FrameDecoder.kvMessageIsShort(statusByte)) {
                         byte[] payloadLength = new byte[4];
                         readBytes(payloadLength, payloadLength.length, in);
                         System.arraycopy(payloadLength, 0, buffer, messageLength, payloadLength.length);
@@ -124,28 +91,6 @@ public class UniversalReader {
     
         
     private class PayloadReader extends UniversalReader {
-        private boolean messageIsShort(byte status) {
-            switch((int) status) {
-                /* short AdminMessage */
-                case 21:// START
-                case 22:// STOP
-                case 23:// SHUT_DOWN
-                case 25:// LOCK_WRITE
-                case 26:// UNLOCK_WRITE
-                case 28:// PING
-                case 29:// CRASH
-
-                /* short ConfirmationMessage */
-                case 41:// RECEIVED_AND_EXECUTED
-                case 42:// AN_ERROR_OCCURED
-                    return true;
-
-                    
-                default: return false; // hence, META_DATA and MOVE_DATA also delivers false
-            }
-        }
-
-
         /**
          * @param in -InputStream
          * @return Delivers the AdminMessage in form of a byte array. 
@@ -156,7 +101,7 @@ public class UniversalReader {
             byte statusByte;
             statusByte = buffer[0];
             
-            if(StatusValidation.validAdminStatus(statusByte) && !messageIsShort(statusByte)) { 
+            if(StatusValidation.validAdminStatus(statusByte) && !FrameDecoder.adminMessageIsShort(statusByte)) { 
                 byte[] payloadLength = new byte[4];
                 readBytes(payloadLength, payloadLength.length, in);
                 System.arraycopy(payloadLength, 0, buffer, messageLength, payloadLength.length);
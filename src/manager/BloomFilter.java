@@ -0,0 +1,88 @@
+package manager;
+
+/**
+ *   Bloom filter over the keys of a storage file
+ *   Answers "definitely not present" for most absent keys, so lookups of new keys do not
+ *   need to touch the index. Keys cannot be removed, the filter is rebuilt instead.
+ *   The filter uses 10 bits and 7 hash functions per key, which gives a false positive
+ *   rate of about 1% as long as no more than capacity keys were added.
+ *   add() must not run concurrently with other methods.
+ */
+public class BloomFilter {
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+
+    private final long[] bits;
+    private final long num_bits;
+    private final int capacity;
+
+    /**
+     *
+     * @param capacity the number of keys the filter is sized for
+     */
+    public BloomFilter(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+        bits = new long[(int)(((long)this.capacity*BITS_PER_KEY + 63)/64)];
+        num_bits = (long)bits.length*64;
+    }
+
+    /**
+     *
+     * @return the number of keys the filter is sized for
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * adds a key to the filter
+     * @param key the bytes of the key
+     * @param offset the offset of the key in the array
+     * @param length the length of the key
+     */
+    public void add(byte[] key, int offset, int length) {
+        long hash = hash(key, offset, length);
+        long h1 = hash & 0xffffffffL;
+        long h2 = hash >>> 32;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            long bit = (h1 + i*h2) % num_bits;
+            bits[(int)(bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     *
+     * @param key the bytes of the key
+     * @param offset the offset of the key in the array
+     * @param length the length of the key
+     * @return false if the key was definitely never added, true if it might have been added
+     */
+    public boolean mightContain(byte[] key, int offset, int length) {
+        long hash = hash(key, offset, length);
+        long h1 = hash & 0xffffffffL;
+        long h2 = hash >>> 32;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            long bit = (h1 + i*h2) % num_bits;
+            if ((bits[(int)(bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     *   64 bit FNV-1a hash with a final mix, so that both halves can be used as independent hashes
+     */
+    private static long hash(byte[] key, int offset, int length) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset+length; i++) {
+            h ^= key[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,11 +1,32 @@
 package manager;
 
+import cache.AdaptiveCache;
 import cache.LFUCache;
 import cache.CacheEntry;
 import cache.FIFOCache;
 import cache.LRUCache;
+import cache.NegativeCache;
+import cache.SlabCache;
+import cache.StripedCache;
+import cache.TinyLFUCache;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 import cache.Cache;
+import common.messages.KVMessage;
 import common.messages.KVMessage.StatusType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,29 +35,109 @@ import java.io.IOException;
 import common.hashing.Range;
 import client.KVStore;
 import common.constants.PortOffset;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
         
 /**
  *
  * @author Andreas
  */
 public class CacheManager {    
-    private Cache cache;
+    // caches smaller than this per stripe use fewer stripes
+    private static final int MIN_STRIPE_SIZE = 64;
+    private static final long MIN_STRIPE_WEIGHT = 1000*1000;
+    // the cache is not shrunk below this percentage of its configured capacity
+    private static final int MIN_CAPACITY_PERCENT = 10;
+    private static final long HEAP_CHECK_INTERVAL = 10*1000;
+    // the passes of a move that resend the tuples written meanwhile without holding the locks
+    private static final int MOVE_PASSES = 3;
+    
+    private StripedCache cache;
     private Logger logger;
     private Boolean write_locked;
     private Boolean moved_data;
     private Boolean is_stopped;
     private Boolean is_alive;
-    private StorageManager storage_manager;
+    private Storage storage_manager;
     private SubscriptionManager sub_manager = null;
-    final ReentrantReadWriteLock rwl = new ReentrantReadWriteLock();
+    private WriteAheadLog wal = null;
+    private Compactor compactor;
+    private WriteBehindQueue write_behind;
+    private CacheManifest manifest = null;
+    private Thread warm_up = null;
+    private HeapMonitor heap_monitor = null;
+    // the configured capacity of every stripe, the heap monitor scales it
+    private int[] stripe_sizes;
+    private long[] stripe_weights;
+    private volatile int capacity_percent = 100;
+    private final AtomicLong cache_resizes = new AtomicLong();
+    // one lock per stripe of the cache, requests for a single key only lock the stripe of the key
+    // operations on the whole cache lock all stripes in ascending order
+    private ReentrantLock[] stripe_locks;
+    // the keys of every stripe that were recently found absent on disk, guarded by the stripe lock
+    private NegativeCache[] absent_keys;
+    // protects the storage, so that the flusher and the compactor do not block cache accesses
+    // lock order: stripe locks before storage_lock
+    private final ReentrantReadWriteLock storage_lock = new ReentrantReadWriteLock();
+    // incremented on every modification of the storage (while holding the storage write lock)
+    // lets readers detect that a value they read under the read lock might be outdated
+    private volatile long storage_version = 0;
+    // the loads of keys that are read from disk right now, guarded by the stripe lock of the key
+    private final ConcurrentHashMap<String,CompletableFuture<String>> loads = new ConcurrentHashMap<String,CompletableFuture<String>>();
+    // the number of cache misses that waited for the load of another request
+    private final AtomicLong coalesced_loads = new AtomicLong();
+    // lookups of get() that were answered by the cache, and those that were not
+    private final AtomicLong cache_hits = new AtomicLong();
+    private final AtomicLong cache_misses = new AtomicLong();
+    // cache misses that were answered by the negative cache, and those that had to read the disk
+    private final AtomicLong negative_hits = new AtomicLong();
+    private final AtomicLong negative_misses = new AtomicLong();
+    // the number of keys that were loaded into the cache by the warm-up
+    private final AtomicLong warmed_keys = new AtomicLong();
     
     /**
      * initializes the cache and disk storage
+     * the storage options are taken from the system properties
      * @param maxsize the maximum number of elements in the cache
-     * @param type the replacement strategy (LRU, LFU or FIFO)
+     * @param type the replacement strategy (LRU, LFU, FIFO, TLFU or ADAPTIVE)
      * @param port the port that the server is using
      */
     public CacheManager(int maxsize, String type, int port) { 
+        this(maxsize, 0, type, port, StorageOptions.fromSystemProperties());
+    }
+    
+    /**
+     * initializes the cache and disk storage
+     * the storage options are taken from the system properties
+     * @param maxsize the maximum number of elements in the cache
+     * @param max_weight the maximum number of bytes (keys plus values) in the cache, 0 for no limit
+     * @param type the replacement strategy (LRU, LFU, FIFO, TLFU or ADAPTIVE)
+     * @param port the port that the server is using
+     */
+    public CacheManager(int maxsize, long max_weight, String type, int port) { 
+        this(maxsize, max_weight, type, port, StorageOptions.fromSystemProperties());
+    }
+    
+    /**
+     * initializes the cache and disk storage
+     * @param maxsize the maximum number of elements in the cache
+     * @param type the replacement strategy (LRU, LFU, FIFO, TLFU or ADAPTIVE)
+     * @param port the port that the server is using
+     * @param options the storage options, e.g. the storage engine (HEAP or LOG) or recovery mode
+     */
+    public CacheManager(int maxsize, String type, int port, StorageOptions options) { 
+        this(maxsize, 0, type, port, options);
+    }
+    
+    /**
+     * initializes the cache and disk storage
+     * @param maxsize the maximum number of elements in the cache
+     * @param max_weight the maximum number of bytes (keys plus values) in the cache, 0 for no limit
+     * @param type the replacement strategy (LRU, LFU, FIFO, TLFU or ADAPTIVE)
+     * @param port the port that the server is using
+     * @param options the storage options, e.g. the storage engine (HEAP or LOG) or recovery mode
+     */
+    public CacheManager(int maxsize, long max_weight, String type, int port, StorageOptions options) { 
         logger = LogManager.getLogger(Constants.SERVER_NAME);
         write_locked = false;
         moved_data = false;
@@ -44,21 +145,356 @@ public class CacheManager {
         is_alive = true;
         
         // init storage files
-        storage_manager = new StorageManager(port);
+        if (options.getStorageBuckets() > 1)
+            storage_manager = new PartitionedStorage(port, options.getStorageType(), options.getStorageBuckets());
+        else if (options.getStorageType().equals("LOG"))
+            storage_manager = new LogStorageManager(port);
+        else
+            storage_manager = new StorageManager(port);
+        if (options.getRecover())
+            recoverStorage();
+        else {
+            try {
+                storage_manager.initClearedStorage();
+            }
+            catch (IOException ioe) {
+                logger.error("Could not create storage files!", ioe);
+            }
+        }
+        
+        // reclaim the space of moved and deleted data in the background
+        compactor = new Compactor(storage_manager, storage_lock, options.getCompactionRate());
+        compactor.start();
+        
+        // evicted dirty tuples are written to disk in the background
+        write_behind = new WriteBehindQueue(storage_manager, storage_lock, options.getWriteBehindSize(), () -> storage_version++);
+        write_behind.start();
+        
+        // init write-ahead log
+        if (!options.getWalPolicy().equals("OFF"))
+            initWriteAheadLog(port, options);
+        
+        // init cache, the capacity is split evenly over the stripes
+        int stripes = options.getCacheStripes();
+        if (max_weight > 0)
+            stripes = (int)Math.min(stripes, max_weight/MIN_STRIPE_WEIGHT);
+        else
+            stripes = Math.min(stripes, maxsize/MIN_STRIPE_SIZE);
+        stripes = Math.max(1, stripes);
+        if (options.getCacheOffHeap() && !type.equals("LRU"))
+            logger.info("The off-heap cache uses LRU instead of "+type);
+        Cache[] caches = new Cache[stripes];
+        stripe_locks = new ReentrantLock[stripes];
+        absent_keys = new NegativeCache[stripes];
+        stripe_sizes = new int[stripes];
+        stripe_weights = new long[stripes];
+        int negative_size = options.getNegativeCacheSize();
+        for (int s = 0; s < stripes; s++) {
+            int stripe_size = maxsize/stripes + ((s < maxsize%stripes) ? 1 : 0);
+            long stripe_weight = max_weight/stripes + ((s < max_weight%stripes) ? 1 : 0);
+            stripe_sizes[s] = stripe_size;
+            stripe_weights[s] = stripe_weight;
+            if (options.getCacheOffHeap())
+                caches[s] = new SlabCache(stripe_size, stripe_weight);
+            else if (type.equals("LFU"))
+                caches[s] = new LFUCache(stripe_size, stripe_weight);
+            else if(type.equals("FIFO"))
+                caches[s] = new FIFOCache(stripe_size, stripe_weight);
+            else if(type.equals("TLFU"))
+                caches[s] = new TinyLFUCache(stripe_size, stripe_weight);
+            else if(type.equals("ADAPTIVE"))
+                caches[s] = new AdaptiveCache(stripe_size, stripe_weight);
+            else
+                caches[s] = new LRUCache(stripe_size, stripe_weight);
+            stripe_locks[s] = new ReentrantLock();
+            absent_keys[s] = new NegativeCache(negative_size/stripes + ((s < negative_size%stripes) ? 1 : 0));
+        }
+        cache = new StripedCache(caches);
+        
+        // remember the keys in the cache, a recovered storage loads them again in the background
+        if (options.getManifestInterval() > 0) {
+            manifest = new CacheManifest(port, options.getManifestInterval(), this::hotKeys);
+            if (options.getRecover())
+                warmUp(manifest.read(), options.getWarmUpThreads());
+            manifest.start();
+        }
+        
+        // shrink the cache when the heap runs full, grow it again when there is headroom
+        if (options.getHeapHighWater() > 0) {
+            heap_monitor = new HeapMonitor(options.getHeapHighWater()/100.0, options.getHeapLowWater()/100.0, HEAP_CHECK_INTERVAL,
+                    () -> resizeCache(Math.max(MIN_CAPACITY_PERCENT, capacity_percent*3/4)),
+                    () -> resizeCache(Math.min(100, capacity_percent+10)));
+            if (!heap_monitor.watch())
+                heap_monitor = null;
+        }
+    }
+    
+    /**
+     * changes the capacity of every stripe to a percentage of its configured capacity
+     * stripes that exceed their new capacity evict tuples, the dirty ones are written to storage
+     * called by the heap monitor, only one thread resizes the cache at a time
+     * @param percent the new capacity in percent of the configured capacity
+     */
+    public void resizeCache(int percent) {
+        if (percent == capacity_percent)
+            return;
+        
+        for (int s = 0; s < stripe_locks.length; s++) {
+            Cache stripe = cache.getStripe(s);
+            stripe_locks[s].lock();
+            try {
+                // with a byte budget only the budget is scaled
+                if (stripe_weights[s] > 0)
+                    stripe.setCapacity(stripe_sizes[s], Math.max(1, stripe_weights[s]*percent/100));
+                else
+                    stripe.setCapacity((int)Math.max(1, (long)stripe_sizes[s]*percent/100), 0);
+                trim(stripe);
+            }
+            finally {
+                stripe_locks[s].unlock();
+            }
+        }
+        
+        logger.info("Resized the cache from "+capacity_percent+"% to "+percent+"% of its capacity, "+cache.size()+" tuples ("+cache.weight()+" bytes) are cached");
+        capacity_percent = percent;
+        cache_resizes.incrementAndGet();
+    }
+    
+    /**
+     *
+     * @return the capacity of the cache in percent of the configured capacity,
+     * less than 100 while the cache is shrunk because the heap is almost full
+     */
+    public int getCapacityPercent() {
+        return capacity_percent;
+    }
+    
+    /**
+     *
+     * @return the number of times the capacity of the cache was changed because of the usage of the heap
+     */
+    public long getCacheResizes() {
+        return cache_resizes.get();
+    }
+    
+    /**
+     * collects the keys in the cache, the keys of every stripe in its replacement order
+     * @return the keys in the cache
+     */
+    private List<String> hotKeys() {
+        ArrayList<String> keys = new ArrayList<String>();
+        for (int s = 0; s < stripe_locks.length; s++) {
+            Cache stripe = cache.getStripe(s);
+            stripe_locks[s].lock();
+            try {
+                CacheEntry entry = stripe.iteratorStart();
+                while (entry != null) {
+                    if (!entry.isDeleted())
+                        keys.add(entry.getKey());
+                    entry = stripe.iteratorNext();
+                }
+            }
+            finally {
+                stripe_locks[s].unlock();
+            }
+        }
+        return keys;
+    }
+    
+    /**
+     * loads keys into the cache in the background
+     * the keys are read in parallel and roughly in the given order, so the most valuable keys
+     * of the manifest are loaded last and survive if the cache is smaller than before
+     * @param keys the keys to be loaded
+     * @param threads the number of threads that read from the storage
+     */
+    private void warmUp(List<String> keys, int threads) {
+        if (keys.isEmpty())
+            return;
+        
+        warm_up = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+                Thread t = new Thread(r, "WarmUp");
+                t.setDaemon(true);
+                return t;
+            });
+            for (String key : keys)
+                pool.execute(() -> preload(key));
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                logger.info("Warmed up the cache with "+warmed_keys.get()+" of "+keys.size()+" keys in "+(System.currentTimeMillis()-start)+" ms");
+            }
+            catch (InterruptedException ie) {
+                pool.shutdownNow();
+            }
+        }, "WarmUp");
+        warm_up.setDaemon(true);
+        warm_up.start();
+    }
+    
+    /**
+     * loads a key from disk into the cache unless it is there already
+     * concurrent requests for the key share the load like in get()
+     * @param key the key to be loaded
+     */
+    private void preload(String key) {
+        int s = cache.stripeOf(key);
+        Cache stripe = cache.getStripe(s);
+        ReentrantLock lock = stripe_locks[s];
+        CompletableFuture<String> load = new CompletableFuture<String>();
+        long version;
+        lock.lock();
+        try {
+            // requests might have loaded or written the key already
+            if (stripe.containsKey(key) || write_behind.get(key) != null || loads.containsKey(key))
+                return;
+            loads.put(key, load);
+            version = storage_version;
+        }
+        finally {
+            lock.unlock();
+        }
+        
+        String value = null;
         try {
-            storage_manager.initClearedStorage();   // TODO: change this?
+            value = loadFromDisk(stripe, absent_keys[s], lock, key, version);
+            if (value != null)
+                warmed_keys.incrementAndGet();
+        }
+        finally {
+            load.complete(value);
+        }
+    }
+    
+    /**
+     * waits until the warm-up of the cache after a restart is finished
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void awaitWarmUp() throws InterruptedException {
+        if (warm_up != null)
+            warm_up.join();
+    }
+    
+    /**
+     *
+     * @return the number of keys that were loaded into the cache by the warm-up after a restart
+     */
+    public long getWarmedKeys() {
+        return warmed_keys.get();
+    }
+    
+    /**
+     * locks all stripes of the cache
+     */
+    private void lockAll() {
+        for (ReentrantLock lock : stripe_locks)
+            lock.lock();
+    }
+    
+    /**
+     * unlocks all stripes of the cache
+     */
+    private void unlockAll() {
+        for (int s = stripe_locks.length-1; s >= 0; s--)
+            stripe_locks[s].unlock();
+    }
+    
+    /**
+     * reopens the storage files of a previous run
+     * falls back to empty storage files if they cannot be recovered
+     */
+    private void recoverStorage() {
+        long start = System.currentTimeMillis();
+        try {
+            long records = storage_manager.recover();
+            logger.info("Recovered "+records+" records from storage in "+(System.currentTimeMillis()-start)+" ms");
+            return;
+        }
+        catch (IOException ioe) {
+            logger.error("Could not recover storage files, starting with empty storage!", ioe);
+        }
+        
+        try {
+            storage_manager.initClearedStorage();
         }
         catch (IOException ioe) {
             logger.error("Could not create storage files!", ioe);
         }
+    }
+    
+    /**
+     * opens the write-ahead log
+     * in recovery mode the log of the previous run is replayed into the storage first,
+     * otherwise it is discarded together with the old storage
+     * @param port the port that the server is using
+     * @param options the storage options containing the sync policy
+     */
+    private void initWriteAheadLog(int port, StorageOptions options) {
+        try {
+            wal = new WriteAheadLog(port, options.getWalPolicy(), options.getWalInterval());
+            if (options.getRecover()) {
+                long start = System.currentTimeMillis();
+                long records = wal.replay(storage_manager);
+                storage_manager.sync();
+                logger.info("Replayed "+records+" records from the write-ahead log in "+(System.currentTimeMillis()-start)+" ms");
+            }
+            wal.truncate();
+            wal.start();
+        }
+        catch (IOException ioe) {
+            logger.error("Could not open the write-ahead log, writes are not logged!", ioe);
+            wal = null;
+        }
+    }
+    
+    /**
+     * writes all dirty cache entries to the storage, forces the storage to disk
+     * and empties the write-ahead log afterwards
+     */
+    public void checkpoint() {
+        if (wal == null)
+            return;
         
-        // init cache
-        if (type.equals("LFU"))
-            cache = new LFUCache(maxsize);
-        else if(type.equals("FIFO"))
-            cache = new FIFOCache(maxsize);
-        else
-            cache = new LRUCache(maxsize);
+        lockAll();
+        try {
+            checkpointLocked();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+    
+    /**
+     * checkpoint while the caller holds the locks of all stripes
+     */
+    private void checkpointLocked() {
+        if (wal == null)
+            return;
+        
+        try {
+            write_behind.flush();
+            storage_lock.writeLock().lock();
+            try {
+                CacheEntry entry = cache.iteratorStart();
+                while (entry != null) {
+                    if (entry.isDirty() && !entry.isDeleted()) {
+                        writeToDisk(entry.getKey(), entry.getValue());
+                        entry.setClean();
+                    }
+                    entry = cache.iteratorNext();
+                }
+                storage_manager.sync();
+            }
+            finally {
+                storage_lock.writeLock().unlock();
+            }
+            wal.truncate();
+        }
+        catch (IOException ioe) {
+            logger.error("Exception during checkpoint", ioe);
+        }
     }
     
     /**
@@ -69,6 +505,129 @@ public class CacheManager {
         return cache.size();
     }
     
+    /**
+     *
+     * @return the number of bytes (keys plus values) currently in the cache
+     */
+    public long weight() {
+        return cache.weight();
+    }
+    
+    /**
+     *
+     * @return the fraction of disk lookups for absent keys that the key filter of the storage
+     * could not answer without searching the storage
+     */
+    public double getStorageFalsePositiveRate() {
+        return storage_manager.getFalsePositiveRate();
+    }
+    
+    /**
+     *
+     * @return the number of cache misses that were served by the disk lookup of a concurrent
+     * request for the same key instead of their own
+     */
+    public long getCoalescedLoads() {
+        return coalesced_loads.get();
+    }
+    
+    /**
+     *
+     * @return the number of get requests that found the key in the cache or the write-behind queue
+     */
+    public long getCacheHits() {
+        return cache_hits.get();
+    }
+    
+    /**
+     *
+     * @return the number of get requests that did not find the key in the cache or the write-behind queue
+     */
+    public long getCacheMisses() {
+        return cache_misses.get();
+    }
+    
+    /**
+     *
+     * @return the number of cache misses that were answered by the negative cache without reading the disk
+     */
+    public long getNegativeHits() {
+        return negative_hits.get();
+    }
+    
+    /**
+     *
+     * @return the number of cache misses that were not answered by the negative cache
+     */
+    public long getNegativeMisses() {
+        return negative_misses.get();
+    }
+    
+    /**
+     * the simulations of all stripes are summed up
+     * @return the fraction of the sampled get requests that the simulation of every strategy
+     * could serve from the cache, empty if the cache is not adaptive
+     */
+    public Map<String,Double> getSimulatedHitRates() {
+        Map<String,Double> rates = new LinkedHashMap<String,Double>();
+        long[] hits = new long[AdaptiveCache.POLICIES.length];
+        long requests = 0;
+        for (int s = 0; s < stripe_locks.length; s++) {
+            if (!(cache.getStripe(s) instanceof AdaptiveCache))
+                return rates;
+            
+            stripe_locks[s].lock();
+            try {
+                AdaptiveCache stripe = (AdaptiveCache)cache.getStripe(s);
+                for (int p = 0; p < hits.length; p++)
+                    hits[p] += stripe.getSimulatedHits(p);
+                requests += stripe.getSimulatedRequests();
+            }
+            finally {
+                stripe_locks[s].unlock();
+            }
+        }
+        for (int p = 0; p < hits.length; p++)
+            rates.put(AdaptiveCache.POLICIES[p], (requests > 0) ? (double)hits[p]/requests : 0.0);
+        return rates;
+    }
+    
+    /**
+     *
+     * @return the strategy that is used by every stripe right now, empty if the cache is not adaptive
+     */
+    public Map<Integer,String> getAdaptivePolicies() {
+        Map<Integer,String> policies = new LinkedHashMap<Integer,String>();
+        for (int s = 0; s < stripe_locks.length; s++) {
+            if (!(cache.getStripe(s) instanceof AdaptiveCache))
+                break;
+            
+            stripe_locks[s].lock();
+            try {
+                policies.put(s, ((AdaptiveCache)cache.getStripe(s)).getPolicy());
+            }
+            finally {
+                stripe_locks[s].unlock();
+            }
+        }
+        return policies;
+    }
+    
+    /**
+     * forgets all keys that were found absent
+     */
+    private void clearAbsentKeys() {
+        for (int s = 0; s < stripe_locks.length; s++) {
+            stripe_locks[s].lock();
+            try {
+                absent_keys[s].clear();
+            }
+            finally {
+                stripe_locks[s].unlock();
+            }
+        }
+    }
+    
     /**
      *
      * @return if the storage server is write locked
@@ -89,17 +648,12 @@ public class CacheManager {
      */       
     public void unLockWrite() {
         if (moved_data) {
-            // after moveData() is done, we delete the moved data using vacuum()
-            rwl.writeLock().lock();
+            // after moveData() is done, we delete the moved data
+            // the tuples on disk are already flagged as deleted, the space is reclaimed in the background
+            lockAll();
             try {
                 moved_data = false;
-                try {
-                    // delete from disk storage
-                    storage_manager.vacuum();
-                }
-                catch (IOException e) {
-                    logger.error("Exception during vacuum()", e);
-                }
+                compactor.request();
 
                 // delete from cache            
                 cache.vacuum();
@@ -107,9 +661,12 @@ public class CacheManager {
                 // delete subscriptions
                 if (this.sub_manager != null)
                     sub_manager.vacuum();
+                
+                // the log must not bring back the moved data after a restart
+                checkpointLocked();
             }
             finally {
-                rwl.writeLock().unlock();
+                unlockAll();
             }
         }
         write_locked = false;
@@ -133,6 +690,20 @@ public class CacheManager {
      * marks the server for shut down
      */
     public void shutDown() {
+        compactor.close();
+        if (heap_monitor != null)
+            heap_monitor.close();
+        if (manifest != null) {
+            manifest.close();
+            try {
+                manifest.write();
+            }
+            catch (IOException ioe) {
+                logger.error("Could not write the cache manifest", ioe);
+            }
+        }
+        checkpoint();
+        write_behind.close();
         is_alive = false;
     }
     
@@ -162,7 +733,7 @@ public class CacheManager {
      * @param ip the ip of the target server
      * @param port the port of the target server
      * @param del indicates if data should be deleted after move
-     * @return whether it was possible to connect to another server
+     * @return whether it was possible to connect to another server and send the storage to it
      */
     public boolean moveData(Range range, String ip, int port, boolean del) {
         // create kvstore object
@@ -176,43 +747,76 @@ public class CacheManager {
             return false;
         }        
         
-        rwl.writeLock().lock();
+        // the evicted tuples have to be on disk before the storage is pinned,
+        // so the snapshots of the cache and the storage hold the latest version of every key
+        Predicate<String> in_range = key -> range.withinRange(key);
+        ArrayList<Iterator<CacheEntry>> snapshots = new ArrayList<Iterator<CacheEntry>>();
+        Map<String,FileRegion> regions;
+        lockAll();
         try {
-            // get from cache
-            CacheEntry entry = cache.iteratorStart();
-            while(entry != null) {
-                if (range.withinRange(entry.getKey())) {
-                    if (del)
-                        entry.setDeleted();
-                    kvClient.put(entry.getKey(), entry.getValue());
-                }
-                entry = cache.iteratorNext();
+            flushWriteBehind();
+            for (int s = 0; s < stripe_locks.length; s++)
+                snapshots.add(cache.getStripe(s).snapshot(in_range));
+            storage_lock.readLock().lock();
+            try {
+                regions = storage_manager.getRegions(range);
             }
-
-            // get from storage
-            if (del)
-                storage_manager.moveData(range, kvClient, cache);
-            else
-                storage_manager.replicateData(range, kvClient, cache);
-
-            // disconnect
+            finally {
+                storage_lock.readLock().unlock();
+            }
+        }
+        catch (IOException e) {
+            logger.error("Exception while flushing or reading the storage in moveData()", e);
             kvClient.disconnect();
+            return false;
+        }
+        finally {
+            unlockAll();
+        }
 
-            if (del) {
-                // move subscribers
-                // we only do this if del is true, since replication of subs is not supported currently
-                if (sub_manager != null)
-                    sub_manager.moveData(range, kvClient);
-                
-                // mark for later cleanup
-                moved_data = true;
+        // send from the snapshots, neither the cache nor the storage is locked meanwhile
+        // the pinned tuples on disk are skipped if the cache holds a newer version
+        HashMap<String,String> sent = new HashMap<String,String>();
+        try {
+            for (Iterator<CacheEntry> snapshot : snapshots) {
+                while (snapshot.hasNext()) {
+                    CacheEntry entry = snapshot.next();
+                    send(kvClient, entry.getKey(), entry.getValue());
+                    sent.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (Map.Entry<String,FileRegion> e : regions.entrySet()) {
+                if (!sent.containsKey(e.getKey()))
+                    send(kvClient, e.getKey(), e.getValue().read());
             }
 
-            return true;
+            if (del)
+                sendChangedAndDelete(range, kvClient, sent, regions);
+        }
+        catch (IOException e) {
+            // the range is only deleted after every tuple was acknowledged, so nothing was deleted
+            logger.error("Exception while sending in moveData()", e);
+            kvClient.disconnect();
+            return false;
         }
         finally {
-            rwl.writeLock().unlock();
+            releaseAll(regions);
+        }
+
+        // disconnect
+        kvClient.disconnect();
+
+        if (del) {
+            // move subscribers
+            // we only do this if del is true, since replication of subs is not supported currently
+            if (sub_manager != null)
+                sub_manager.moveData(range, kvClient);
+
+            // mark for later cleanup
+            moved_data = true;
         }
+
+        return true;
     }
     
     /**
@@ -221,9 +825,12 @@ public class CacheManager {
      * @return indicates if the operation was successful
      */    
     public boolean deleteData(Range range) {
-        rwl.writeLock().lock();
+        lockAll();
         
         try {
+            // the evicted tuples have to be on disk first, otherwise they would be written afterwards
+            flushWriteBehind();
+            
             // delete from cache
             CacheEntry entry = cache.iteratorStart();
             while(entry != null) {
@@ -234,20 +841,291 @@ public class CacheManager {
             }      
             cache.vacuum();
 
-            // delete from disk        
+            // delete from disk, the space is reclaimed in the background
+            storage_lock.writeLock().lock();
             try {
+                storage_version++;
                 storage_manager.deleteData(range);
-                storage_manager.vacuum();
+            }
+            finally {
+                storage_lock.writeLock().unlock();
+            }
+            clearAbsentKeys();
+            compactor.request();
+            
+            // the log must not bring back the deleted data after a restart
+            checkpointLocked();
+
+            return true;
+        }
+        catch (IOException ioe) {
+            logger.error("Could not write the evicted tuples before deleting a range", ioe);
+            return false;
+        }
+        finally {
+            unlockAll();
+        }
+    }
+    
+    /**
+     * sends the tuples that were written since the snapshots again until a pass finds none,
+     * and deletes the range only then, under the same locks, so that no write is lost
+     * the last pass sends while it holds the locks, so that the move ends under steady writes
+     * @param range the range of keys that was sent
+     * @param kvClient the connection to the target
+     * @param sent the tuples that were sent from the cache, gets the ones that are sent again
+     * @param regions the tuples that were pinned in the storage, the ones that were not in sent were sent from there
+     * @throws IOException if a tuple could not be sent or the storage could not be read, nothing is deleted in this case
+     */
+    private void sendChangedAndDelete(Range range, KVStore kvClient, Map<String,String> sent, Map<String,FileRegion> regions) throws IOException {
+        for (int pass = 1; ; pass++) {
+            HashMap<String,String> changed = new HashMap<String,String>();
+            lockAll();
+            try {
+                changedSince(range, sent, regions, changed);
+                if (changed.isEmpty() || pass == MOVE_PASSES) {
+                    for (Map.Entry<String,String> e : changed.entrySet())
+                        send(kvClient, e.getKey(), e.getValue());
+                    deleteMoved(range);
+                    return;
+                }
+            }
+            finally {
+                unlockAll();
+            }
+            
+            for (Map.Entry<String,String> e : changed.entrySet()) {
+                send(kvClient, e.getKey(), e.getValue());
+                sent.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+    
+    /**
+     * finds the tuples in the range that were written since they were sent, the evicted tuples
+     * are flushed first, so that the cache and the storage hold the latest version of every key
+     * the caller has to hold the locks of all stripes
+     * @param range the range of keys that was sent
+     * @param sent the tuples that were sent from the cache
+     * @param regions the tuples that were pinned in the storage, the ones that were not in sent were sent from there
+     * @param changed gets the tuples that have to be sent again, "null" for deleted ones
+     * @throws IOException if the evicted tuples could not be written or the storage could not be read
+     */
+    private void changedSince(Range range, Map<String,String> sent, Map<String,FileRegion> regions, Map<String,String> changed) throws IOException {
+        HashSet<String> cached_keys = new HashSet<String>();
+        flushWriteBehind();
+        
+        // the cache holds the latest version of its keys
+        CacheEntry entry = cache.iteratorStart();
+        while (entry != null) {
+            if (range.withinRange(entry.getKey()) && !entry.isDeleted()) {
+                if (!entry.getValue().equals(sent.get(entry.getKey())))
+                    changed.put(entry.getKey(), entry.getValue());
+                cached_keys.add(entry.getKey());
+            }
+            entry = cache.iteratorNext();
+        }
+        
+        storage_lock.readLock().lock();
+        try {
+            // a pinned tuple is not overwritten in place, a tuple at another location was written again
+            Map<String,FileRegion> current = storage_manager.getRegions(range);
+            try {
+                for (Map.Entry<String,FileRegion> e : current.entrySet()) {
+                    String key = e.getKey();
+                    if (cached_keys.contains(key))
+                        continue;
+                    if (sent.containsKey(key)) {
+                        String value = e.getValue().read();
+                        if (!value.equals(sent.get(key)))
+                            changed.put(key, value);
+                    }
+                    else if (!regions.containsKey(key) || !regions.get(key).sameLocation(e.getValue()))
+                        changed.put(key, e.getValue().read());
+                }
+                
+                // the keys that are gone were deleted since
+                HashSet<String> gone = new HashSet<String>(sent.keySet());
+                gone.addAll(regions.keySet());
+                for (String key : gone) {
+                    if (!cached_keys.contains(key) && !current.containsKey(key) && !"null".equals(sent.get(key)))
+                        changed.put(key, "null");
+                }
+            }
+            finally {
+                releaseAll(current);
+            }
+        }
+        finally {
+            storage_lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * marks the moved tuples for deletion in the cache and the storage
+     * the caller has to hold the locks of all stripes and every tuple has to be acknowledged by the target
+     * @param range the range of keys that was moved
+     */
+    private void deleteMoved(Range range) {
+        storage_lock.writeLock().lock();
+        try {
+            storage_version++;
+            storage_manager.deleteData(range);
+        }
+        finally {
+            storage_lock.writeLock().unlock();
+        }
+        
+        CacheEntry entry = cache.iteratorStart();
+        while (entry != null) {
+            if (range.withinRange(entry.getKey()))
+                entry.setDeleted();
+            entry = cache.iteratorNext();
+        }
+        clearAbsentKeys();
+    }
+    
+    private void releaseAll(Map<String,FileRegion> regions) {
+        for (FileRegion region : regions.values()) {
+            try {
+                region.release();
             }
             catch (IOException ioe) {
-                logger.error("IO Exception during vacuum. ",ioe);
+                logger.error("Could not close a storage file after a move", ioe);
+            }
+        }
+    }
+    
+    /**
+     * sends a KV-tuple to the target of a move
+     * @param kvClient the connection to the target
+     * @param key the key of the tuple
+     * @param value the value of the tuple, or "null" to delete
+     * @throws IOException if the target did not store the tuple
+     */
+    private static void send(KVStore kvClient, String key, String value) throws IOException {
+        KVMessage reply = kvClient.put(key, value);
+        StatusType status = (reply == null) ? null : reply.getStatus();
+        // a key that is deleted does not have to exist on the target
+        boolean stored = value.equals("null") ? (status == StatusType.DELETE_SUCCESS || status == StatusType.DELETE_ERROR)
+                : (status == StatusType.PUT_SUCCESS || status == StatusType.PUT_UPDATE);
+        if (!stored)
+            throw new IOException("could not send " + key + ": " + ((reply == null) ? "no reply" : status));
+    }
+    
+    // values of at least this size are served from disk without copying them to the heap
+    private static final int ZERO_COPY_THRESHOLD = 16*1000;
+    
+    /**
+     * receives the region of a value in the storage file
+     */
+    public interface RegionWriter {
+        /**
+         * @param region the value in the storage file, valid until the method returns
+         * @throws IOException if the region could not be written
+         */
+        public void write(FileRegion region) throws IOException;
+    }
+    
+    /**
+     * serves a large value that is not in the cache directly from the storage file
+     * the value is neither read into the heap nor inserted into the cache
+     * the storage is not locked while the writer sends the value
+     * @param key the key to look for
+     * @param writer gets the region of the value in the storage file
+     * @return false if the key is cached, not on disk, or its value is small;
+     * use get() in this case
+     * @throws IOException if the writer failed
+     */
+    public boolean getFromDisk(String key, RegionWriter writer) throws IOException {
+        int s = cache.stripeOf(key);
+        ReentrantLock lock = stripe_locks[s];
+        lock.lock();
+        try {
+            // the cache or the write-behind queue might hold a newer version
+            if (cache.containsKey(key) || write_behind.get(key) != null || absent_keys[s].contains(key))
+                return false;
+        }
+        finally {
+            lock.unlock();
+        }
+        
+        // neither the stripe nor the storage is locked while the value is sent,
+        // the pinned region is not overwritten or closed until it is released
+        FileRegion region;
+        storage_lock.readLock().lock();
+        try {
+            region = storage_manager.getRegion(key);
+        }
+        finally {
+            storage_lock.readLock().unlock();
+        }
+        if (region == null)
+            return false;
+        
+        try {
+            if (region.size() < ZERO_COPY_THRESHOLD)
+                return false;
+            
+            writer.write(region);
+            return true;
+        }
+        finally {
+            region.release();
+        }
+    }
+    
+    // the bytes of the value of a deleted tuple
+    private static final ByteBuffer NULL_BYTES = ByteBuffer.wrap("null".getBytes(StandardCharsets.UTF_8));
+    
+    /**
+     * receives the bytes of a cached value
+     */
+    public interface BytesWriter {
+        /**
+         * @param value the read-only UTF-8 bytes of the value, valid until the method returns
+         * @throws IOException if the value could not be written
+         */
+        public void write(ByteBuffer value) throws IOException;
+    }
+    
+    /**
+     * serves a value from the off-heap cache without copying or decoding it
+     * the stripe is not locked while the writer sends the value, its chunk is pinned instead
+     * @param key the key to look for
+     * @param writer gets the bytes of the value
+     * @return false if the key is not in the off-heap cache or deleted, use get() in this case
+     * @throws IOException if the writer failed
+     */
+    public boolean getCachedBytes(String key, BytesWriter writer) throws IOException {
+        int s = cache.stripeOf(key);
+        Cache stripe = cache.getStripe(s);
+        if (!(stripe instanceof SlabCache))
+            return false;
+        
+        SlabCache.PinnedValue value;
+        ReentrantLock lock = stripe_locks[s];
+        lock.lock();
+        try {
+            value = ((SlabCache)stripe).getBytes(key);
+            if (value == null)
+                return false;
+            if (value.getBytes().equals(NULL_BYTES)) {
+                value.release();
                 return false;
             }
-
+            cache_hits.incrementAndGet();
+        }
+        finally {
+            lock.unlock();
+        }
+        
+        try {
+            writer.write(value.getBytes());
             return true;
         }
         finally {
-            rwl.writeLock().unlock();
+            value.release();
         }
     }
     
@@ -255,78 +1133,167 @@ public class CacheManager {
      * attempt to find the corresponding value to a given key
      * will first check the cache and then the disk
      * inserts the key and its value into the cache if it was not there
+     * concurrent misses on the same key share one disk lookup
      * @param key the key to look for
      * @return the corresponding value or null if the key was not found
      */
     public String get(String key) {
-        String value = null;
+        String value;
+        boolean loader;
+        long version = 0;
+        CompletableFuture<String> load;
+        int s = cache.stripeOf(key);
+        Cache stripe = cache.getStripe(s);
+        ReentrantLock lock = stripe_locks[s];
         
-        // acquire read lock
-        rwl.readLock().lock();
+        // lock the stripe of the key
+        lock.lock();
         try {
             // try to get from cache first
-            value = cache.get(key);
-            if (value != null)
+            value = stripe.get(key);
+            if (value == null) {
+                // evicted tuples wait in the write-behind queue until they are on disk
+                // a hit is cached again, the queue still writes it
+                value = write_behind.get(key);
+                if (value != null && !value.equals("null"))
+                    admitLocked(stripe, key, value);
+            }
+            if (value != null) {
+                cache_hits.incrementAndGet();
                 return (value.equals("null")) ? null : value;
+            }
+            cache_misses.incrementAndGet();
+            
+            // the key was not on disk the last time and was not written since
+            if (absent_keys[s].contains(key)) {
+                negative_hits.incrementAndGet();
+                return null;
+            }
+            negative_misses.incrementAndGet();
+            
+            // only the first miss loads the key, later requests wait for its result
+            load = loads.get(key);
+            loader = (load == null);
+            if (loader) {
+                // log cache miss
+                logger.info("Cache miss when using get on key "+key);
+                load = new CompletableFuture<String>();
+                loads.put(key, load);
+                version = storage_version;
+            }
+            else
+                coalesced_loads.incrementAndGet();
         }
         finally {
-            rwl.readLock().unlock();
+            lock.unlock();
         }
         
-        // log cache miss
-        logger.info("Cache miss when using get on key "+key);
+        if (!loader)
+            return load.join();
+        
+        value = null;
+        try {
+            value = loadFromDisk(stripe, absent_keys[s], lock, key, version);
+        }
+        finally {
+            load.complete(value);
+        }
+        return value;
+    }
+    
+    /**
+     * loads a key from disk into the cache
+     * the stripe is not locked while the storage is read, so that other keys of the stripe can be served
+     * @param stripe the stripe of the cache that holds the key
+     * @param absent the negative cache of the stripe
+     * @param lock the lock of the stripe
+     * @param key the key to look for
+     * @param version the version of the storage when the cache miss was detected
+     * @return the corresponding value or null if the key was not found
+     */
+    private String loadFromDisk(Cache stripe, NegativeCache absent, ReentrantLock lock, String key, long version) {
+        String value;
+        try {
+            value = readFromDisk(key);
+        }
+        catch (IOException e) {
+            // there was an error reading the storage
+            logger.error("Exception while looking up key "+key+" on disk", e);
+            value = null;
+        }
         
-        // acquire write lock
-        rwl.writeLock().lock();           
+        // lock the stripe again
+        lock.lock();           
         try {        
-            // check if the key was inserted in the meantime        
-            value = cache.get(key);
-            if (value != null)             
-                return (value.equals("null")) ? null : value;      
-
-            try {
-                // try to get from disk
-                // read-lock would be enough for this, but concurrent disk access is not efficient                
-                value = storage_manager.getFromDisk(key);
-            }
-            catch (IOException e) {
-                // there was an error reading the storage
-                logger.error("Exception while looking up key "+key+" on disk", e);
+            // the key does not exist in the database
+            if (value == null) {
+                // remember it, unless it was written in the meantime
+                if (version == storage_version && !stripe.containsKey(key) && write_behind.get(key) == null)
+                    absent.add(key);
                 return null;
             }
             
-            // the key does not exist in the database
-            if (value == null) 
-                return null;
+            // check if the key was inserted or evicted in the meantime        
+            String cached = stripe.containsKey(key) ? stripe.get(key) : write_behind.get(key);
+            if (cached != null)             
+                return (cached.equals("null")) ? null : cached;      
 
-            // insert into cache
-            if (cache.put(key,value,false) != StatusType.PUT_ERROR)               
-                return value;
-            
-            // cache is full -> need to replace a key
-            CacheEntry replaced_tuple = cache.getFirst();
- 
-            try {
-                // write replaced key and value to disk
-                if (replaced_tuple.isDirty())
-                    storage_manager.writeToDisk(replaced_tuple.getKey(), replaced_tuple.getValue());
-            }
-            catch (IOException e) {
-                // the replaced tuple could not be written to disk
-                // the get-operation was successful anyway, so return value
-                logger.error("Exception while writing tuple ("+replaced_tuple.getKey()+", "+replaced_tuple.getValue()+") to disk", e);
-                return value;
+            if (version != storage_version) {
+                // the storage was modified in the meantime -> our value might be outdated
+                try {
+                    value = readFromDisk(key);
+                }
+                catch (IOException e) {
+                    logger.error("Exception while looking up key "+key+" on disk", e);
+                    return null;
+                }
+                if (value == null)
+                    return null;
             }
-            
-            // replace in cache
-            cache.replace(key,value,false);   
+
+            // insert into cache
+            // if the replaced tuple could not be queued, the get-operation was successful anyway
+            admitLocked(stripe, key, value);
             return value;
         }
         finally {  
-            rwl.writeLock().unlock(); 
+            // later requests find the key in the cache
+            loads.remove(key);
+            lock.unlock(); 
         }
     }
     
+    /**
+     * inserts a clean KV-tuple into a stripe while the caller holds its lock
+     * if the stripe is full, a replaced dirty tuple is handed to the flusher
+     * @param stripe the stripe of the cache that gets the key
+     * @param key the key to be inserted
+     * @param value the value that is already in the storage or the write-behind queue
+     * @return false if the replaced tuple could not be queued, the tuple is not cached then
+     */
+    private boolean admitLocked(Cache stripe, String key, String value) {
+        if (stripe.put(key,value,false) != StatusType.PUT_ERROR)               
+            return true;
+        
+        // stripe is full -> need to replace a key
+        CacheEntry replaced_tuple = stripe.getFirst();
+ 
+        try {
+            // hand the replaced key and value to the flusher
+            if (replaced_tuple.isDirty())
+                write_behind.add(replaced_tuple.getKey(), replaced_tuple.getValue());
+        }
+        catch (IOException e) {
+            logger.error("Exception while writing tuple ("+replaced_tuple.getKey()+", "+replaced_tuple.getValue()+") to disk", e);
+            return false;
+        }
+        
+        // replace in cache
+        stripe.replace(key,value,false);   
+        trim(stripe);
+        return true;
+    }
+    
     /**
      * inserts or updates a given KV-tuple in the cache
      * will attempt to replace another tuple if the cache is full
@@ -343,71 +1310,174 @@ public class CacheManager {
          * We therefore decided to return DELETE_SUCCESS in this case, ensuring the 
          * user that the deleted key does not exist anymore after the put-operation.
          */
-        CacheEntry replaced_tuple = null;
-        rwl.writeLock().lock();
+        StatusType result;
+        long lsn = -1;
+        int s = cache.stripeOf(key);
+        stripe_locks[s].lock();
         try {
-            // try to update the tuple in cache
-            StatusType result = cache.put(key, value, true);
-            if (result == StatusType.PUT_UPDATE) 
-                return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_UPDATE;
+            result = putLocked(cache.getStripe(s), absent_keys[s], key, value);
             
-            // check storage to see if it was an update or insert
-            String old_value = null;
-            try {
-                old_value = storage_manager.getFromDisk(key);
-            }
-            catch (IOException e) {
-                // error retrieving the data item
-                logger.error("Exception while looking up key "+key+" on disk", e);
+            // log the request in the same order as it was applied
+            if (wal != null && result != StatusType.PUT_ERROR)
+                lsn = wal.append(key, value);
+        }
+        catch (IOException e) {
+            logger.error("Exception while logging tuple ("+key+", "+value+")", e);
+            return StatusType.PUT_ERROR;
+        }
+        finally {
+            stripe_locks[s].unlock();
+        }
+        
+        // wait for the log outside of the lock, so that concurrent requests share one force
+        if (lsn >= 0) {
+            if (!wal.awaitDurable(lsn))
                 return StatusType.PUT_ERROR;
+            if (wal.needsCheckpoint())
+                checkpoint();
+        }
+        return result;
+    }
+    
+    /**
+     * put while the caller holds the lock of the stripe of the key
+     * @param stripe the stripe of the cache that holds the key
+     * @param absent the negative cache of the stripe
+     * @param key the key to be inserted
+     * @param value the value to be inserted, or "null" to delete
+     * @return a status type to indicate success or error
+     */
+    private StatusType putLocked(Cache stripe, NegativeCache absent, String key, String value) {
+        CacheEntry replaced_tuple = null;
+        // the key is not absent anymore, but if it was we know that this is an insert
+        boolean was_absent = absent.remove(key);
+        // try to update the tuple in cache
+        StatusType result = stripe.put(key, value, true);
+        if (result == StatusType.PUT_UPDATE) {
+            // a larger value might exceed the byte budget
+            trim(stripe);
+            return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_UPDATE;
+        }
+        
+        // check the write-behind queue and the storage to see if it was an update or insert
+        String old_value = write_behind.get(key);
+        try {
+            if (old_value == null) {
+                if (!was_absent)
+                    old_value = readFromDisk(key);
             }
-            
-            // log cache miss
+            else if (old_value.equals("null"))
+                old_value = null;
+        }
+        catch (IOException e) {
+            // error retrieving the data item
+            logger.error("Exception while looking up key "+key+" on disk", e);
+            return StatusType.PUT_ERROR;
+        }
+        
+        // log cache miss
+        if (old_value != null)
+            logger.info("Cache miss when updating key "+key);    
+        
+        // if the tuple was already inserted into the cache, we are done
+        if (result == StatusType.PUT_SUCCESS) {              
             if (old_value != null)
-                logger.info("Cache miss when updating key "+key);    
-            
-            // if the tuple was already inserted into the cache, we are done
-            if (result == StatusType.PUT_SUCCESS) {              
+                return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_UPDATE;
+            return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_SUCCESS;
+        }
+
+        // stripe is full -> need to replace a key
+        replaced_tuple = stripe.getFirst();
+
+        try {
+            // hand the replaced KV-tuple to the flusher
+            if (replaced_tuple.isDirty())
+                write_behind.add(replaced_tuple.getKey(), replaced_tuple.getValue());                              
+        }
+        catch (IOException e1) {
+            // the replaced tuple could not be queued
+            logger.error("Exception while writing tuple ("+replaced_tuple.getKey()+", "+replaced_tuple.getValue()+") to disk",e1);
+            try {
+                // try to queue (key,value) instead
+                write_behind.add(key, value); 
+                
+                // return success
                 if (old_value != null)
                     return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_UPDATE;
-                return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_SUCCESS;
+                return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_SUCCESS;                    
             }
+            catch (IOException e2) {
+                // the tuple could not be inserted
+                logger.error("Exception while writing tuple ("+key+", "+value+") to disk",e2);
+                return StatusType.PUT_ERROR;
+            }               
+        }
+        
+        // replace in cache and return success
+        stripe.replace(key, value, !value.equals(old_value));           
+        trim(stripe);
+        if (old_value != null)
+            return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_UPDATE;
+        return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_SUCCESS;        
+    }
 
-            // cache is full -> need to replace a key
-            replaced_tuple = cache.getFirst();
-
+    
+    /**
+     * evicts tuples from a stripe until it is within its byte budget again
+     * the evicted tuples are handed to the flusher
+     * the caller has to hold the lock of the stripe
+     * @param stripe the stripe of the cache
+     */
+    private void trim(Cache stripe) {
+        while (stripe.isOverweight()) {
+            CacheEntry replaced_tuple = stripe.getFirst();
             try {
-                // write the replaced KV-tuple to disk
                 if (replaced_tuple.isDirty())
-                    storage_manager.writeToDisk(replaced_tuple.getKey(), replaced_tuple.getValue());                              
+                    write_behind.add(replaced_tuple.getKey(), replaced_tuple.getValue());
             }
-            catch (IOException e1) {
-                // the replaced tuple could not be written to disk
-                logger.error("Exception while writing tuple ("+replaced_tuple.getKey()+", "+replaced_tuple.getValue()+") to disk",e1);
-                try {
-                    // try to write (key,value) instead
-                    storage_manager.writeToDisk(key, value); 
-                    
-                    // return success
-                    if (old_value != null)
-                        return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_UPDATE;
-                    return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_SUCCESS;                    
-                }
-                catch (IOException e2) {
-                    // the tuple could not be inserted
-                    logger.error("Exception while writing tuple ("+key+", "+value+") to disk",e2);
-                    return StatusType.PUT_ERROR;
-                }               
+            catch (IOException e) {
+                // the tuple stays in the cache, it is written later
+                logger.error("Exception while writing tuple ("+replaced_tuple.getKey()+", "+replaced_tuple.getValue()+") to disk", e);
+                return;
             }
-            
-            // replace in cache and return success
-            cache.replace(key, value, !value.equals(old_value));           
-            if (old_value != null)
-                return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_UPDATE;
-            return (value.equals("null")) ? StatusType.DELETE_SUCCESS : StatusType.PUT_SUCCESS;        
+            stripe.evict();
+        }
+    }
+    
+    /**
+     * reads a value from the storage under the storage read lock
+     * @param key the key to look for
+     * @return the value or null if the key was not found
+     * @throws IOException if the storage could not be read
+     */
+    private String readFromDisk(String key) throws IOException {
+        storage_lock.readLock().lock();
+        try {
+            return storage_manager.getFromDisk(key);
         }
         finally {
-            rwl.writeLock().unlock();
-        }        
+            storage_lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * writes all tuples of the write-behind queue to the storage
+     * the caller has to hold the locks of all stripes, so that no tuples are added meanwhile
+     * @throws IOException if the tuples could not be written, they stay in the queue then
+     */
+    private void flushWriteBehind() throws IOException {
+        write_behind.flush();
+    }
+    
+    /**
+     * writes a KV-tuple to the storage
+     * the caller has to hold the storage write lock
+     * @param key the key of the tuple
+     * @param value the value of the tuple, or "null" to delete
+     * @throws IOException if the tuple could not be written
+     */
+    private void writeToDisk(String key, String value) throws IOException {
+        storage_version++;
+        storage_manager.writeToDisk(key, value);
     }
 }
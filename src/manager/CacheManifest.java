@@ -0,0 +1,127 @@
+package manager;
+
+import common.logger.Constants;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *   Background thread that periodically writes the keys in the cache to a manifest file
+ *   The keys are stored in the replacement order of the cache, the least valuable key first,
+ *   so that a restarted server can load the same keys into its cache again.
+ *   The manifest is replaced atomically: after a crash either the old or the new one is complete.
+ */
+public class CacheManifest extends Thread {
+    private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
+
+    private final String path;
+    private final String tmp_path;
+    private final long interval;
+    private final Supplier<List<String>> keys;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param port the port of the server that uses the manifest
+     * @param interval the time between two writes of the manifest in ms
+     * @param keys returns the keys in the cache in replacement order
+     */
+    public CacheManifest(int port, long interval, Supplier<List<String>> keys) {
+        super("CacheManifest");
+        setDaemon(true);
+        String p = Paths.get("").toAbsolutePath().toString();
+        this.path = p+"/hotkeys"+Integer.toString(port)+".txt";
+        this.tmp_path = p+"/hotkeys"+Integer.toString(port)+".tmp";
+        this.interval = interval;
+        this.keys = keys;
+    }
+
+    /**
+     * reads the keys of the last manifest
+     * @return the keys in replacement order, empty if there is no manifest
+     */
+    public List<String> read() {
+        ArrayList<String> result = new ArrayList<String>();
+        if (!new File(path).exists())
+            return result;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+                result.add(in.readUTF());
+        }
+        catch (IOException ioe) {
+            LOGGER.error("Could not read the cache manifest, the cache is not warmed up", ioe);
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * writes the keys that are in the cache right now
+     * @throws IOException if the manifest could not be written
+     */
+    public void write() throws IOException {
+        List<String> list = keys.get();
+        FileOutputStream file = new FileOutputStream(tmp_path);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(list.size());
+            for (String key : list)
+                out.writeUTF(key);
+            // the new manifest has to be on disk before it replaces the old one
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(Paths.get(tmp_path), Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * stops the thread, the caller writes the last manifest
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * waits for the next write
+     * @return false if the thread was closed
+     */
+    private synchronized boolean awaitInterval() throws InterruptedException {
+        long end = System.currentTimeMillis() + interval;
+        long now;
+        while (!closed && (now = System.currentTimeMillis()) < end)
+            wait(end - now);
+        return !closed;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (awaitInterval()) {
+                try {
+                    write();
+                }
+                catch (IOException ioe) {
+                    LOGGER.error("Could not write the cache manifest", ioe);
+                }
+            }
+        }
+        catch (InterruptedException ie) {
+            // the server shuts down
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package manager;
+
+import common.logger.Constants;
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *   Background thread that compacts the storage after data was moved or deleted
+ *   The compaction runs in small steps, each holding the write lock only for one step.
+ *   Between two steps the thread sleeps long enough to stay below the configured rate,
+ *   so requests keep being served while the disk space is reclaimed.
+ */
+public class Compactor extends Thread {
+    // the number of bytes processed while holding the write lock
+    private static final long STEP_SIZE = 256*1000;
+
+    private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
+
+    private final Storage storage;
+    private final ReentrantReadWriteLock rwl;
+    private final long rate;
+    private boolean requested = false;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param storage the storage to be compacted
+     * @param rwl the lock that protects the storage against concurrent modifications
+     * @param rate the maximum number of bytes to be processed per second, 0 for no limit
+     */
+    public Compactor(Storage storage, ReentrantReadWriteLock rwl, long rate) {
+        super("Compactor");
+        setDaemon(true);
+        this.storage = storage;
+        this.rwl = rwl;
+        this.rate = rate;
+    }
+
+    /**
+     * schedules a compaction
+     * a request during a running compaction starts another one afterwards
+     */
+    public synchronized void request() {
+        requested = true;
+        notifyAll();
+    }
+
+    /**
+     * stops the thread, a running compaction is abandoned after the current step
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * waits for the next request
+     * @return false if the compactor was closed
+     */
+    private synchronized boolean awaitRequest() throws InterruptedException {
+        while (!requested && !closed)
+            wait();
+        requested = false;
+        return !closed;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (awaitRequest()) {
+                long start = System.currentTimeMillis();
+                boolean finished = false;
+                while (!finished && !isClosed()) {
+                    rwl.writeLock().lock();
+                    try {
+                        finished = storage.compact(STEP_SIZE);
+                    }
+                    catch (IOException ioe) {
+                        LOGGER.error("Exception during compaction, the compaction is abandoned", ioe);
+                        break;
+                    }
+                    finally {
+                        rwl.writeLock().unlock();
+                    }
+
+                    // rate limit
+                    if (rate > 0 && !finished)
+                        Thread.sleep(STEP_SIZE*1000/rate);
+                }
+                if (finished)
+                    LOGGER.info("Compacted storage in "+(System.currentTimeMillis()-start)+" ms");
+            }
+        }
+        catch (InterruptedException ie) {
+            // stop the thread
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package manager;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ *   The location of a value inside a storage file
+ *   A region of Storage.getRegion() is pinned and stays valid until it is released,
+ *   other regions are only valid as long as the storage is not modified.
+ */
+public class FileRegion {
+    private final FileChannel channel;
+    private final long position;
+    private final int size;
+    private PinnedFile pinned;
+
+    /**
+     *
+     * @param channel the storage file
+     * @param position the offset of the value in the file
+     * @param size the number of bytes of the value
+     */
+    public FileRegion(FileChannel channel, long position, int size) {
+        this.channel = channel;
+        this.position = position;
+        this.size = size;
+    }
+
+    /**
+     * a region that was pinned with PinnedFile.pin()
+     */
+    FileRegion(PinnedFile file, long position, int size) {
+        this(file.getChannel(), position, size);
+        this.pinned = file;
+    }
+
+    /**
+     * releases the pin of the region, the storage may overwrite or close it afterwards
+     * the region must not be read anymore
+     * @throws IOException if the storage file was closed meanwhile and could not be closed now
+     */
+    public void release() throws IOException {
+        PinnedFile file = pinned;
+        pinned = null;
+        if (file != null)
+            file.unpin(position);
+    }
+
+    /**
+     *
+     * @return the number of bytes of the value
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * a pinned tuple is not overwritten in place, so a pinned region at another location
+     * means that the tuple was written again
+     * @param other another region
+     * @return true if both regions are the same bytes of the same file
+     */
+    public boolean sameLocation(FileRegion other) {
+        return channel == other.channel && position == other.position && size == other.size;
+    }
+
+    /**
+     * reads the value into the heap
+     * @return the value
+     * @throws IOException if the file could not be read
+     */
+    public String read() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        long pos = position;
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new EOFException("unexpected end of file");
+            pos += n;
+        }
+        return new String(buf.array());
+    }
+
+    /**
+     * writes the value to the target without copying it to the heap
+     * the file is transferred directly to the target channel (e.g. with sendfile for sockets)
+     * @param target the channel to write to
+     * @throws IOException if the file could not be read or the target could not be written
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        long done = 0;
+        while (done < size) {
+            done += transferTo(done, target);
+        }
+    }
+
+    /**
+     * writes as much of the value as the target accepts, e.g. into the send buffer of a non-blocking socket
+     * @param offset the number of bytes of the value that were already written
+     * @param target the channel to write to
+     * @return the number of bytes written, 0 if the target cannot take more bytes right now
+     * @throws IOException if the file could not be read or the target could not be written
+     */
+    public long transferTo(long offset, WritableByteChannel target) throws IOException {
+        long n = channel.transferTo(position + offset, size - offset, target);
+        if (n == 0 && position + offset >= channel.size())
+            throw new EOFException("unexpected end of file");
+        return n;
+    }
+}
@@ -0,0 +1,159 @@
+package manager;
+
+import common.logger.Constants;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *   Background thread that watches the usage of the old generation of the heap
+ *   A usage threshold of the memory pool notifies the monitor as soon as the usage after a
+ *   garbage collection crosses the high-water mark, the cache is shrunk then. The usage is
+ *   also checked periodically: the cache shrinks again while the usage stays above the
+ *   high-water mark and grows while it is below the low-water mark.
+ */
+public class HeapMonitor extends Thread implements NotificationListener {
+    private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
+
+    private final MemoryPoolMXBean pool;
+    private final double high_water;
+    private final double low_water;
+    private final long interval;
+    private final Runnable shrink;
+    private final Runnable grow;
+    private boolean pressure = false;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param high_water the fraction of the old generation above which the cache shrinks
+     * @param low_water the fraction of the old generation below which the cache grows
+     * @param interval the time between two checks of the usage in ms
+     * @param shrink called when the usage is too high
+     * @param grow called when there is headroom
+     */
+    public HeapMonitor(double high_water, double low_water, long interval, Runnable shrink, Runnable grow) {
+        super("HeapMonitor");
+        setDaemon(true);
+        this.high_water = high_water;
+        this.low_water = low_water;
+        this.interval = interval;
+        this.shrink = shrink;
+        this.grow = grow;
+        this.pool = findOldGeneration();
+    }
+
+    /**
+     *
+     * @return the heap pool that supports usage thresholds, i.e. the old generation,
+     * null if there is none with a defined maximum size
+     */
+    private static MemoryPoolMXBean findOldGeneration() {
+        for (MemoryPoolMXBean p : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (p.getType() == MemoryType.HEAP && p.isUsageThresholdSupported() && p.getUsage().getMax() > 0)
+                return p;
+        }
+        return null;
+    }
+
+    /**
+     * the usage after the last collection is preferred, the current usage includes garbage
+     * @return the used fraction of the old generation
+     */
+    private double usage() {
+        MemoryUsage usage = pool.isCollectionUsageThresholdSupported() ? pool.getCollectionUsage() : pool.getUsage();
+        return (double)usage.getUsed() / usage.getMax();
+    }
+
+    /**
+     * sets the threshold of the old generation and starts the thread
+     * @return false if the heap has no pool that can be watched
+     */
+    public boolean watch() {
+        if (pool == null) {
+            LOGGER.error("No heap memory pool supports usage thresholds, the cache is not resized");
+            return false;
+        }
+
+        long threshold = (long)(pool.getUsage().getMax() * high_water);
+        if (pool.isCollectionUsageThresholdSupported())
+            pool.setCollectionUsageThreshold(threshold);
+        else
+            pool.setUsageThreshold(threshold);
+        ((NotificationEmitter)ManagementFactory.getMemoryMXBean()).addNotificationListener(this, null, null);
+        start();
+        return true;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (type.equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED)
+                || type.equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+            synchronized (this) {
+                pressure = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * stops the thread and removes the listener
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (pool == null)
+            return;
+        try {
+            ((NotificationEmitter)ManagementFactory.getMemoryMXBean()).removeNotificationListener(this);
+        }
+        catch (ListenerNotFoundException e) {
+            // the monitor was not started
+        }
+    }
+
+    /**
+     * waits for a notification or the next periodic check
+     * @return false if the monitor was closed
+     */
+    private synchronized boolean awaitCheck() throws InterruptedException {
+        long end = System.currentTimeMillis() + interval;
+        long now;
+        while (!closed && !pressure && (now = System.currentTimeMillis()) < end)
+            wait(end - now);
+        return !closed;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (awaitCheck()) {
+                boolean notified;
+                synchronized (this) {
+                    notified = pressure;
+                    pressure = false;
+                }
+
+                double used = usage();
+                if (notified || used > high_water)
+                    shrink.run();
+                else if (used < low_water)
+                    grow.run();
+            }
+        }
+        catch (InterruptedException ie) {
+            // the server shuts down
+        }
+    }
+}
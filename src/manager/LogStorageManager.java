@@ -0,0 +1,497 @@
+package manager;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import common.hashing.Range;
+
+/**
+ *   We use an append-only log to store KV-tuples (Bitcask-style)
+ *   Every write appends a record to the end of the active segment file
+ *   An in-memory key directory maps each key to the segment and offset of its latest record,
+ *   so a lookup costs a single positioned read
+ */
+public class LogStorageManager implements Storage {
+    // constants for storage format
+    // record format: TOMBSTONE | SIZE OF KEY | SIZE OF KEY+VALUE | KEY | VALUE
+    // this is the same item format as in the heap file of StorageManager
+    private static final int MAX_VALUE_SIZE = 120000;
+    private static final int ITEM_HEADER_SIZE = 6;
+
+    // a new segment is started once the active segment exceeds this size
+    private static final long MAX_SEGMENT_SIZE = 64*1000*1000;
+
+    /**
+     * A key directory entry contains
+     * segment: the id of the segment file holding the latest record of the key
+     * datapos: the offset of the record in the segment file
+     * keysize, valuesize: the sizes needed to read the value without parsing the header
+     */
+    private class KeyDirEntry {
+        public KeyDirEntry(int s, long p, int k, int v) {
+            segment = s;
+            datapos = p;
+            keysize = k;
+            valuesize = v;
+        }
+
+        public long valuePos() {
+            return datapos + ITEM_HEADER_SIZE + keysize;
+        }
+
+        public int recordSize() {
+            return ITEM_HEADER_SIZE + keysize + valuesize;
+        }
+
+        public final int segment;
+        public final long datapos;
+        public final int keysize;
+        public final int valuesize;
+    }
+
+    private final int storage_number;
+    private final String suffix;
+    private final String directory;
+    private final ConcurrentHashMap<String,KeyDirEntry> keydir = new ConcurrentHashMap<String,KeyDirEntry>();
+    // a segment that is deleted stays open until its pinned regions are sent
+    private final ConcurrentSkipListMap<Integer,PinnedFile> segments = new ConcurrentSkipListMap<Integer,PinnedFile>();
+    private int active_segment = 0;
+    private long active_size = 0;
+
+    // state of an incremental compaction (see compact())
+    // the queued segments are rewritten one after another, starting with the oldest one
+    private final ArrayList<Integer> compact_queue = new ArrayList<Integer>();
+    private long compact_pos = 0;
+    private boolean compacting = false;
+
+    /**
+     * initialize the storage number so that segment files of different server processes
+     * on the same machine can be distinguished
+     * @param port port of the server that uses the storage manager
+     */
+    public LogStorageManager(int port) {
+        this(port, "");
+    }
+
+    /**
+     * initialize the storage number and a suffix for the file names,
+     * so that several storage managers of the same server can be distinguished
+     * @param port port of the server that uses the storage manager
+     * @param suffix appended to the names of the segment files before the segment id
+     */
+    public LogStorageManager(int port, String suffix) {
+        storage_number = port;
+        this.suffix = suffix;
+        directory = Paths.get("").toAbsolutePath().toString();
+    }
+
+    @Override
+    public void initClearedStorage() throws IOException {
+        close();
+        keydir.clear();
+
+        // delete old segment files
+        for (int id : listSegmentIds())
+            getSegmentFile(id).delete();
+
+        openSegment(0);
+    }
+
+    @Override
+    public void initStorage() throws IOException {
+        close();
+        keydir.clear();
+
+        ArrayList<Integer> ids = listSegmentIds();
+        if (ids.isEmpty()) {
+            openSegment(0);
+            return;
+        }
+
+        for (int id : ids)
+            segments.put(id, new PinnedFile(new RandomAccessFile(getSegmentFile(id), "rw")));
+
+        // scan all segments in parallel, then apply the results in segment order
+        List<HashMap<String,KeyDirEntry>> scans;
+        try {
+            scans = ids.parallelStream().map(id -> {
+                try {
+                    return scanSegment(id);
+                }
+                catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }).collect(Collectors.toList());
+        }
+        catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+
+        for (HashMap<String,KeyDirEntry> scan : scans) {
+            for (Map.Entry<String,KeyDirEntry> e : scan.entrySet()) {
+                if (e.getValue() == null)
+                    keydir.remove(e.getKey());
+                else
+                    keydir.put(e.getKey(), e.getValue());
+            }
+        }
+
+        active_segment = segments.lastKey();
+        active_size = segments.get(active_segment).getFile().length();
+    }
+
+    /**
+     * reopens the segments of a previous run and rebuilds the key directory from them
+     * @return the number of recovered KV-tuples
+     * @throws IOException if the segments could not be read
+     */
+    @Override
+    public long recover() throws IOException {
+        initStorage();
+        return keydir.size();
+    }
+
+    @Override
+    public void writeToDisk(String key, String value) throws IOException {
+        // delete
+        if (value.equals("null")) {
+            if (keydir.containsKey(key)) {
+                append(key, null);
+                keydir.remove(key);
+            }
+            return;
+        }
+
+        // insert or update
+        keydir.put(key, append(key, value));
+    }
+
+    @Override
+    public String getFromDisk(String key) throws IOException {
+        FileRegion region = getRegion(key);
+        if (region == null)
+            return null;
+        try {
+            return region.read();
+        }
+        finally {
+            region.release();
+        }
+    }
+
+    @Override
+    public FileRegion getRegion(String key) throws IOException {
+        KeyDirEntry entry = keydir.get(key);
+        if (entry == null)
+            return null;
+        return segments.get(entry.segment).pin(entry.valuePos(), entry.valuesize);
+    }
+
+    @Override
+    public long getStorageSize() {
+        long size = 0;
+        try {
+            for (PinnedFile file : segments.values())
+                size += file.getFile().length();
+        }
+        catch (IOException ioe) {
+            return -1;
+        }
+        return size;
+    }
+
+    /**
+     *
+     * @return always 0, the key directory knows all keys exactly
+     */
+    @Override
+    public double getFalsePositiveRate() {
+        return 0;
+    }
+
+    /**
+     * merges all segments: the live records are copied to fresh segments and the old
+     * segment files are deleted afterwards
+     * @throws IOException if there was an error while rewriting the segments
+     */
+    @Override
+    public void vacuum() throws IOException {
+        stopCompaction();
+        ArrayList<Integer> old_ids = new ArrayList<Integer>(segments.keySet());
+
+        // start a new segment so that merged records never end up in an old one
+        rollSegment();
+
+        byte[] record = new byte[ITEM_HEADER_SIZE + 255 + MAX_VALUE_SIZE];
+        for (Map.Entry<String,KeyDirEntry> e : keydir.entrySet()) {
+            KeyDirEntry entry = e.getValue();
+            if (!old_ids.contains(entry.segment))
+                continue;
+
+            // copy the record as it is
+            ByteBuffer buf = ByteBuffer.wrap(record, 0, entry.recordSize());
+            readFully(segments.get(entry.segment).getChannel(), buf, entry.datapos);
+            keydir.put(e.getKey(), appendRecord(record, entry.keysize, entry.valuesize));
+        }
+
+        // the old segments only contain garbage now
+        for (int id : old_ids) {
+            segments.remove(id).close();
+            getSegmentFile(id).delete();
+        }
+    }
+
+    /**
+     * performs the next step of an incremental compaction
+     * a compaction rewrites all segments that existed when it was started, oldest first
+     * the live records of a segment are appended to the active segment, then the segment is deleted
+     * dropping a tombstone is safe because all older segments are deleted before
+     * @param budget the number of bytes of the old segments to be processed in this step
+     * @return true if the compaction is finished
+     * @throws IOException if there was an error while copying, the compaction is abandoned in this case
+     */
+    @Override
+    public boolean compact(long budget) throws IOException {
+        if (!compacting) {
+            // start a new segment so that copied records never end up in a segment being compacted
+            if (active_size > 0)
+                rollSegment();
+            compact_queue.clear();
+            compact_queue.addAll(segments.headMap(active_segment).keySet());
+            compact_pos = 0;
+            compacting = true;
+        }
+
+        try {
+            byte[] record = new byte[ITEM_HEADER_SIZE + 255 + MAX_VALUE_SIZE];
+            long processed = 0;
+            while (!compact_queue.isEmpty() && processed < budget) {
+                int id = compact_queue.get(0);
+                FileChannel channel = segments.get(id).getChannel();
+                if (compact_pos >= channel.size()) {
+                    // all live records are copied, the segment only contains garbage now
+                    segments.remove(id).close();
+                    getSegmentFile(id).delete();
+                    compact_queue.remove(0);
+                    compact_pos = 0;
+                    continue;
+                }
+
+                // read header and key
+                readFully(channel, ByteBuffer.wrap(record, 0, ITEM_HEADER_SIZE), compact_pos);
+                int keysize = record[1] & 0xff;
+                int valuesize = ByteBuffer.wrap(record, 2, 4).getInt() - keysize;
+                readFully(channel, ByteBuffer.wrap(record, ITEM_HEADER_SIZE, keysize), compact_pos + ITEM_HEADER_SIZE);
+                String key = new String(record, ITEM_HEADER_SIZE, keysize);
+
+                // the record is live if the key directory still points to it
+                KeyDirEntry entry = keydir.get(key);
+                if (entry != null && entry.segment == id && entry.datapos == compact_pos) {
+                    readFully(channel, ByteBuffer.wrap(record, ITEM_HEADER_SIZE + keysize, valuesize), entry.valuePos());
+                    keydir.put(key, appendRecord(record, keysize, valuesize));
+                }
+
+                compact_pos += ITEM_HEADER_SIZE + keysize + valuesize;
+                processed += ITEM_HEADER_SIZE + keysize + valuesize;
+            }
+        }
+        catch (IOException ioe) {
+            stopCompaction();
+            throw ioe;
+        }
+
+        compacting = !compact_queue.isEmpty();
+        return !compacting;
+    }
+
+    private void stopCompaction() {
+        compact_queue.clear();
+        compact_pos = 0;
+        compacting = false;
+    }
+
+    /**
+     * pin the values of all keys in the given range
+     * @param range the range of keys, null for all keys
+     * @return the pinned regions by key
+     */
+    @Override
+    public Map<String,FileRegion> getRegions(Range range) {
+        HashMap<String,FileRegion> regions = new HashMap<String,FileRegion>();
+        for (Map.Entry<String,KeyDirEntry> e : keydir.entrySet()) {
+            // check if key is in the range
+            if (range != null && !range.withinRange(e.getKey()))
+                continue;
+
+            KeyDirEntry entry = e.getValue();
+            regions.put(e.getKey(), segments.get(entry.segment).pin(entry.valuePos(), entry.valuesize));
+        }
+        return regions;
+    }
+
+    /**
+     * delete data in the given range
+     * deleted keys get a tombstone record, the space is freed by vacuum()
+     * @param range the range of keys to be deleted, null for all keys
+     */
+    @Override
+    public void deleteData(Range range) {
+        try {
+            for (String key : keydir.keySet()) {
+                // check if key is in the range
+                if (range == null || range.withinRange(key))
+                    writeToDisk(key, "null");
+            }
+        }
+        catch (IOException ioe) {
+            // the tuples without tombstone stay
+        }
+    }
+
+    /**
+     * appends a record to the active segment
+     * @param key the key of the record
+     * @param value the value of the record or null for a tombstone
+     * @return the key directory entry pointing to the new record
+     */
+    private KeyDirEntry append(String key, String value) throws IOException {
+        byte[] keybytes = key.getBytes();
+        byte[] valbytes = (value == null) ? new byte[0] : value.getBytes();
+
+        ByteBuffer buf = ByteBuffer.allocate(ITEM_HEADER_SIZE + keybytes.length + valbytes.length);
+        buf.put((byte)((value == null) ? 1 : 0));
+        buf.put((byte)keybytes.length);
+        buf.putInt(keybytes.length + valbytes.length);
+        buf.put(keybytes);
+        buf.put(valbytes);
+
+        return appendRecord(buf.array(), keybytes.length, valbytes.length);
+    }
+
+    private KeyDirEntry appendRecord(byte[] record, int keysize, int valuesize) throws IOException {
+        if (active_size >= MAX_SEGMENT_SIZE)
+            rollSegment();
+
+        long datapos = active_size;
+        ByteBuffer buf = ByteBuffer.wrap(record, 0, ITEM_HEADER_SIZE + keysize + valuesize);
+        FileChannel channel = segments.get(active_segment).getChannel();
+        while (buf.hasRemaining())
+            active_size += channel.write(buf, active_size);
+
+        return new KeyDirEntry(active_segment, datapos, keysize, valuesize);
+    }
+
+    /**
+     * sequentially reads a segment
+     * a record that was only partially written is cut off
+     * @param id the id of the segment
+     * @return the latest record of every key in the segment, null for keys deleted by a tombstone
+     */
+    private HashMap<String,KeyDirEntry> scanSegment(int id) throws IOException {
+        HashMap<String,KeyDirEntry> scan = new HashMap<String,KeyDirEntry>();
+        long datapos = 0;
+        byte[] keybuf = new byte[255];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getSegmentFile(id))));
+        try {
+            while (true) {
+                boolean tombstone = in.readBoolean();
+                int keysize = in.readUnsignedByte();
+                int totalsize = in.readInt();
+                in.readFully(keybuf, 0, keysize);
+                if (in.skipBytes(totalsize - keysize) != totalsize - keysize)
+                    break;
+
+                String key = new String(keybuf, 0, keysize);
+                scan.put(key, tombstone ? null : new KeyDirEntry(id, datapos, keysize, totalsize - keysize));
+
+                datapos += ITEM_HEADER_SIZE + totalsize;
+            }
+        }
+        catch (EOFException eof) {
+            // reached the end of the segment
+        }
+        finally {
+            in.close();
+        }
+
+        RandomAccessFile file = segments.get(id).getFile();
+        if (file.length() > datapos)
+            file.setLength(datapos);
+        return scan;
+    }
+
+    private void rollSegment() throws IOException {
+        openSegment(segments.isEmpty() ? 0 : segments.lastKey() + 1);
+    }
+
+    private void openSegment(int id) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(id), "rw");
+        file.setLength(0);
+        segments.put(id, new PinnedFile(file));
+        active_segment = id;
+        active_size = 0;
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (PinnedFile file : segments.values())
+            file.getChannel().force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stopCompaction();
+        for (PinnedFile file : segments.values())
+            file.close();
+        segments.clear();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new EOFException("unexpected end of segment");
+            pos += n;
+        }
+    }
+
+    private ArrayList<Integer> listSegmentIds() {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        String prefix = "segment"+Integer.toString(storage_number)+suffix+"_";
+        String[] names = new File(directory).list();
+        if (names == null)
+            return ids;
+
+        for (String name : names) {
+            if (!name.startsWith(prefix) || !name.endsWith(".txt"))
+                continue;
+            try {
+                ids.add(Integer.parseInt(name.substring(prefix.length(), name.length()-4)));
+            }
+            catch (NumberFormatException nfe) {
+                // not one of our segments
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(directory+"/segment"+Integer.toString(storage_number)+suffix+"_"+Integer.toString(id)+".txt");
+    }
+}
@@ -0,0 +1,270 @@
+package manager;
+
+import common.hashing.Range;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *   Splits the storage into buckets by the MD5 hash of the keys (the same hash that is used
+ *   for the ranges of the servers). Every bucket is a storage engine with its own files.
+ *   Moving or deleting a range only touches the buckets that overlap the range:
+ *   buckets that lie completely within the range are read sequentially and dropped as a whole,
+ *   only the buckets at the borders of the range are searched key by key.
+ */
+public class PartitionedStorage implements Storage {
+    private final Storage[] buckets;
+    private final int bucket_bits;
+
+    // the smallest and largest hash value of every bucket
+    private final BigInteger[] bucket_min;
+    private final BigInteger[] bucket_max;
+
+    // buckets that were modified since their last compaction
+    private final boolean[] modified;
+    private int compact_bucket = -1;
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not a valid hashing algorithm", e);
+        }
+    });
+
+    /**
+     * creates the buckets, each one with its own storage files
+     * @param port port of the server that uses the storage
+     * @param type the storage engine of the buckets (HEAP or LOG)
+     * @param count the number of buckets, a power of two between 2 and 256
+     */
+    public PartitionedStorage(int port, String type, int count) {
+        bucket_bits = Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(2, Math.min(count, 256))));
+        buckets = new Storage[1 << bucket_bits];
+        bucket_min = new BigInteger[buckets.length];
+        bucket_max = new BigInteger[buckets.length];
+        modified = new boolean[buckets.length];
+
+        for (int b = 0; b < buckets.length; b++) {
+            String suffix = "_b"+Integer.toString(b);
+            buckets[b] = type.equals("LOG") ? new LogStorageManager(port, suffix) : new StorageManager(port, suffix);
+
+            // the bucket holds all hash values starting with the bits of b
+            byte[] hash = new byte[16];
+            hash[0] = (byte)(b << (8-bucket_bits));
+            bucket_min[b] = new BigInteger(hash);
+            Arrays.fill(hash, (byte)0xff);
+            hash[0] = (byte)((b << (8-bucket_bits)) | ((1 << (8-bucket_bits)) - 1));
+            bucket_max[b] = new BigInteger(hash);
+        }
+    }
+
+    /**
+     * @param key the key of a tuple
+     * @return the bucket that stores the key
+     */
+    private int bucketOf(String key) {
+        MessageDigest md = MD5.get();
+        byte[] hash = md.digest(key.getBytes(StandardCharsets.UTF_8));
+        return (hash[0] & 0xff) >>> (8-bucket_bits);
+    }
+
+    @Override
+    public void initClearedStorage() throws IOException {
+        for (Storage bucket : buckets)
+            bucket.initClearedStorage();
+        Arrays.fill(modified, false);
+        compact_bucket = -1;
+    }
+
+    @Override
+    public void initStorage() throws IOException {
+        for (Storage bucket : buckets)
+            bucket.initStorage();
+        compact_bucket = -1;
+    }
+
+    /**
+     * recovers all buckets in parallel
+     * @return the number of recovered KV-tuples
+     * @throws IOException if a bucket could not be recovered
+     */
+    @Override
+    public long recover() throws IOException {
+        compact_bucket = -1;
+        try {
+            return Arrays.stream(buckets).parallel().mapToLong(bucket -> {
+                try {
+                    return bucket.recover();
+                }
+                catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }).sum();
+        }
+        catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (Storage bucket : buckets)
+            bucket.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Storage bucket : buckets)
+            bucket.close();
+        compact_bucket = -1;
+    }
+
+    @Override
+    public void writeToDisk(String key, String value) throws IOException {
+        int b = bucketOf(key);
+        modified[b] = true;
+        buckets[b].writeToDisk(key, value);
+    }
+
+    @Override
+    public String getFromDisk(String key) throws IOException {
+        return buckets[bucketOf(key)].getFromDisk(key);
+    }
+
+    @Override
+    public FileRegion getRegion(String key) throws IOException {
+        return buckets[bucketOf(key)].getRegion(key);
+    }
+
+    @Override
+    public long getStorageSize() {
+        long size = 0;
+        for (Storage bucket : buckets) {
+            long s = bucket.getStorageSize();
+            if (s < 0)
+                return -1;
+            size += s;
+        }
+        return size;
+    }
+
+    /**
+     *
+     * @return the average false positive rate of the buckets
+     * the keys are spread evenly over the buckets, so every bucket sees about the same lookups
+     */
+    @Override
+    public double getFalsePositiveRate() {
+        double rate = 0;
+        for (Storage bucket : buckets)
+            rate += bucket.getFalsePositiveRate();
+        return rate/buckets.length;
+    }
+
+    @Override
+    public void vacuum() throws IOException {
+        for (Storage bucket : buckets)
+            bucket.vacuum();
+        Arrays.fill(modified, false);
+        compact_bucket = -1;
+    }
+
+    /**
+     * compacts the modified buckets one after another
+     * @param budget the number of bytes to be processed in this step
+     * @return true if all modified buckets are compacted
+     * @throws IOException if there was an error while copying, the compaction is abandoned in this case
+     */
+    @Override
+    public boolean compact(long budget) throws IOException {
+        if (compact_bucket < 0)
+            compact_bucket = nextModified(0);
+
+        try {
+            while (compact_bucket < buckets.length) {
+                modified[compact_bucket] = false;
+                if (!buckets[compact_bucket].compact(budget))
+                    return false;
+                compact_bucket = nextModified(compact_bucket+1);
+            }
+        }
+        catch (IOException ioe) {
+            modified[compact_bucket] = true;
+            compact_bucket = -1;
+            throw ioe;
+        }
+
+        compact_bucket = -1;
+        return true;
+    }
+
+    private int nextModified(int from) {
+        int b = from;
+        while (b < buckets.length && !modified[b])
+            b++;
+        return b;
+    }
+
+    /**
+     * pin the values of all keys in the given range
+     * the keys of a bucket that lies completely in the range are not checked one by one,
+     * the heap file of the bucket is read sequentially instead
+     */
+    @Override
+    public Map<String,FileRegion> getRegions(Range range) throws IOException {
+        // the regions of a bucket stay in the order of its files
+        LinkedHashMap<String,FileRegion> regions = new LinkedHashMap<String,FileRegion>();
+        try {
+            for (int b = 0; b < buckets.length; b++) {
+                if (range == null || range.containsAll(bucket_min[b], bucket_max[b]))
+                    regions.putAll(buckets[b].getRegions(null));
+                else if (range.containsAny(bucket_min[b], bucket_max[b]))
+                    regions.putAll(buckets[b].getRegions(range));
+            }
+        }
+        catch (IOException ioe) {
+            for (FileRegion region : regions.values())
+                region.release();
+            throw ioe;
+        }
+        return regions;
+    }
+
+    @Override
+    public void deleteData(Range range) {
+        for (int b = 0; b < buckets.length; b++) {
+            if (range == null || range.containsAll(bucket_min[b], bucket_max[b]))
+                clearBucket(b);
+            else if (range.containsAny(bucket_min[b], bucket_max[b])) {
+                modified[b] = true;
+                buckets[b].deleteData(range);
+            }
+        }
+    }
+
+    /**
+     * deletes all tuples of a bucket by replacing its files with empty ones
+     * falls back to deleting the tuples one by one if the files cannot be replaced
+     * @param b the bucket
+     */
+    private void clearBucket(int b) {
+        if (compact_bucket == b)
+            compact_bucket = -1;
+        try {
+            buckets[b].initClearedStorage();
+            modified[b] = false;
+        }
+        catch (IOException ioe) {
+            modified[b] = true;
+            buckets[b].deleteData(null);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package manager;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ *   A storage file whose regions can be pinned while they are sent to a client
+ *   A pinned region is not overwritten in place, and closing the file is deferred until
+ *   the last pinned region is released, so the transfers do not need the storage lock
+ */
+public class PinnedFile {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    // the number of pins of the regions, by their position in the file
+    private final HashMap<Long,Integer> pins = new HashMap<Long,Integer>();
+    private boolean closed = false;
+
+    /**
+     *
+     * @param file the opened storage file
+     */
+    public PinnedFile(RandomAccessFile file) {
+        this.file = file;
+        this.channel = file.getChannel();
+    }
+
+    /**
+     *
+     * @return the storage file, it must not be used anymore after close()
+     */
+    public RandomAccessFile getFile() {
+        return file;
+    }
+
+    /**
+     *
+     * @return the channel of the storage file
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * pins a region, it stays readable until FileRegion.release() is called
+     * @param position the offset of the value in the file
+     * @param size the number of bytes of the value
+     * @return the pinned region
+     */
+    public synchronized FileRegion pin(long position, int size) {
+        pins.merge(position, 1, Integer::sum);
+        return new FileRegion(this, position, size);
+    }
+
+    /**
+     *
+     * @param position the offset of a value in the file
+     * @return true if the value is pinned and must not be overwritten in place
+     */
+    public synchronized boolean isPinned(long position) {
+        return pins.containsKey(position);
+    }
+
+    /**
+     *
+     * @return true if any region of the file is pinned
+     */
+    public synchronized boolean hasPins() {
+        return !pins.isEmpty();
+    }
+
+    /**
+     * releases a pin of a region and closes the file if it was closed meanwhile
+     */
+    synchronized void unpin(long position) throws IOException {
+        pins.computeIfPresent(position, (p, n) -> (n == 1) ? null : n-1);
+        if (closed && pins.isEmpty())
+            file.close();
+    }
+
+    /**
+     * closes the file, if regions are pinned the last release() closes it
+     * @throws IOException if the file could not be closed
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (pins.isEmpty())
+            file.close();
+    }
+}
@@ -0,0 +1,115 @@
+package manager;
+
+import common.hashing.Range;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ *   A storage engine persists the KV-tuples that do not fit into the cache
+ *   Implementations: StorageManager (heap file + sorted index), LogStorageManager (append-only log)
+ */
+public interface Storage {
+    /**
+     * creates the storage files
+     * deletes old storage files if there are any
+     * @throws IOException if the files could not be created
+     */
+    public void initClearedStorage() throws IOException;
+
+    /**
+     * creates the storage files if they don't exist already
+     * @throws IOException if the files could not be created
+     */
+    public void initStorage() throws IOException;
+
+    /**
+     * reopens the storage files of a previous run and repairs them if necessary
+     * @return the number of recovered KV-tuples
+     * @throws IOException if the files could not be read or repaired
+     */
+    public long recover() throws IOException;
+
+    /**
+     * forces all changes of the storage files to disk
+     * @throws IOException if the files could not be forced
+     */
+    public void sync() throws IOException;
+
+    /**
+     * closes the storage files
+     * @throws IOException if the files could not be closed
+     */
+    public void close() throws IOException;
+
+    /**
+     * write a given KV-tuple to disk
+     * @param key the key of the tuple
+     * @param value the value of the tuple, or "null" to delete
+     * @throws IOException if an error occured while updating the storage
+     */
+    public void writeToDisk(String key, String value) throws IOException;
+
+    /**
+     * get the corresponding value to a given key from disk
+     * implementations have to allow concurrent calls of this method,
+     * as long as no modifying method runs at the same time
+     * @param key the key to be looked for
+     * @return the corresponding value or null if the key was not found
+     * @throws IOException if an error occured while reading the storage
+     */
+    public String getFromDisk(String key) throws IOException;
+
+    /**
+     * locate the value of a given key in the storage files without reading it
+     * the same concurrency rules as for getFromDisk() apply, but the region is pinned: it is
+     * neither overwritten nor closed until release() is called, so it can be sent without a lock
+     * @param key the key to be looked for
+     * @return the pinned region of the value or null if the key was not found
+     * @throws IOException if an error occured while reading the storage
+     */
+    public FileRegion getRegion(String key) throws IOException;
+
+    /**
+     *
+     * @return the number of bytes used by the storage files
+     */
+    public long getStorageSize();
+
+    /**
+     *
+     * @return the fraction of lookups for absent keys that needed to search the storage,
+     * because the in-memory key filter could not rule them out
+     */
+    public double getFalsePositiveRate();
+
+    /**
+     * frees the disk space of all tuples that are flagged as deleted
+     * @throws IOException if there was an error while updating the storage
+     */
+    public void vacuum() throws IOException;
+
+    /**
+     * performs the next step of an incremental compaction, a new compaction is started if none is running
+     * live tuples are copied to new files which replace the old ones once they are complete,
+     * so reads and writes may continue between two steps
+     * @param budget the number of bytes to be processed in this step
+     * @return true if the compaction is finished
+     * @throws IOException if there was an error while copying, the compaction is abandoned in this case
+     */
+    public boolean compact(long budget) throws IOException;
+
+    /**
+     * pin the values of all keys in the given range, e.g. to send them to another server
+     * without holding a lock, the caller has to release the regions
+     * @param range the range of keys, null for all keys
+     * @return the pinned regions by key
+     * @throws IOException if the storage could not be read, no region is pinned in this case
+     */
+    public Map<String,FileRegion> getRegions(Range range) throws IOException;
+
+    /**
+     * delete data in the given range
+     * @param range the range of keys to be deleted, null for all keys
+     */
+    public void deleteData(Range range);
+}
@@ -1,23 +1,31 @@
 package manager;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.FileInputStream;
 import java.io.RandomAccessFile;
-import java.nio.file.Path;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.nio.ByteBuffer;
-import cache.Cache;
-import client.KVStore;
 import common.hashing.Range;
-import java.io.FileInputStream;
-import java.io.BufferedInputStream;
 
 /**
  *   We use a heap file to store KV-tuples
  *   We additionally use an index on the keys for faster lookup
  */  
-public class StorageManager {
+public class StorageManager implements Storage {
     // constants for storage format
     private static final int MAX_VALUE_SIZE = 120000;
     private static final int ITEM_HEADER_SIZE = 6;
@@ -31,6 +39,39 @@ public class StorageManager {
     private static final int ENTRYSIZE = KEYSIZE+INDEXSIZE+EXTRASIZE;
 
     private int storage_number;
+    private final String storage_path;
+    private final String index_path;
+    private final String compact_path;
+    
+    // the storage and index files stay open between operations
+    // lookups only use positional reads on the channels, so concurrent readers can share them
+    // all modifications go through the RandomAccessFiles and have to be serialized by the caller
+    private RandomAccessFile storage_file = null;
+    private RandomAccessFile index_file = null;
+    private FileChannel storage_channel = null;
+    private FileChannel index_channel = null;
+    // the regions of the storage file that are being sent, the file is closed after the last one
+    private PinnedFile storage_pins = null;
+    
+    // the index file is mapped into memory and grows in chunks
+    // only the first index_entries entries are valid, the rest of the mapping is zero-filled
+    // lookups read the mapping with absolute gets, so concurrent readers can share it
+    private static final int MIN_INDEX_MAPSIZE = 1024*ENTRYSIZE;
+    private volatile MappedByteBuffer index_map = null;
+    private volatile int index_entries = 0;
+    
+    // state of an incremental compaction (see compact())
+    // live tuples are copied from the storage file to the compaction file step by step,
+    // compact_moved maps their old datapos to the new one
+    private RandomAccessFile compact_file = null;
+    private long compact_pos = 0;
+    private HashMap<Long,Long> compact_moved = null;
+    
+    // Bloom filter over the keys in the index, rebuilt whenever keys were removed in bulk
+    // or the index outgrows it; the counters measure lookups of absent keys since the last rebuild
+    private volatile BloomFilter bloom = new BloomFilter(1024);
+    private final AtomicLong bloom_negatives = new AtomicLong();
+    private final AtomicLong bloom_false_positives = new AtomicLong();
        
     /**
      * initialize the storage number so that storage files of different server processes
@@ -38,131 +79,167 @@ public class StorageManager {
      * @param port port of the server that uses the storage manager
      */
     public StorageManager(int port) {
-        // we use port to distinguish storage files
-        storage_number = port;
+        this(port, "");
     }
     
     /**
-     * move keys in the given range to the given server and mark them for deletion
-     * @param range the range of keys to be moved
-     * @param kvClient the KVStore object that is used to send data
-     * @param cache the cache of this server
+     * initialize the storage number and a suffix for the file names,
+     * so that several storage managers of the same server can be distinguished
+     * @param port port of the server that uses the storage manager
+     * @param suffix appended to the names of the storage files
      */
-    public void moveData(Range range, KVStore kvClient, Cache cache) {        
-        moveOrDeleteData(range,kvClient,cache,true,true);
+    public StorageManager(int port, String suffix) {
+        // we use port to distinguish storage files
+        storage_number = port;
+        String p = Paths.get("").toAbsolutePath().toString();
+        storage_path = p+"/storage"+Integer.toString(storage_number)+suffix+".txt";
+        index_path = p+"/index"+Integer.toString(storage_number)+suffix+".txt";
+        compact_path = p+"/storage"+Integer.toString(storage_number)+suffix+"_compact.txt";
     }
     
     /**
-     * copy keys in the given range to the given server
-     * @param range the range of keys to be moved
-     * @param kvClient the KVStore object that is used to send data
-     * @param cache the cache of this server
+     * pin the values of all tuples in the given range
+     * @param range the range of keys, null for all keys
+     * @return the pinned regions by key
+     * @throws IOException if the storage file could not be read, no region is pinned in this case
      */
-    public void replicateData(Range range, KVStore kvClient, Cache cache) {        
-        moveOrDeleteData(range,kvClient,cache,true,false);
-    }    
+    @Override
+    public Map<String,FileRegion> getRegions(Range range) throws IOException {
+        LinkedHashMap<String,FileRegion> regions = new LinkedHashMap<String,FileRegion>();
+        try {
+            if (range == null) {
+                // all tuples are pinned, so we read the storage file sequentially instead of in key order
+                ByteBuffer header = ByteBuffer.allocate(ITEM_HEADER_SIZE+KEYSIZE);
+                long end = storage_channel.size();
+                long datapos = 0;
+                while (datapos < end) {
+                    header.clear();
+                    header.limit(ITEM_HEADER_SIZE);
+                    readFully(storage_channel, header, datapos);
+                    byte keysize = header.get(1);
+                    int totalsize = header.getInt(2);
+                    if (header.get(0) == 0) {
+                        header.limit(ITEM_HEADER_SIZE+keysize);
+                        readFully(storage_channel, header, datapos+ITEM_HEADER_SIZE);
+                        String key = new String(header.array(), ITEM_HEADER_SIZE, keysize);
+                        regions.put(key, storage_pins.pin(datapos+ITEM_HEADER_SIZE+keysize, totalsize-keysize));
+                    }
+                    datapos += ITEM_HEADER_SIZE + totalsize;
+                }
+                return regions;
+            }
+
+            byte[] keybuf = new byte[KEYSIZE];
+            ByteBuffer header = ByteBuffer.allocate(ITEM_HEADER_SIZE);
+            
+            // read the index through the mapping
+            ByteBuffer buf = index_map.duplicate();
+            buf.position(0);
+            buf.limit(index_entries*ENTRYSIZE);
+            while (buf.hasRemaining()) {
+                // extract the key, the position in the storage file and the key size
+                buf.get(keybuf);
+                long datapos = buf.getLong();   
+                byte keysize = buf.get();
+                String key = new String(keybuf, 0, keysize);
+                
+                // skip deleted flag
+                buf.position(buf.position()+1);
+
+                // check if key is in the range
+                if (!range.withinRange(key))
+                    continue;
+
+                header.clear();
+                readFully(storage_channel, header, datapos);
+                if (header.get(0) == 0)
+                    regions.put(key, storage_pins.pin(datapos+ITEM_HEADER_SIZE+keysize, header.getInt(2)-keysize));
+            }
+            return regions;
+        }
+        catch (IOException ioe) {
+            for (FileRegion region : regions.values())
+                region.release();
+            throw ioe;
+        }
+    }
     
     /**
      * delete data in the given range
-     * @param range the range of keys to be moved
+     * the tuples are flagged as deleted and removed from the index
+     * @param range the range of keys to be deleted, null for all keys
      */
+    @Override
     public void deleteData(Range range) {        
-        moveOrDeleteData(range,null,null,false,true);
-    }       
-    
-    /**
-     * move and/or delete data in a given range
-     * @param range the range of keys to be moved/deleted
-     * @param kvClient the KVStore object that is used to send data
-     * @param cache the cache of this server
-     * @param move indicates if the data should be moved
-     * @param del indicates if the data should be deleted
-     */
-    private void moveOrDeleteData(Range range, KVStore kvClient, Cache cache, boolean move, boolean del) {        
-        ByteBuffer buf = ByteBuffer.allocate(100*ENTRYSIZE);
-        byte[] valbytes = new byte[MAX_VALUE_SIZE];
+        byte[] keybuf = new byte[KEYSIZE];
+        byte[] entrybuf = new byte[ENTRYSIZE];
+        
+        // deleted tuples are removed from the index in the same pass:
+        // the entries that stay are moved together at the front
+        MappedByteBuffer map = index_map;
+        int entries = index_entries;
+        int kept = 0;
+        int done = 0;
         try {
-            // establish files and streams
-            RandomAccessFile index = getIndexRAFile("r");
-            RandomAccessFile storage = null;
-            if (!del) {
-                // if we don't delete data, read access is enough
-                storage = getStorageRAFile("r");
-            }
-            else {
-                storage = getStorageRAFile("rw");
-            }
-            FileInputStream fis = new FileInputStream(index.getFD());
-            BufferedInputStream bis = new BufferedInputStream(fis);            
-            while(index.getFilePointer() < index.length()) {
-                buf.position(0); 
+            RandomAccessFile storage = storage_file;
+            
+            // read the index through the mapping
+            ByteBuffer buf = map.duplicate();
+            buf.position(0);
+            buf.limit(entries*ENTRYSIZE);
+            for (int idx = 0; idx < entries; idx++) {
+                // extract the key
+                buf.get(keybuf);
                 
-                // read from the index
-                int length = bis.read(buf.array(), 0, buf.capacity());           
-                while (buf.position() < length) {
-                    // extract the key
-                    String padded_key = new String(buf.array(), buf.position(), KEYSIZE);
-                    buf.position(buf.position()+KEYSIZE);
-                    
-                    // read position in storage file
-                    long datapos = buf.getLong();   
-                    
-                    // read keysize
-                    byte keysize = buf.get();
-                    String key = padded_key.substring(0, keysize);
-                    
-                    // skip deleted flag
-                    buf.position(buf.position()+1);
-
-                    // check if key is in the range
-                    if (!range.withinRange(key))
-                        continue;
-
-                    // access storage now                  
-                    storage.seek(datapos);
-                    
-                    // check if the tuple is deleted
-                    byte deleted = storage.readByte();
-                    if (deleted != 0)
-                        continue;
-                    
-                    // set deleted
-                    if (del) {
-                        storage.seek(datapos);
-                        storage.write((byte)1);
-                    }
-                    
-                    if (!move) {
-                        // if we do not move data, we are done
-                        continue;
-                    }
-                    
-                    // check if key is in the cache
-                    if (cache.containsKey(key))
-                        continue;                    
-
-                    // skip key size
-                    storage.skipBytes(1);
-
-                    // get total size            
-                    int totalsize = storage.readInt();
-
-                    // skip to the data
-                    storage.seek(datapos+ITEM_HEADER_SIZE+keysize);
-
-                    // get the data
-                    storage.read(valbytes, 0, totalsize-keysize);                    
+                // read position in storage file
+                long datapos = buf.getLong();   
+                
+                // read keysize
+                byte keysize = buf.get();
+                String key = new String(keybuf, 0, keysize);
+                
+                // skip deleted flag
+                buf.position(buf.position()+1);
 
-                    // send the KV-Tuple
-                    kvClient.put(key, new String(valbytes, 0, totalsize-keysize));
+                // check if key is in the range
+                if (range != null && !range.withinRange(key)) {
+                    kept = keep_entry(map, idx, kept, entrybuf);
+                    done = idx+1;
+                    continue;
                 }
+
+                // set deleted
+                storage.seek(datapos);
+                storage.write((byte)1);
+                done = idx+1;
             }
-            index.close();
-            storage.close();
         }
         catch (IOException ioe) {
-            
+            // the entries that could not be flagged stay in the index
+            for (int idx = done; idx < entries; idx++)
+                kept = keep_entry(map, idx, kept, entrybuf);
+        }
+        
+        // zero the entries that are not used anymore
+        for (int i = kept*ENTRYSIZE; i < entries*ENTRYSIZE; i++)
+            map.put(i, (byte)0);
+        index_entries = kept;
+    }
+    
+    /**
+     * copies the index entry at position idx to position kept, if they differ
+     * @return the position for the next entry that is kept
+     */
+    private static int keep_entry(MappedByteBuffer map, int idx, int kept, byte[] entrybuf) {
+        if (idx != kept) {
+            ByteBuffer src = map.duplicate();
+            src.position(idx*ENTRYSIZE);
+            src.get(entrybuf);
+            ByteBuffer dst = map.duplicate();
+            dst.position(kept*ENTRYSIZE);
+            dst.put(entrybuf);
         }
+        return kept+1;
     }    
     
     /**
@@ -170,7 +247,10 @@ public class StorageManager {
      * deletes old storage and index files if there are any
      * @throws IOException if the files could not be created
      */
+    @Override
     public void initClearedStorage() throws IOException {
+        close();
+        
         // storage file
         File file = getStorageFile();      
         if (file.exists()) {
@@ -198,13 +278,18 @@ public class StorageManager {
         catch (IOException ioe) {
             throw ioe;
         }        
+        
+        openFiles();
     }        
 
     /**
      * creates storage and index files for disk storage if they don't exist already
      * @throws IOException if the files could not be created
      */
+    @Override
     public void initStorage() throws IOException {
+        close();
+        
         // storage file
         File file = getStorageFile();
 
@@ -230,14 +315,194 @@ public class StorageManager {
                 throw ioe;
             }        
         }
+        
+        openFiles();
     }    
     
+    /**
+     * forces the storage file and the index mapping to disk
+     * @throws IOException if the files could not be forced
+     */
+    @Override
+    public void sync() throws IOException {
+        storage_channel.force(false);
+        index_map.force();
+    }
+    
+    /**
+     * closes the storage and index files
+     * @throws IOException if the files could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        abort_compaction();
+        if (storage_pins != null)
+            storage_pins.close();
+        if (index_file != null) {
+            // cut off the preallocated space behind the last index entry
+            index_map = null;
+            index_file.setLength((long)index_entries*ENTRYSIZE);
+            index_file.close();
+        }
+        storage_file = null;
+        storage_pins = null;
+        index_file = null;
+        storage_channel = null;
+        index_channel = null;
+    }
+    
+    /**
+     * An index record is a live tuple found while scanning the storage file during recovery
+     */
+    private static class IndexRecord {
+        public IndexRecord(byte[] k, byte s, long p) {
+            key = k;
+            keysize = s;
+            datapos = p;
+        }
+        
+        public final byte[] key;
+        public final byte keysize;
+        public final long datapos;
+    }
+    
+    /**
+     * creates an index record with the key padded the same way as pad_key()
+     */
+    private static IndexRecord index_record(byte[] src, int offset, byte keysize, long datapos) {
+        byte[] key = new byte[KEYSIZE];
+        System.arraycopy(src, offset, key, 0, keysize);
+        Arrays.fill(key, keysize, KEYSIZE, (byte)'A');
+        return new IndexRecord(key, keysize, datapos);
+    }
+    
+    /**
+     * reopens existing storage and index files and checks the index against the storage file
+     * the storage file is scanned sequentially, a partially written tuple at its end is cut off
+     * if the index does not match the live tuples, it is rebuilt from the scan
+     * @return the number of recovered KV-tuples
+     * @throws IOException if the files could not be read or repaired
+     */
+    @Override
+    public long recover() throws IOException {
+        initStorage();
+        
+        // scan the storage file for live tuples
+        ArrayList<IndexRecord> records = new ArrayList<IndexRecord>();
+        long datapos = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getStorageFile()), MAX_ARRAY_SIZE));
+        try {
+            while (true) {
+                boolean deleted = in.readBoolean();
+                byte keysize = in.readByte();
+                int totalsize = in.readInt();
+                if (deleted) {
+                    if (in.skipBytes(totalsize) != totalsize)
+                        break;
+                }
+                else {
+                    byte[] key = new byte[KEYSIZE];
+                    in.readFully(key, 0, keysize);
+                    if (in.skipBytes(totalsize-keysize) != totalsize-keysize)
+                        break;
+                    
+                    // pad the key the same way as pad_key()
+                    Arrays.fill(key, keysize, KEYSIZE, (byte)'A');
+                    records.add(new IndexRecord(key, keysize, datapos));
+                }
+                datapos += ITEM_HEADER_SIZE + totalsize;
+            }
+        }
+        catch (EOFException eof) {
+            // reached the end of the storage file
+        }
+        finally {
+            in.close();
+        }
+        if (storage_file.length() > datapos)
+            storage_file.setLength(datapos);
+        
+        // check every live tuple against the index
+        boolean consistent = records.size() == index_entries && records.parallelStream().allMatch(r -> {
+            int idx = find_index(r.key);
+            return idx >= 0 && index_map.getLong(idx*ENTRYSIZE+KEYSIZE) == r.datapos;
+        });
+        if (consistent)
+            return records.size();
+        
+        return rebuild_index(records.toArray(new IndexRecord[records.size()]));
+    }
+    
+    /**
+     * replaces the index with the given tuples
+     * the tuples are sorted in parallel and written to the index in one sequential pass
+     * if a key was found more than once, the tuple with the highest datapos wins
+     * and the others are flagged as deleted
+     * @param records the live tuples of the storage file
+     * @return the number of entries in the new index
+     */
+    private long rebuild_index(IndexRecord[] records) throws IOException {
+        Arrays.parallelSort(records, (a, b) -> {
+            for (int i = 0; i < KEYSIZE; i++) {
+                int diff = (a.key[i] & 0xff) - (b.key[i] & 0xff);
+                if (diff != 0)
+                    return diff;
+            }
+            return Long.compare(a.datapos, b.datapos);
+        });
+        
+        clear_index();
+        if (records.length*ENTRYSIZE > index_map.capacity())
+            map_index(records.length*ENTRYSIZE);
+        
+        ByteBuffer entry = index_map.duplicate();
+        entry.position(0);
+        int entries = 0;
+        for (int i = 0; i < records.length; i++) {
+            IndexRecord r = records[i];
+            if (i+1 < records.length && Arrays.equals(r.key, records[i+1].key)) {
+                // a newer tuple with the same key follows
+                storage_file.seek(r.datapos);
+                storage_file.writeBoolean(true);
+                continue;
+            }
+            entry.put(r.key);
+            entry.putLong(r.datapos);
+            entry.put(r.keysize);
+            entry.put((byte)0);
+            entries++;
+        }
+        index_entries = entries;
+        rebuild_bloom();
+        return entries;
+    }
+    
+    private void openFiles() throws IOException {
+        // an unfinished compaction of a previous run is discarded, the storage file is still complete
+        new File(compact_path).delete();
+        
+        storage_file = new RandomAccessFile(storage_path, "rw");
+        index_file = new RandomAccessFile(index_path, "rw");
+        storage_pins = new PinnedFile(storage_file);
+        storage_channel = storage_file.getChannel();
+        index_channel = index_file.getChannel();
+        
+        // the logical end of the index is the last entry with a valid key size,
+        // everything behind it is zero-filled preallocated space
+        index_entries = (int)(index_channel.size()/ENTRYSIZE);
+        map_index(index_entries*ENTRYSIZE);
+        while (index_entries > 0 && index_map.get(index_entries*ENTRYSIZE - EXTRASIZE) == 0)
+            index_entries--;
+        rebuild_bloom();
+    }
+    
     /**
      * write a given KV-tuple to disk
      * @param key the key of the tuple
      * @param value the value of the tuple
      * @throws IOException if an error occured while updating the storage file
      */
+    @Override
     public void writeToDisk(String key, String value) throws IOException {
         try {
             // delete
@@ -260,52 +525,60 @@ public class StorageManager {
      * @return the corresponding value or null if the key was not found
      * @throws IOException if an error occured while reading the storage file
      */
+    @Override
     public String getFromDisk(String key) throws IOException {
-        // get path to storage file
-        RandomAccessFile file = null;  
-        String padded_key = pad_key(key);
-        
+        FileRegion region = getRegion(key);
+        if (region == null)
+            return null;
         try {
-            // get datapos from index
-            file = getIndexRAFile("r");
-            long datapos = get_datapos(file,padded_key);
-            file.close();
-            if (datapos < 0)
-                return null;
-
-            file = getStorageRAFile("r");
-            file.seek(datapos+1);
-            
-            // get key size
-            byte keysize = file.readByte();
-            
-            // get total size            
-            int totalsize = file.readInt();
-            
-            // skip to the data
-            file.seek(datapos+ITEM_HEADER_SIZE+keysize);
-            
-            // get the data
-            byte[] buf = new byte[totalsize-keysize];
-            file.read(buf);
-            file.close();
-            return new String(buf);
+            return region.read();
+        }
+        finally {
+            region.release();
         }
-        catch (IOException ioe) {
-            throw ioe;
-        }    
     }     
     
+    /**
+     * locate the value of a given key in the storage file
+     * the region is pinned until it is released
+     * @param key the key to be looked for
+     * @return the region of the value or null if the key was not found
+     * @throws IOException if an error occured while reading the storage file
+     */
+    @Override
+    public FileRegion getRegion(String key) throws IOException {
+        byte[] padded_key = pad_key(key).getBytes();
+        
+        // most absent keys are rejected by the Bloom filter without touching the index
+        if (!bloom.mightContain(padded_key, 0, KEYSIZE)) {
+            bloom_negatives.incrementAndGet();
+            return null;
+        }
+        
+        // get datapos from index
+        long datapos = get_datapos(padded_key);
+        if (datapos < 0) {
+            bloom_false_positives.incrementAndGet();
+            return null;
+        }
+
+        // get key size and total size
+        ByteBuffer header = ByteBuffer.allocate(ITEM_HEADER_SIZE);
+        readFully(storage_channel, header, datapos);
+        byte keysize = header.get(1);
+        int totalsize = header.getInt(2);
+
+        return storage_pins.pin(datapos+ITEM_HEADER_SIZE+keysize, totalsize-keysize);
+    }
+    
     /**
      *
      * @return the number of bytes in the storage file
      */
+    @Override
     public long getStorageSize() {
         try {
-            RandomAccessFile file = getStorageRAFile("r");
-            long size = file.length();
-            file.close();
-            return size;
+            return storage_channel.size();
         }
         catch (IOException ioe) {
             
@@ -313,6 +586,20 @@ public class StorageManager {
         return -1;
     }
     
+    /**
+     *
+     * @return the fraction of lookups for absent keys since the last rebuild of the Bloom filter
+     * that the filter could not answer and that had to search the index
+     */
+    @Override
+    public double getFalsePositiveRate() {
+        long negatives = bloom_negatives.get();
+        long false_positives = bloom_false_positives.get();
+        if (negatives + false_positives == 0)
+            return 0;
+        return (double)false_positives/(negatives + false_positives);
+    }
+    
     // the maximum amount of bytes to be stored in an array
     private static final int MAX_ARRAY_SIZE = 1*1000*1000;
 
@@ -320,14 +607,18 @@ public class StorageManager {
      * compacts the storage space by removing all tuples that are flagged as deleted
      * @throws IOException if there was an error while updating the storage
      */
+    @Override
     public void vacuum() throws IOException {
+        abort_compaction();
+        if (storage_pins.hasPins()) {
+            // pinned tuples must not move, so the live tuples are copied to a new file instead
+            compact(Long.MAX_VALUE);
+            return;
+        }
         try {
-            // open storage and index files
-            RandomAccessFile file = getStorageRAFile("rw");
-            RandomAccessFile index_file = getIndexRAFile("rw");
-            // we rebuild the index
-            // note: this is not the most efficient solution, but we ran out of time
-            index_file.setLength(0);
+            RandomAccessFile file = storage_file;
+            // we collect the new positions of all live tuples and rebuild the index at the end
+            ArrayList<IndexRecord> records = new ArrayList<IndexRecord>();
             
             byte[] keybuf = new byte[KEYSIZE];
             long datapos = 0;
@@ -395,20 +686,15 @@ public class StorageManager {
                     data.position(data.position() + itemsize);
                     file.read(data.array(), data.position()-itemsize, itemsize);
                     
-                    // insert into index
-                    String key = new String(Arrays.copyOfRange(
-                                            data.array(), 
-                                            old_position+ITEM_HEADER_SIZE, 
-                                            old_position+ITEM_HEADER_SIZE+keysize));
-                    insert_index(index_file, key, deleted_start + old_position);
+                    // remember for the index
+                    records.add(index_record(data.array(), old_position+ITEM_HEADER_SIZE, keysize, deleted_start + old_position));
                 }
                 else {
                     // read the key
                     file.read(keybuf,0,keysize);                    
-                    String key = new String(keybuf,0,keysize);
                     
-                    // insert into index
-                    insert_index(index_file, key, datapos);
+                    // remember for the index
+                    records.add(index_record(keybuf, 0, keysize, datapos));
                 }
                 
                 datapos += ITEM_HEADER_SIZE + itemsize;
@@ -428,14 +714,124 @@ public class StorageManager {
                 }                
             }
             
-            file.close();
-            index_file.close();
+            rebuild_index(records.toArray(new IndexRecord[records.size()]));
         }
         catch (IOException ioe) {
             throw ioe;
         }
     }    
     
+    /**
+     * performs the next step of an incremental compaction
+     * the live tuples are copied to a new file in the order of the storage file, 
+     * once the end of the storage file is reached the new file replaces it
+     * tuples that were already copied are not updated in place until the compaction is finished
+     * @param budget the number of bytes of the storage file to be processed in this step
+     * @return true if the compaction is finished
+     * @throws IOException if there was an error while copying, the compaction is abandoned in this case
+     */
+    @Override
+    public boolean compact(long budget) throws IOException {
+        try {
+            if (compact_file == null) {
+                // start a new compaction
+                new File(compact_path).delete();
+                compact_file = new RandomAccessFile(compact_path, "rw");
+                compact_pos = 0;
+                compact_moved = new HashMap<Long,Long>();
+            }
+            
+            FileChannel target = compact_file.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(ITEM_HEADER_SIZE);
+            long end = storage_channel.size();
+            long processed = 0;
+            while (compact_pos < end && processed < budget) {
+                header.clear();
+                readFully(storage_channel, header, compact_pos);
+                int size = ITEM_HEADER_SIZE + header.getInt(2);
+                
+                // copy live tuples to the end of the new file
+                if (header.get(0) == 0) {
+                    long newpos = target.position();
+                    long copied = 0;
+                    while (copied < size)
+                        copied += storage_channel.transferTo(compact_pos+copied, size-copied, target);
+                    compact_moved.put(compact_pos, newpos);
+                }
+                
+                compact_pos += size;
+                processed += size;
+            }
+            
+            if (compact_pos < end)
+                return false;
+            
+            swap_compacted();
+            return true;
+        }
+        catch (IOException ioe) {
+            abort_compaction();
+            throw ioe;
+        }
+    }
+    
+    /**
+     * replaces the storage file with the completely written compaction file
+     * and points the index to the new positions
+     */
+    private void swap_compacted() throws IOException {
+        // translate the index before anything is modified
+        MappedByteBuffer map = index_map;
+        long[] positions = new long[index_entries];
+        for (int i = 0; i < positions.length; i++) {
+            Long pos = compact_moved.remove(map.getLong(i*ENTRYSIZE+KEYSIZE));
+            if (pos == null)
+                throw new IOException("Index entry "+i+" was not copied during compaction");
+            positions[i] = pos;
+        }
+        
+        // tuples that were updated or deleted after they had been copied are garbage in the new file
+        for (long pos : compact_moved.values()) {
+            compact_file.seek(pos);
+            compact_file.writeBoolean(true);
+        }
+        
+        // the rename is atomic: after a crash either the old or the new file is complete
+        // an index that does not match the file is repaired by recover()
+        compact_file.getChannel().force(false);
+        Files.move(Paths.get(compact_path), Paths.get(storage_path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        PinnedFile old_file = storage_pins;
+        storage_file = compact_file;
+        storage_pins = new PinnedFile(compact_file);
+        storage_channel = compact_file.getChannel();
+        compact_file = null;
+        compact_moved = null;
+        compact_pos = 0;
+        
+        for (int i = 0; i < positions.length; i++)
+            map.putLong(i*ENTRYSIZE+KEYSIZE, positions[i]);
+        // the old file stays open until its pinned regions are sent
+        old_file.close();
+        
+        // drop the keys that were deleted since the last rebuild
+        rebuild_bloom();
+    }
+    
+    /**
+     * stops a running compaction and deletes the compaction file
+     */
+    private void abort_compaction() throws IOException {
+        if (compact_file == null)
+            return;
+        
+        RandomAccessFile file = compact_file;
+        compact_file = null;
+        compact_moved = null;
+        compact_pos = 0;
+        file.close();
+        new File(compact_path).delete();
+    }
+    
     /**
      * attempt to delete the KV-tuple corresponding to a given key from the disk
      * this flags the affected tuple as deleted, but does not free disk space
@@ -443,22 +839,17 @@ public class StorageManager {
      * @param key the key to be deleted
      */    
     private void deleteFromDisk(String key) throws IOException {  
-        RandomAccessFile file = null;   
         String padded_key = pad_key(key);
         
         try {
             // delete from index
-            file = getIndexRAFile("rw");
-            long datapos = delete_index(file,padded_key);
-            file.close();
+            long datapos = delete_index(padded_key);
             if (datapos < 0)
                 return;
 
             // set deleted-flag in the data
-            file = getStorageRAFile("rw");
-            file.seek(datapos);
-            file.writeBoolean(true);
-            file.close();
+            storage_file.seek(datapos);
+            storage_file.writeBoolean(true);
         }
         catch (IOException ioe) {
             throw ioe;
@@ -472,11 +863,9 @@ public class StorageManager {
      * @param value the value to be inserted
      */      
     private void insertOnDisk(String padded_key, String key, String value) throws IOException {
-        RandomAccessFile file = null;
+        RandomAccessFile file = storage_file;
         
         try {
-            file = getStorageRAFile("rw");
-            
             // skip to end
             file.seek(file.length());
             
@@ -489,12 +878,9 @@ public class StorageManager {
             // write data
             file.write(key.getBytes());
             file.write(value.getBytes());
-            file.close();
             
             // write index
-            file = getIndexRAFile("rw");
-            insert_index(file,key,datapos);
-            file.close();                         
+            insert_index(key,datapos);
         }
         catch (IOException ioe) {
             throw ioe;
@@ -508,14 +894,12 @@ public class StorageManager {
      */       
     private void updateOnDisk(String key, String value) throws IOException {
         // first we check if the key is already on disk
-        RandomAccessFile file = null;     
+        RandomAccessFile file = storage_file;     
         String padded_key = pad_key(key);
         
         try {
             // get datapos from index
-            file = getIndexRAFile("rw");
-            long datapos = get_datapos(file,padded_key);
-            file.close();
+            long datapos = get_datapos(padded_key);
             
             if (datapos < 0) {
                 // key is not on disk -> insert
@@ -523,7 +907,6 @@ public class StorageManager {
                 return;
             }            
 
-            file = getStorageRAFile("rw");
             file.seek(datapos+1);
             
             // read key size
@@ -533,8 +916,12 @@ public class StorageManager {
             int old_value_size = file.readInt() - key_size;
             
             // check if there is enough space
+            // a tuple that was already copied by a running compaction is not updated in place,
+            // otherwise the copy would be outdated; neither is a tuple that is being sent
             int size_diff = old_value_size - value.length();
-            if (size_diff == 0 || size_diff >= ITEM_HEADER_SIZE+2) {
+            boolean copied = compact_file != null && datapos < compact_pos;
+            boolean pinned = storage_pins.isPinned(datapos+ITEM_HEADER_SIZE+key_size);
+            if (!copied && !pinned && (size_diff == 0 || size_diff >= ITEM_HEADER_SIZE+2)) {
                 // update value size
                 file.seek(datapos+2);
                 file.writeInt(value.length() + key_size);
@@ -555,14 +942,12 @@ public class StorageManager {
                     file.write(buf.array(),0,buf.position());
                 }
                 
-                file.close();
                 return;
             }
             
             // not enough space -> set deleted-flag instead
             file.seek(datapos);
             file.writeBoolean(true);
-            file.close();
             
             // value could not be updated -> insert instead
             insertOnDisk(padded_key,key,value);
@@ -573,168 +958,154 @@ public class StorageManager {
     }    
     
     private File getStorageFile() {
-        Path currentRelativePath = Paths.get("");
-        String p = currentRelativePath.toAbsolutePath().toString();        
-        File file = new File(p+"/storage"+Integer.toString(storage_number)+".txt");     
-        
-        return file;
+        return new File(storage_path);
     }
     
     private File getIndexFile() {
-        Path currentRelativePath = Paths.get("");
-        String p = currentRelativePath.toAbsolutePath().toString();        
-        File file = new File(p+"/index"+Integer.toString(storage_number)+".txt");     
-        
-        return file;
+        return new File(index_path);
     }
     
-    private RandomAccessFile getStorageRAFile(String mode) throws IOException {
-        Path currentRelativePath = Paths.get("");
-        String p = currentRelativePath.toAbsolutePath().toString();   
-        RandomAccessFile file = null;
-        
-        try {
-            file = new RandomAccessFile(p+"/storage"+Integer.toString(storage_number)+".txt", mode);    
-        }
-        catch (IOException ioe) {
-            throw ioe;
+    private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new EOFException("unexpected end of file");
+            pos += n;
         }
-        
-        return file;
     }
     
-    private RandomAccessFile getIndexRAFile(String mode) throws IOException {
-        Path currentRelativePath = Paths.get("");
-        String p = currentRelativePath.toAbsolutePath().toString();   
-        RandomAccessFile file = null;
-        
-        try {
-            file = new RandomAccessFile(p+"/index"+Integer.toString(storage_number)+".txt", mode);    
-        }
-        catch (IOException ioe) {
-            throw ioe;
+    /**
+     *   maps the index file with at least the given size
+     *   the file is extended with zeros if necessary
+     */
+    private void map_index (int size) throws IOException {
+        int mapsize = MIN_INDEX_MAPSIZE;
+        while (mapsize < size)
+            mapsize *= 2;
+        index_map = index_channel.map(FileChannel.MapMode.READ_WRITE, 0, mapsize);
+    }
+    
+    /**
+     *   makes sure that the mapping has room for one more entry
+     *   doubles the size of the mapping if necessary
+     */
+    private void grow_index () throws IOException {
+        int needed = (index_entries+1)*ENTRYSIZE;
+        if (needed > index_map.capacity())
+            map_index(needed);
+    }
+    
+    /**
+     *   removes all entries from the index
+     */
+    private void clear_index () {
+        MappedByteBuffer map = index_map;
+        int size = index_entries*ENTRYSIZE;
+        for (int i = 0; i < size; i++)
+            map.put(i, (byte)0);
+        index_entries = 0;
+    }
+    
+    /**
+     *   compares a key padded to KEYSIZE with the key of the index entry at position idx
+     *   the bytes are compared directly in the mapping, nothing is allocated or copied
+     *   returns a negative number, zero or a positive number if the given key is 
+     *   smaller than, equal to or greater than the key in the index
+     */
+    private static int compare_key (MappedByteBuffer map, byte[] key, int idx) {
+        int base = idx*ENTRYSIZE;
+        for (int i = 0; i < KEYSIZE; i++) {
+            int diff = (key[i] & 0xff) - (map.get(base+i) & 0xff);
+            if (diff != 0)
+                return diff;
         }
-        
-        return file;
-    }    
+        return 0;
+    }
     
     /**
      *   use binary search to find a key in the index represented by sorted array A
-     *   returns position p such that A[p] <= key <= A[p+1]
+     *   returns the smallest position p such that key <= A[p], or the number of entries
      *   this assumes that the input key is padded to KEYSIZE
      */      
-    private long binary_search (RandomAccessFile file, String key, long posL, long posH) throws IOException {
-        try {
-            byte[] buf = new byte[KEYSIZE];
-            long mid = (posL+posH)/2;
-            file.seek(mid*ENTRYSIZE);
-            file.read(buf);
-            
-            if (key.equals(new String(buf)) || mid == posL)
-                return mid;
-            if (key.compareTo(new String(buf)) > 0) {
-                return binary_search(file,key,mid,posH);
-            }
-            return binary_search(file,key,posL,mid);
+    private int binary_search (MappedByteBuffer map, int entries, byte[] key) {
+        int posL = 0;
+        int posH = entries;
+        while (posL < posH) {
+            int mid = (posL+posH) >>> 1;
+            if (compare_key(map, key, mid) > 0)
+                posL = mid+1;
+            else
+                posH = mid;
         }
-        catch (IOException ioe) {
-            throw ioe;
-        }   
+        return posL;
     }    
 
+    /**
+     *   moves the entries starting at position from by one entry
+     *   shift > 0 moves them towards the end, shift < 0 towards the start
+     */
+    private void shift_index (int from, int shift) {
+        MappedByteBuffer map = index_map;
+        int start = from*ENTRYSIZE;
+        int end = index_entries*ENTRYSIZE;
+        byte[] shift_buf = new byte[Math.min(MAX_ARRAY_SIZE, Math.max(end-start, 0))];
+        
+        // shift block by block
+        // we have to start at the end when moving towards the end so that no entry is overwritten
+        int cur_pos = (shift > 0) ? end : start;
+        while ((shift > 0) ? cur_pos > start : cur_pos < end) {
+            int size;
+            if (shift > 0) {
+                size = Math.min(cur_pos - start, shift_buf.length);
+                cur_pos -= size;
+            }
+            else
+                size = Math.min(end - cur_pos, shift_buf.length);
+            
+            ByteBuffer src = map.duplicate();
+            src.position(cur_pos);
+            src.get(shift_buf, 0, size);
+            ByteBuffer dst = map.duplicate();
+            dst.position(cur_pos + shift*ENTRYSIZE);
+            dst.put(shift_buf, 0, size);
+            
+            if (shift < 0)
+                cur_pos += size;
+        }
+    }
+
     /**
      *   inserts a (key,datapos) tuple into the index structure
      *   updates datapos if key is already in the index   
      */    
-    private void insert_index (RandomAccessFile RAfile, String key, long datapos) throws IOException {
-        String padded_key = pad_key(key);
+    private void insert_index (String key, long datapos) throws IOException {
+        byte[] padded_key = pad_key(key).getBytes();
         byte keysize = (byte)key.length();
-         try {
-             // check if file is empty
-             if (RAfile.length() == 0) {
-                 RAfile.seek(0);
-                 
-                 // do the insert
-                 RAfile.write(padded_key.getBytes());
-                 RAfile.writeLong(datapos);
-                 RAfile.writeByte(keysize);
-                 RAfile.writeByte((byte)0);
-                 return;
-             }
-
-             // check if key can be inserted at the end
-             byte[] buf = new byte[KEYSIZE];
-             RAfile.seek(RAfile.length()-ENTRYSIZE);
-             RAfile.read(buf);  
-             if (RAfile.length() == ENTRYSIZE && padded_key.equals(new String(buf))) {
-                 RAfile.writeLong(datapos);
-                 return;
-             }
-             if (padded_key.compareTo(new String(buf)) > 0) {
-                 RAfile.seek(RAfile.length());
-                 
-                 // do the insert
-                 RAfile.write(padded_key.getBytes());
-                 RAfile.writeLong(datapos);
-                 RAfile.writeByte(keysize);
-                 RAfile.writeByte((byte)0);                 
-                 return;
-             }
-
-             // check if key can be inserted at the start             
-             long inspos = -1;
-             RAfile.seek(0);
-             RAfile.read(buf); 
-             if (padded_key.compareTo(new String(buf)) < 0)
-                inspos = 0;
-
-             // search the file
-             if (inspos < 0) {
-                long idx = binary_search(RAfile,padded_key,0,RAfile.length()/ENTRYSIZE-1);
-                RAfile.seek(idx*ENTRYSIZE);
-                RAfile.read(buf); 
-                if (padded_key.equals(new String(buf))) {
-                    RAfile.writeLong(datapos);
-                    return;
-                }
-                inspos = idx*ENTRYSIZE + ENTRYSIZE;
-                //RAfile.skipBytes(INDEXSIZE);
-                RAfile.seek(inspos);
-                RAfile.read(buf); 
-                if (padded_key.equals(new String(buf))) {
-                    RAfile.writeLong(datapos);
-                    return;   
-                }
-             }
-             
-             // shift block by block            
-             long cur_pos = RAfile.length();
-             byte[] shift_buf = new byte[MAX_ARRAY_SIZE];
-             while(cur_pos > inspos) {  
-                 long size = cur_pos - inspos;
-                 if (size > MAX_ARRAY_SIZE) {
-                     size = MAX_ARRAY_SIZE;
-                     cur_pos -= MAX_ARRAY_SIZE;
-                 }
-                 else
-                     cur_pos = inspos;
-                 
-                 RAfile.seek(cur_pos);
-                 RAfile.read(shift_buf,0,(int)size);                 
-                 RAfile.seek(cur_pos+ENTRYSIZE);
-                 RAfile.write(shift_buf,0,(int)size);   
-             }
-             
-             // do the insert
-             RAfile.seek(inspos);
-             RAfile.write(padded_key.getBytes());   
-             RAfile.writeLong(datapos);  
-             RAfile.writeByte(keysize);
-             RAfile.writeByte((byte)0);             
+        
+        int idx = binary_search(index_map, index_entries, padded_key);
+        if (idx < index_entries && compare_key(index_map, padded_key, idx) == 0) {
+            // key is already in the index
+            index_map.putLong(idx*ENTRYSIZE+KEYSIZE, datapos);
+            return;
         }
-        catch (IOException ioe) {
-            throw ioe;
-        }            
+        
+        // make room for the new entry
+        grow_index();
+        shift_index(idx, 1);
+        
+        // do the insert
+        ByteBuffer entry = index_map.duplicate();
+        entry.position(idx*ENTRYSIZE);
+        entry.put(padded_key, 0, KEYSIZE);
+        entry.putLong(datapos);
+        entry.put(keysize);
+        entry.put((byte)0);
+        index_entries++;
+        
+        if (index_entries > bloom.getCapacity())
+            rebuild_bloom();
+        else
+            bloom.add(padded_key, 0, KEYSIZE);
     }    
     
     /**
@@ -742,44 +1113,22 @@ public class StorageManager {
      *   returns the datapos connected to the key or -1 if the key was not found 
      *   this assumes that the input key is padded to KEYSIZE
      */    
-    private long delete_index (RandomAccessFile RAfile, String key) throws IOException {
-         try {
-             long filepos = find_index(RAfile,key);
-             if (filepos < 0)
-                 return -1;
-             filepos *= ENTRYSIZE;
-
-             // get page index
-             RAfile.seek(filepos+KEYSIZE);
-             long datapos = RAfile.readLong();
-             
-             // check if key is the last one in the array
-             if (filepos == RAfile.length() - ENTRYSIZE) {
-                 RAfile.setLength(RAfile.length() - ENTRYSIZE);
-                 return datapos;
-             }            
-             
-             // shift block by block            
-             long cur_pos = filepos+ENTRYSIZE;
-             byte[] shift_buf = new byte[MAX_ARRAY_SIZE];
-             while(cur_pos < RAfile.length()) {  
-                 long size = RAfile.length() - cur_pos;
-                 if (size > MAX_ARRAY_SIZE)
-                     size = MAX_ARRAY_SIZE;
-                 
-                 RAfile.seek(cur_pos);
-                 RAfile.read(shift_buf,0,(int)size);                 
-                 RAfile.seek(cur_pos-ENTRYSIZE);
-                 RAfile.write(shift_buf,0,(int)size);   
-
-                 cur_pos += size;
-             }
+    private long delete_index (String key) throws IOException {
+        int idx = find_index(key.getBytes());
+        if (idx < 0)
+            return -1;
+        
+        // get page index
+        long datapos = index_map.getLong(idx*ENTRYSIZE+KEYSIZE);
+        
+        // close the gap and zero the now unused last entry
+        shift_index(idx+1, -1);
+        index_entries--;
+        int last = index_entries*ENTRYSIZE;
+        for (int i = 0; i < ENTRYSIZE; i++)
+            index_map.put(last+i, (byte)0);
                
-             return datapos;
-        }
-        catch (IOException ioe) {
-            throw ioe;
-        }         
+        return datapos;
     }       
     
     /**
@@ -787,44 +1136,12 @@ public class StorageManager {
      *   returns the position of the key in the sorted array or -1 if the key was not found 
      *   this assumes that the input key is padded to KEYSIZE
      */        
-    private long find_index (RandomAccessFile RAfile, String key) throws IOException {
-        try {
-             // check if file is empty
-             if (RAfile.length() == 0) {
-                 return -1;
-             }
-
-             // check if key is larger than max
-             byte[] buf = new byte[KEYSIZE];
-             RAfile.seek(RAfile.length()-ENTRYSIZE);
-             RAfile.read(buf); 
-             if (RAfile.length() == ENTRYSIZE && key.equals(new String(buf)))
-                 return 0;
-             if (key.compareTo(new String(buf)) > 0) {
-                 return -1;
-             }
-
-             // check if key is smaller than min
-             RAfile.seek(0);
-             RAfile.read(buf); 
-             if (key.compareTo(new String(buf)) < 0) {
-                return -1;
-             }
-
-            long idx = binary_search(RAfile,key,0,RAfile.length()/ENTRYSIZE-1);
-            RAfile.seek(idx*ENTRYSIZE);
-            RAfile.read(buf); 
-            if (key.equals(new String(buf)))
-                return idx;
-            //RAfile.skipBytes(INDEXSIZE);
-            RAfile.seek(idx*ENTRYSIZE + ENTRYSIZE);
-            RAfile.read(buf); 
-            if (key.equals(new String(buf)))
-                return idx+1;   
-        }
-        catch (IOException ioe) {
-            throw ioe;
-        }   
+    private int find_index (byte[] key) {
+        MappedByteBuffer map = index_map;
+        int entries = index_entries;
+        int idx = binary_search(map, entries, key);
+        if (idx < entries && compare_key(map, key, idx) == 0)
+            return idx;
         return -1;
     }    
     
@@ -833,18 +1150,36 @@ public class StorageManager {
      *   returns the datapos connected to the key or -1 if the key was not found 
      *   this assumes that the input key is padded to KEYSIZE
      */        
-    private long get_datapos (RandomAccessFile RAfile, String key) throws IOException {
-         try {
-             long filepos = find_index(RAfile,key);
-             if (filepos < 0)
-                 return -1;
-             filepos *= ENTRYSIZE;
-             RAfile.seek(filepos+KEYSIZE);
-             return RAfile.readLong();            
+    private long get_datapos (String key) {
+        return get_datapos(key.getBytes());
+    }
+    
+    private long get_datapos (byte[] key) {
+        int idx = find_index(key);
+        if (idx < 0)
+            return -1;
+        return index_map.getLong(idx*ENTRYSIZE+KEYSIZE);
+    }
+    
+    /**
+     *   builds a new Bloom filter from the keys in the index
+     *   the filter is sized for twice the current number of entries, so that it is rebuilt
+     *   only after the index has doubled
+     */
+    private void rebuild_bloom () {
+        MappedByteBuffer map = index_map;
+        int entries = index_entries;
+        BloomFilter filter = new BloomFilter(Math.max(2*entries, 1024));
+        byte[] keybuf = new byte[KEYSIZE];
+        for (int i = 0; i < entries; i++) {
+            ByteBuffer entry = map.duplicate();
+            entry.position(i*ENTRYSIZE);
+            entry.get(keybuf);
+            filter.add(keybuf, 0, KEYSIZE);
         }
-        catch (IOException ioe) {
-            throw ioe;
-        }         
+        bloom = filter;
+        bloom_negatives.set(0);
+        bloom_false_positives.set(0);
     }    
     
     private String pad_key (String key) {
@@ -0,0 +1,270 @@
+package manager;
+
+/**
+ *   Tuning options of the storage layer of a server
+ *   The defaults keep the heap file storage without recovery and write-ahead log, but turn on
+ *   16 storage buckets, 16 cache stripes, a write-behind queue of 1024 evicted tuples, a negative
+ *   cache of 4096 keys, a cache manifest every 60 s and the heap monitor (85/60 percent).
+ *   The original behaviour is 1 bucket, 1 stripe and 0 for the negative cache, the manifest interval
+ *   and the heap high water; the defaults can be overwritten with system properties
+ *   (e.g. java -Dkvserver.storage=LOG -Dkvserver.storage.buckets=1 -jar ms3-server.jar ...)
+ */
+public class StorageOptions {
+    private String storage_type = "HEAP";
+    private int storage_buckets = 16;
+    private boolean recover = false;
+    private String wal_policy = "OFF";
+    private long wal_interval = 100;
+    private long compaction_rate = 8*1000*1000;
+    private int write_behind_size = 1024;
+    private int cache_stripes = 16;
+    private boolean cache_offheap = false;
+    private int negative_cache_size = 4096;
+    private long manifest_interval = 60*1000;
+    private int warm_up_threads = 4;
+    private int heap_high_water = 85;
+    private int heap_low_water = 60;
+
+    /**
+     *
+     * @return options initialized from the kvserver.* system properties
+     */
+    public static StorageOptions fromSystemProperties() {
+        StorageOptions options = new StorageOptions();
+        options.setStorageType(System.getProperty("kvserver.storage", options.getStorageType()));
+        options.setStorageBuckets(Integer.getInteger("kvserver.storage.buckets", options.getStorageBuckets()));
+        options.setRecover(Boolean.getBoolean("kvserver.recover"));
+        options.setWalPolicy(System.getProperty("kvserver.wal", options.getWalPolicy()));
+        options.setWalInterval(Long.getLong("kvserver.wal.interval", options.getWalInterval()));
+        options.setCompactionRate(Long.getLong("kvserver.compaction.rate", options.getCompactionRate()));
+        options.setWriteBehindSize(Integer.getInteger("kvserver.writebehind.size", options.getWriteBehindSize()));
+        options.setCacheStripes(Integer.getInteger("kvserver.cache.stripes", options.getCacheStripes()));
+        options.setCacheOffHeap(Boolean.getBoolean("kvserver.cache.offheap"));
+        options.setNegativeCacheSize(Integer.getInteger("kvserver.cache.negative", options.getNegativeCacheSize()));
+        options.setManifestInterval(Long.getLong("kvserver.cache.manifest.interval", options.getManifestInterval()));
+        options.setWarmUpThreads(Integer.getInteger("kvserver.cache.warmup.threads", options.getWarmUpThreads()));
+        options.setHeapHighWater(Integer.getInteger("kvserver.cache.heap.high", options.getHeapHighWater()));
+        options.setHeapLowWater(Integer.getInteger("kvserver.cache.heap.low", options.getHeapLowWater()));
+        return options;
+    }
+
+    /**
+     *
+     * @return the storage engine (HEAP or LOG)
+     */
+    public String getStorageType() {
+        return storage_type;
+    }
+
+    /**
+     * @param type the storage engine: HEAP for the heap file with sorted index,
+     * LOG for the append-only log with in-memory key directory
+     */
+    public void setStorageType(String type) {
+        storage_type = type;
+    }
+
+    /**
+     *
+     * @return the number of hash buckets the storage is partitioned into
+     */
+    public int getStorageBuckets() {
+        return storage_buckets;
+    }
+
+    /**
+     * @param buckets the number of hash buckets with separate storage files, a power of two up to 256;
+     * 1 keeps all tuples in a single storage
+     */
+    public void setStorageBuckets(int buckets) {
+        storage_buckets = buckets;
+    }
+
+    /**
+     *
+     * @return if the storage of a previous run is recovered instead of being deleted
+     */
+    public boolean getRecover() {
+        return recover;
+    }
+
+    /**
+     * @param r true to reopen and check the storage files of a previous run on startup,
+     * false to start with empty storage files
+     */
+    public void setRecover(boolean r) {
+        recover = r;
+    }
+
+    /**
+     *
+     * @return the sync policy of the write-ahead log (OFF, ALWAYS, INTERVAL or OS)
+     */
+    public String getWalPolicy() {
+        return wal_policy;
+    }
+
+    /**
+     * @param policy OFF to disable the write-ahead log, ALWAYS to force it before every
+     * acknowledgement, INTERVAL to force it periodically, OS to leave the write back to the OS
+     */
+    public void setWalPolicy(String policy) {
+        wal_policy = policy;
+    }
+
+    /**
+     *
+     * @return the time between two forces of the write-ahead log in ms (INTERVAL policy)
+     */
+    public long getWalInterval() {
+        return wal_interval;
+    }
+
+    /**
+     * @param interval the time between two forces of the write-ahead log in ms (INTERVAL policy)
+     */
+    public void setWalInterval(long interval) {
+        wal_interval = interval;
+    }
+
+    /**
+     *
+     * @return the maximum number of bytes per second processed by the background compaction
+     */
+    public long getCompactionRate() {
+        return compaction_rate;
+    }
+
+    /**
+     * @param rate the maximum number of bytes per second processed by the background compaction, 0 for no limit
+     */
+    public void setCompactionRate(long rate) {
+        compaction_rate = rate;
+    }
+
+    /**
+     *
+     * @return the maximum number of evicted tuples waiting to be written to disk
+     */
+    public int getWriteBehindSize() {
+        return write_behind_size;
+    }
+
+    /**
+     * @param size the maximum number of evicted tuples waiting to be written to disk, evictions block while the queue is full
+     */
+    public void setWriteBehindSize(int size) {
+        write_behind_size = size;
+    }
+
+    /**
+     *
+     * @return the number of independently locked stripes of the cache
+     */
+    public int getCacheStripes() {
+        return cache_stripes;
+    }
+
+    /**
+     * @param stripes the number of independently locked stripes of the cache,
+     * small caches use fewer stripes so that every stripe holds at least 64 tuples
+     */
+    public void setCacheStripes(int stripes) {
+        cache_stripes = stripes;
+    }
+
+    /**
+     *
+     * @return if the cached values are stored outside of the Java heap
+     */
+    public boolean getCacheOffHeap() {
+        return cache_offheap;
+    }
+
+    /**
+     * @param offheap true to keep the cached values in slabs of direct memory, the off-heap cache
+     * always replaces the least recently used tuple
+     */
+    public void setCacheOffHeap(boolean offheap) {
+        cache_offheap = offheap;
+    }
+
+    /**
+     *
+     * @return the maximum number of keys that are remembered as absent from the storage
+     */
+    public int getNegativeCacheSize() {
+        return negative_cache_size;
+    }
+
+    /**
+     * @param size the maximum number of keys that are remembered as absent from the storage,
+     * split over the stripes of the cache; 0 disables the negative cache
+     */
+    public void setNegativeCacheSize(int size) {
+        negative_cache_size = size;
+    }
+
+    /**
+     *
+     * @return the time between two writes of the manifest of the keys in the cache in ms
+     */
+    public long getManifestInterval() {
+        return manifest_interval;
+    }
+
+    /**
+     * @param interval the time between two writes of the manifest of the keys in the cache in ms,
+     * 0 disables the manifest and the warm-up of the cache
+     */
+    public void setManifestInterval(long interval) {
+        manifest_interval = interval;
+    }
+
+    /**
+     *
+     * @return the number of threads that load the keys of the manifest after a restart
+     */
+    public int getWarmUpThreads() {
+        return warm_up_threads;
+    }
+
+    /**
+     * @param threads the number of threads that load the keys of the manifest after a restart,
+     * the cache is only warmed up when the storage is recovered
+     */
+    public void setWarmUpThreads(int threads) {
+        warm_up_threads = threads;
+    }
+
+    /**
+     *
+     * @return the usage of the old generation in percent above which the cache shrinks
+     */
+    public int getHeapHighWater() {
+        return heap_high_water;
+    }
+
+    /**
+     * @param percent the usage of the old generation in percent above which the cache shrinks,
+     * 0 keeps the capacity of the cache fixed
+     */
+    public void setHeapHighWater(int percent) {
+        heap_high_water = percent;
+    }
+
+    /**
+     *
+     * @return the usage of the old generation in percent below which a shrunk cache grows again
+     */
+    public int getHeapLowWater() {
+        return heap_low_water;
+    }
+
+    /**
+     * @param percent the usage of the old generation in percent below which a shrunk cache grows again
+     */
+    public void setHeapLowWater(int percent) {
+        heap_low_water = percent;
+    }
+}
@@ -0,0 +1,319 @@
+package manager;
+
+import common.logger.Constants;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *   Sequential write-ahead log for PUT and DELETE requests
+ *   Requests append their record to an in-memory buffer. A single log writer thread
+ *   writes the buffer to the end of the log file and forces it to disk according to
+ *   the sync policy. All records that arrive while the log is being forced are
+ *   committed together with the next force (group commit).
+ */
+public class WriteAheadLog extends Thread {
+    // sync policies
+    public static final String SYNC_ALWAYS = "ALWAYS";      // force before a request is acknowledged
+    public static final String SYNC_INTERVAL = "INTERVAL";  // force every sync_interval ms
+    public static final String SYNC_OS = "OS";              // never force, the OS writes back
+
+    // record format: DELETED | SIZE OF KEY | SIZE OF KEY+VALUE | KEY | VALUE | CRC32
+    private static final int ITEM_HEADER_SIZE = 6;
+    private static final int CRC_SIZE = 4;
+
+    // the log is checkpointed once it grows beyond this size
+    private static final long CHECKPOINT_SIZE = 64*1000*1000;
+
+    private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
+
+    private final String policy;
+    private final long sync_interval;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+
+    // pending is filled by the requests, the writer thread swaps it with spare
+    private ByteBuffer pending = ByteBuffer.allocate(1024*1024);
+    private ByteBuffer spare = ByteBuffer.allocate(1024*1024);
+
+    // log sequence numbers: every record gets the next number
+    private long appended_lsn = 0;
+    private long written_lsn = 0;
+    private long durable_lsn = 0;
+    private long file_size = 0;
+    private long last_force = 0;
+    private boolean writing = false;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    /**
+     * opens the log file of the server with the given port
+     * @param port the port of the server that uses the log
+     * @param policy the sync policy (ALWAYS, INTERVAL or OS)
+     * @param sync_interval the time between two forces in ms for the INTERVAL policy
+     * @throws IOException if the log file could not be opened
+     */
+    public WriteAheadLog(int port, String policy, long sync_interval) throws IOException {
+        super("WriteAheadLog");
+        setDaemon(true);
+        this.policy = policy;
+        this.sync_interval = sync_interval;
+
+        String p = Paths.get("").toAbsolutePath().toString();
+        file = new RandomAccessFile(p+"/wal"+Integer.toString(port)+".txt", "rw");
+        channel = file.getChannel();
+        file_size = channel.size();
+    }
+
+    /**
+     * appends a record to the log
+     * the record is not durable before awaitDurable() returns for its sequence number
+     * @param key the key of the tuple
+     * @param value the value of the tuple, or "null" to delete
+     * @return the log sequence number of the record
+     * @throws IOException if the log could not be written previously
+     */
+    public synchronized long append(String key, String value) throws IOException {
+        if (failure != null)
+            throw failure;
+        if (closed)
+            throw new IOException("write-ahead log is closed");
+
+        boolean deleted = value.equals("null");
+        byte[] keybytes = key.getBytes();
+        byte[] valbytes = deleted ? new byte[0] : value.getBytes();
+        int size = ITEM_HEADER_SIZE + keybytes.length + valbytes.length + CRC_SIZE;
+
+        if (pending.remaining() < size) {
+            // grow the buffer
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity()*2, pending.position()+size));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+
+        int start = pending.position();
+        pending.put((byte)(deleted ? 1 : 0));
+        pending.put((byte)keybytes.length);
+        pending.putInt(keybytes.length + valbytes.length);
+        pending.put(keybytes);
+        pending.put(valbytes);
+        crc.reset();
+        crc.update(pending.array(), start, pending.position()-start);
+        pending.putInt((int)crc.getValue());
+
+        appended_lsn++;
+        notifyAll();
+        return appended_lsn;
+    }
+
+    /**
+     * waits until the record with the given sequence number is durable according to the policy
+     * with the ALWAYS policy this waits for the force, otherwise it returns immediately
+     * @param lsn the log sequence number returned by append()
+     * @return false if the log could not be written
+     */
+    public synchronized boolean awaitDurable(long lsn) {
+        if (!policy.equals(SYNC_ALWAYS))
+            return failure == null;
+
+        try {
+            while (durable_lsn < lsn && failure == null)
+                wait();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return failure == null;
+    }
+
+    /**
+     *
+     * @return if the log has grown large enough to be checkpointed
+     */
+    public synchronized boolean needsCheckpoint() {
+        return file_size + pending.position() > CHECKPOINT_SIZE;
+    }
+
+    /**
+     * empties the log
+     * the caller has to make sure that all logged records have reached the storage
+     * and that no records are appended concurrently
+     * @throws IOException if the log could not be truncated
+     */
+    public synchronized void truncate() throws IOException {
+        try {
+            while (writing)
+                wait();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while truncating the log");
+        }
+
+        pending.clear();
+        channel.truncate(0);
+        channel.force(false);
+        file_size = 0;
+        written_lsn = appended_lsn;
+        durable_lsn = appended_lsn;
+        notifyAll();
+    }
+
+    /**
+     * applies all records of the log to the given storage
+     * must be called before the log writer thread is started
+     * replay stops at the first incomplete or corrupted record
+     * @param storage the storage to write the records to
+     * @return the number of replayed records
+     * @throws IOException if the log could not be read or the storage could not be written
+     */
+    public long replay(Storage storage) throws IOException {
+        long records = 0;
+        long valid_size = 0;
+        byte[] record = new byte[ITEM_HEADER_SIZE + 255 + 120000];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.getFD())));
+        channel.position(0);
+        try {
+            while (true) {
+                in.readFully(record, 0, ITEM_HEADER_SIZE);
+                boolean deleted = record[0] != 0;
+                int keysize = record[1] & 0xff;
+                int totalsize = ByteBuffer.wrap(record, 2, 4).getInt();
+                if (totalsize < keysize || ITEM_HEADER_SIZE + totalsize > record.length)
+                    break;
+                in.readFully(record, ITEM_HEADER_SIZE, totalsize);
+                int checksum = in.readInt();
+
+                crc.reset();
+                crc.update(record, 0, ITEM_HEADER_SIZE + totalsize);
+                if (checksum != (int)crc.getValue())
+                    break;
+
+                String key = new String(record, ITEM_HEADER_SIZE, keysize);
+                String value = deleted ? "null" : new String(record, ITEM_HEADER_SIZE + keysize, totalsize - keysize);
+                storage.writeToDisk(key, value);
+                records++;
+                valid_size += ITEM_HEADER_SIZE + totalsize + CRC_SIZE;
+            }
+        }
+        catch (EOFException eof) {
+            // reached the end of the log
+        }
+
+        // cut off a torn record at the end
+        if (channel.size() > valid_size)
+            channel.truncate(valid_size);
+        file_size = valid_size;
+        return records;
+    }
+
+    /**
+     * writes all pending records and stops the log writer thread
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            join();
+            file.close();
+        }
+        catch (InterruptedException | IOException e) {
+            LOGGER.error("Exception while closing the write-ahead log", e);
+        }
+    }
+
+    /**
+     * the log writer thread
+     */
+    @Override
+    public void run() {
+        while (true) {
+            ByteBuffer batch;
+            long lsn;
+            long pos;
+
+            synchronized (this) {
+                try {
+                    while (pending.position() == 0 && !closed) {
+                        if (policy.equals(SYNC_INTERVAL) && durable_lsn < written_lsn) {
+                            // wake up for the next periodic force
+                            long remaining = last_force + sync_interval - System.currentTimeMillis();
+                            if (remaining <= 0)
+                                break;
+                            wait(remaining);
+                        }
+                        else
+                            wait();
+                    }
+                }
+                catch (InterruptedException ie) {
+                    closed = true;
+                }
+                if (closed && pending.position() == 0)
+                    break;
+
+                // take all pending records at once
+                batch = pending;
+                pending = spare;
+                spare = batch;
+                lsn = appended_lsn;
+                pos = file_size;
+                file_size += batch.position();
+                writing = true;
+            }
+
+            IOException error = null;
+            boolean forced = false;
+            try {
+                batch.flip();
+                while (batch.hasRemaining())
+                    pos += channel.write(batch, pos);
+                batch.clear();
+
+                long now = System.currentTimeMillis();
+                if (policy.equals(SYNC_ALWAYS) || (policy.equals(SYNC_INTERVAL) && now - last_force >= sync_interval)) {
+                    channel.force(false);
+                    last_force = now;
+                    forced = true;
+                }
+            }
+            catch (IOException ioe) {
+                LOGGER.error("Could not write to the write-ahead log", ioe);
+                error = ioe;
+            }
+
+            synchronized (this) {
+                writing = false;
+                if (error != null)
+                    failure = error;
+                if (lsn > written_lsn)
+                    written_lsn = lsn;
+                if (forced && lsn > durable_lsn)
+                    durable_lsn = lsn;
+                notifyAll();
+            }
+        }
+
+        // final force on close
+        try {
+            channel.force(false);
+        }
+        catch (IOException ioe) {
+            LOGGER.error("Could not force the write-ahead log", ioe);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package manager;
+
+import common.logger.Constants;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ *   Bounded queue of dirty tuples that were evicted from the cache
+ *   A flusher thread writes the queued tuples to the storage in batches. Repeated writes
+ *   of the same key are coalesced while the key waits in the queue. A tuple stays visible
+ *   in the queue until it has reached the storage, so readers that check the queue before
+ *   the storage always see the latest value.
+ */
+public class WriteBehindQueue extends Thread {
+    // the maximum number of tuples written while holding the storage lock
+    private static final int BATCH_SIZE = 512;
+
+    private static final Logger LOGGER = LogManager.getLogger(Constants.SERVER_NAME);
+
+    private final Storage storage;
+    private final ReentrantReadWriteLock storage_lock;
+    private final Runnable on_write;
+    private final int capacity;
+
+    // guarded by this
+    private final LinkedHashMap<String,String> pending = new LinkedHashMap<String,String>();
+    private boolean closed = false;
+    private IOException failure = null;
+
+    // serializes the batches of the flusher thread and of flush()
+    private final Object batch_lock = new Object();
+
+    /**
+     *
+     * @param storage the storage the tuples are written to
+     * @param storage_lock the lock that protects the storage, the write lock is held for every batch
+     * @param capacity the maximum number of queued tuples, add() blocks if the queue is full
+     * @param on_write called after a batch was written, while the storage write lock is held
+     */
+    public WriteBehindQueue(Storage storage, ReentrantReadWriteLock storage_lock, int capacity, Runnable on_write) {
+        super("WriteBehindQueue");
+        setDaemon(true);
+        this.storage = storage;
+        this.storage_lock = storage_lock;
+        this.capacity = Math.max(capacity, 1);
+        this.on_write = on_write;
+    }
+
+    /**
+     * queues a tuple for writing, replaces a queued value of the same key
+     * waits while the queue is full
+     * @param key the key of the tuple
+     * @param value the value of the tuple, or "null" to delete
+     * @throws IOException if the queue is full and the storage cannot be written
+     */
+    public synchronized void add(String key, String value) throws IOException {
+        try {
+            while (pending.size() >= capacity && !pending.containsKey(key)) {
+                if (failure != null)
+                    throw failure;
+                wait();
+            }
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the write-behind queue");
+        }
+        pending.put(key, value);
+        notifyAll();
+    }
+
+    /**
+     *
+     * @param key the key to look for
+     * @return the queued value ("null" for a queued delete) or null if the key is not queued
+     */
+    public synchronized String get(String key) {
+        return pending.get(key);
+    }
+
+    /**
+     *
+     * @return the number of queued tuples
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * writes all queued tuples in the calling thread
+     * @throws IOException if the storage could not be written
+     */
+    public void flush() throws IOException {
+        while (writeBatch())
+            ;
+    }
+
+    /**
+     * writes all queued tuples and stops the flusher thread
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            join();
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * writes the oldest queued tuples to the storage
+     * the tuples are sorted by key, so that the index is updated in order
+     * @return false if the queue was empty
+     */
+    private boolean writeBatch() throws IOException {
+        synchronized (batch_lock) {
+            TreeMap<String,String> batch = new TreeMap<String,String>();
+            synchronized (this) {
+                Iterator<Map.Entry<String,String>> it = pending.entrySet().iterator();
+                while (it.hasNext() && batch.size() < BATCH_SIZE) {
+                    Map.Entry<String,String> e = it.next();
+                    batch.put(e.getKey(), e.getValue());
+                }
+            }
+            if (batch.isEmpty())
+                return false;
+
+            try {
+                storage_lock.writeLock().lock();
+                try {
+                    for (Map.Entry<String,String> e : batch.entrySet())
+                        storage.writeToDisk(e.getKey(), e.getValue());
+                }
+                finally {
+                    on_write.run();
+                    storage_lock.writeLock().unlock();
+                }
+            }
+            catch (IOException ioe) {
+                synchronized (this) {
+                    failure = ioe;
+                    notifyAll();
+                }
+                throw ioe;
+            }
+
+            // only remove the tuples that were not replaced in the meantime
+            synchronized (this) {
+                for (Map.Entry<String,String> e : batch.entrySet())
+                    pending.remove(e.getKey(), e.getValue());
+                failure = null;
+                notifyAll();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * the flusher thread
+     */
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (pending.isEmpty() && !closed)
+                        wait();
+                }
+                catch (InterruptedException ie) {
+                    closed = true;
+                }
+                if (closed && pending.isEmpty())
+                    return;
+            }
+
+            try {
+                writeBatch();
+            }
+            catch (IOException ioe) {
+                LOGGER.error("Could not write the evicted tuples to disk, retrying", ioe);
+                synchronized (this) {
+                    if (closed)
+                        return;
+                }
+                try {
+                    Thread.sleep(1000);
+                }
+                catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -4,7 +4,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
-@Suite.SuiteClasses({ ConnectionTest.class, InteractionTest.class, AdditionalTest.class, EcsInteractionTest.class, ReplicationTest.class, PerformanceTest.class, ExtensionTest.class})
+@Suite.SuiteClasses({ ConnectionTest.class, InteractionTest.class, AdditionalTest.class, EcsInteractionTest.class, ReplicationTest.class, PerformanceTest.class, ExtensionTest.class, StorageTest.class, CacheTest.class})
 public class AllTests {
 
 }
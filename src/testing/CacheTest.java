@@ -0,0 +1,453 @@
+package testing;
+
+import app_kvServer.KVServer;
+import cache.AdaptiveCache;
+import cache.Cache;
+import cache.CacheEntry;
+import cache.FIFOCache;
+import cache.LFUCache;
+import cache.LRUCache;
+import cache.SlabCache;
+import cache.StripedCache;
+import cache.TinyLFUCache;
+import common.messages.KVMessage.StatusType;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Tests the caches directly, without starting a server.
+ */
+public class CacheTest {
+
+    private static StripedCache stripedCache(int stripes, int size) {
+        Cache[] caches = new Cache[stripes];
+        for (int s = 0; s < stripes; s++) {
+            if (s%3 == 0)
+                caches[s] = new FIFOCache(size);
+            else if (s%3 == 1)
+                caches[s] = new LRUCache(size);
+            else
+                caches[s] = new LFUCache(size);
+        }
+        return new StripedCache(caches);
+    }
+
+    @Test
+    public void testStripedCache() {
+        StripedCache cache = stripedCache(8, 100);
+        for (int i = 0; i < 200; i++)
+            TestCase.assertEquals(StatusType.PUT_SUCCESS, cache.put("key"+i, "value"+i, false));
+        TestCase.assertEquals(200, cache.size());
+
+        // every key is in its own stripe only
+        for (int i = 0; i < 200; i++) {
+            String key = "key"+i;
+            TestCase.assertEquals("value"+i, cache.get(key));
+            for (int s = 0; s < cache.getStripeCount(); s++)
+                TestCase.assertEquals(s == cache.stripeOf(key), (boolean)cache.getStripe(s).containsKey(key));
+        }
+
+        // the iterator visits every entry of every stripe once
+        int count = 0;
+        CacheEntry entry = cache.iteratorStart();
+        while (entry != null) {
+            if (Integer.parseInt(entry.getKey().substring(3))%2 == 0)
+                entry.setDeleted();
+            count++;
+            entry = cache.iteratorNext();
+        }
+        TestCase.assertEquals(200, count);
+
+        // vacuum removes the deleted entries of all stripes
+        cache.vacuum();
+        TestCase.assertEquals(100, cache.size());
+        for (int i = 0; i < 200; i++) {
+            if (i%2 == 0)
+                TestCase.assertNull(cache.get("key"+i));
+            else
+                TestCase.assertEquals("value"+i, cache.get("key"+i));
+        }
+    }
+
+    @Test
+    public void testStripedCacheReplace() {
+        StripedCache cache = stripedCache(4, 2);
+        int inserted = 0;
+        String key = null;
+        for (int i = 0; inserted < 8 || key == null; i++) {
+            if (cache.put("key"+i, "value"+i, false) == StatusType.PUT_SUCCESS)
+                inserted++;
+            else
+                key = "key"+i;
+        }
+        TestCase.assertEquals(8, cache.size());
+
+        // a full stripe evicts its own victim
+        Cache stripe = cache.getStripe(cache.stripeOf(key));
+        CacheEntry victim = stripe.getFirst();
+        TestCase.assertSame(victim, cache.replace(key, "value", false));
+        TestCase.assertFalse(cache.containsKey(victim.getKey()));
+        TestCase.assertEquals("value", cache.get(key));
+        TestCase.assertEquals(8, cache.size());
+    }
+
+    /**
+     * reads a key through the cache like the cache manager does
+     * @return the entry that was replaced or null
+     */
+    private static CacheEntry load(Cache cache, String key) {
+        if (cache.get(key) != null)
+            return null;
+        if (cache.put(key, "value", false) != StatusType.PUT_ERROR)
+            return null;
+        CacheEntry victim = cache.getFirst();
+        TestCase.assertSame(victim, cache.replace(key, "value", false));
+        return victim;
+    }
+
+    @Test
+    public void testTinyLFUScanResistance() {
+        Cache cache = new TinyLFUCache(100);
+
+        // a hot set that fits into the cache
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 80; i++)
+                load(cache, "hot"+i);
+        }
+
+        // a scan of keys that are read once
+        for (int i = 0; i < 1000; i++) {
+            CacheEntry victim = load(cache, "scan"+i);
+            if (victim != null)
+                TestCase.assertFalse(cache.containsKey(victim.getKey()));
+            TestCase.assertTrue(cache.size() <= 100);
+        }
+
+        // the hot set survived the scan (an LRU cache would not hold any hot key anymore)
+        // the sketch may overestimate a few scanned keys, so not every hot key has to survive
+        int hits = 0;
+        for (int i = 0; i < 80; i++) {
+            if (cache.containsKey("hot"+i))
+                hits++;
+        }
+        TestCase.assertTrue(hits >= 72);
+    }
+
+    @Test
+    public void testTinyLFUIterator() {
+        Cache cache = new TinyLFUCache(50);
+        for (int i = 0; i < 200; i++)
+            load(cache, "key"+i);
+        TestCase.assertEquals(50, cache.size());
+
+        int count = 0;
+        CacheEntry entry = cache.iteratorStart();
+        while (entry != null) {
+            TestCase.assertTrue(cache.containsKey(entry.getKey()));
+            if (count%2 == 0)
+                entry.setDeleted();
+            count++;
+            entry = cache.iteratorNext();
+        }
+        TestCase.assertEquals(50, count);
+
+        cache.vacuum();
+        TestCase.assertEquals(25, cache.size());
+        entry = cache.iteratorStart();
+        while (entry != null) {
+            TestCase.assertFalse(entry.isDeleted());
+            entry = cache.iteratorNext();
+        }
+    }
+
+    @Test
+    public void testLFUCache() {
+        Cache cache = new LFUCache(3);
+        cache.put("a", "1", false);
+        cache.put("b", "2", false);
+        cache.put("c", "3", false);
+        cache.get("a");
+        cache.get("a");
+        cache.get("c");
+
+        // b is the least frequently used, then c
+        TestCase.assertEquals(StatusType.PUT_ERROR, cache.put("d", "4", false));
+        TestCase.assertEquals("b", cache.getFirst().getKey());
+        TestCase.assertEquals("b", cache.replace("d", "4", false).getKey());
+        cache.get("d");
+
+        // ties are broken by recency: c was used before d
+        TestCase.assertEquals("c", cache.getFirst().getKey());
+        TestCase.assertEquals("c", cache.replace("e", "5", false).getKey());
+        TestCase.assertEquals("e", cache.getFirst().getKey());
+        TestCase.assertEquals("1", cache.get("a"));
+        TestCase.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testLFUAging() {
+        Cache cache = new LFUCache(10);
+        for (int i = 0; i < 10; i++)
+            cache.put("key"+i, "value"+i, false);
+
+        // key0 was very popular in the past
+        for (int i = 0; i < 200; i++)
+            cache.get("key0");
+
+        // now the other keys are used, the frequencies are halved every 100 references
+        for (int round = 0; round < 60; round++) {
+            for (int i = 1; i < 10; i++)
+                cache.get("key"+i);
+        }
+        TestCase.assertEquals("key0", cache.getFirst().getKey());
+
+        // iterator and vacuum still see every entry
+        int count = 0;
+        CacheEntry entry = cache.iteratorStart();
+        while (entry != null) {
+            if (!entry.getKey().equals("key0"))
+                entry.setDeleted();
+            count++;
+            entry = cache.iteratorNext();
+        }
+        TestCase.assertEquals(10, count);
+        cache.vacuum();
+        TestCase.assertEquals(1, cache.size());
+        TestCase.assertEquals("value0", cache.get("key0"));
+        TestCase.assertEquals("key0", cache.getFirst().getKey());
+    }
+
+    /**
+     * inserts a tuple like the cache manager does and evicts until the budget is met
+     */
+    private static void putWeighted(Cache cache, String key, String value) {
+        if (cache.put(key, value, true) == StatusType.PUT_ERROR) {
+            CacheEntry victim = cache.getFirst();
+            TestCase.assertSame(victim, cache.replace(key, value, true));
+        }
+        while (cache.isOverweight()) {
+            CacheEntry victim = cache.getFirst();
+            TestCase.assertSame(victim, cache.evict());
+            TestCase.assertFalse(cache.containsKey(victim.getKey()));
+        }
+    }
+
+    private static void checkByteBudget(Cache cache) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            // values between 1 and 400 bytes
+            sb.setLength(0);
+            for (int j = 0; j <= (i*37)%400; j++)
+                sb.append('x');
+            putWeighted(cache, "key"+i, sb.toString());
+            TestCase.assertTrue(cache.weight() <= 2000);
+        }
+        TestCase.assertTrue(cache.weight() > 1000);
+
+        // the weight is the sum of keys and values
+        long weight = 0;
+        CacheEntry entry = cache.iteratorStart();
+        while (entry != null) {
+            weight += entry.getKey().getBytes(StandardCharsets.UTF_8).length + entry.getValue().getBytes(StandardCharsets.UTF_8).length;
+            entry = cache.iteratorNext();
+        }
+        TestCase.assertEquals(weight, cache.weight());
+
+        // an update that makes a value larger exceeds the budget
+        entry = cache.iteratorStart();
+        String key = entry.getKey();
+        cache.put(key, sb.toString()+sb.toString()+sb.toString()+sb.toString()+sb.toString()+sb.toString(), true);
+        TestCase.assertTrue(cache.isOverweight());
+        putWeighted(cache, key, cache.get(key));
+        TestCase.assertFalse(cache.isOverweight());
+
+        // vacuum updates the weight
+        entry = cache.iteratorStart();
+        while (entry != null) {
+            entry.setDeleted();
+            entry = cache.iteratorNext();
+        }
+        cache.vacuum();
+        TestCase.assertEquals(0, cache.size());
+        TestCase.assertEquals(0, cache.weight());
+    }
+
+    @Test
+    public void testByteBudget() {
+        checkByteBudget(new FIFOCache(Integer.MAX_VALUE, 2000));
+        checkByteBudget(new LRUCache(Integer.MAX_VALUE, 2000));
+        checkByteBudget(new LFUCache(Integer.MAX_VALUE, 2000));
+        checkByteBudget(new TinyLFUCache(Integer.MAX_VALUE, 2000));
+        checkByteBudget(new SlabCache(Integer.MAX_VALUE, 2000));
+
+        TestCase.assertEquals(64L*1000*1000, KVServer.parseByteBudget("64MB"));
+        TestCase.assertEquals(512L*1000, KVServer.parseByteBudget("512kb"));
+        TestCase.assertEquals(-1, KVServer.parseByteBudget("1000"));
+        TestCase.assertTrue(KVServer.validCacheSize("1000"));
+        TestCase.assertFalse(KVServer.validCacheSize("MB"));
+    }
+
+    @Test
+    public void testSlabCache() {
+        SlabCache cache = new SlabCache(3);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100*1000; i++)
+            sb.append((char)('a'+i%26));
+        String large = sb.toString();
+
+        TestCase.assertEquals(StatusType.PUT_SUCCESS, cache.put("a", "1", false));
+        TestCase.assertEquals(StatusType.PUT_SUCCESS, cache.put("b", large, true));
+        TestCase.assertEquals(StatusType.PUT_SUCCESS, cache.put("c", "\u00e4\u00f6\u00fc", false));
+        TestCase.assertEquals("1", cache.get("a"));
+        TestCase.assertEquals(large, cache.get("b"));
+        TestCase.assertEquals("\u00e4\u00f6\u00fc", cache.get("c"));
+        TestCase.assertEquals(3+100*1000+1+6, cache.weight());
+        // the weight counts the bytes of the key, like the ones of the value
+        SlabCache bytes = new SlabCache(1);
+        bytes.put("\u00e4", "\u00f6", false);
+        TestCase.assertEquals(2+2, bytes.weight());
+        // the heap caches count the same bytes
+        LRUCache chars = new LRUCache(1);
+        chars.put("\u00e4", "\u00f6\ud83d\ude00", false);
+        TestCase.assertEquals(2+2+4, chars.weight());
+
+        // an update moves the value into another chunk and marks the entry dirty
+        TestCase.assertEquals(StatusType.PUT_UPDATE, cache.put("a", large, false));
+        TestCase.assertEquals(large, cache.get("a"));
+        TestCase.assertEquals("b", cache.getFirst().getKey());
+
+        // the bytes of the value are handed out without a String or a copy
+        SlabCache.PinnedValue pinned = cache.getBytes("b");
+        ByteBuffer buffer = pinned.getBytes();
+        TestCase.assertTrue(buffer.isReadOnly());
+        TestCase.assertTrue(buffer.isDirect());
+        TestCase.assertEquals(100*1000, buffer.remaining());
+        SlabCache.PinnedValue c = cache.getBytes("c");
+        TestCase.assertEquals("\u00e4\u00f6\u00fc", StandardCharsets.UTF_8.decode(c.getBytes()).toString());
+        c.release();
+        TestCase.assertNull(cache.getBytes("d"));
+
+        // the freed chunk of a pinned value is not reused by the update before it is released
+        cache.put("b", large.toUpperCase(), true);
+        TestCase.assertEquals(large, StandardCharsets.UTF_8.decode(buffer).toString());
+        pinned.release();
+        cache.put("b", large, true);
+        TestCase.assertEquals(large, cache.get("b"));
+        cache.get("a");
+        cache.get("b");
+
+        // c is the least recently used, its value is kept after its chunk was freed
+        TestCase.assertEquals(StatusType.PUT_ERROR, cache.put("d", "4", false));
+        CacheEntry victim = cache.replace("d", "4", false);
+        TestCase.assertEquals("c", victim.getKey());
+        TestCase.assertEquals("\u00e4\u00f6\u00fc", victim.getValue());
+        TestCase.assertFalse(victim.isDirty());
+        TestCase.assertFalse(cache.containsKey("c"));
+
+        // the entry of a was updated, so it has to be written to disk
+        CacheEntry entry = cache.iteratorStart();
+        int count = 0;
+        while (entry != null) {
+            TestCase.assertEquals(!entry.getKey().equals("d"), (boolean)entry.isDirty());
+            if (!entry.getKey().equals("d"))
+                entry.setDeleted();
+            count++;
+            entry = cache.iteratorNext();
+        }
+        TestCase.assertEquals(3, count);
+        cache.vacuum();
+        TestCase.assertEquals(1, cache.size());
+        TestCase.assertEquals(2, cache.weight());
+        TestCase.assertEquals("4", cache.get("d"));
+
+        // freed chunks are reused, the slabs do not grow
+        long allocated = cache.getAllocatedBytes();
+        for (int i = 0; i < 100; i++) {
+            cache.put("b", large+i, true);
+            cache.put("e", large+i, true);
+        }
+        TestCase.assertEquals(allocated, cache.getAllocatedBytes());
+    }
+
+    @Test
+    public void testAdaptiveCache() {
+        AdaptiveCache cache = new AdaptiveCache(100);
+        TestCase.assertEquals("LRU", cache.getPolicy());
+
+        // a hot set that is used twice between long scans, LRU loses the hot set in every scan
+        int scanned = 0;
+        for (int round = 0; round < 40; round++) {
+            for (int i = 0; i < 100; i++)
+                load(cache, "hot"+(i%50));
+            for (int i = 0; i < 200; i++)
+                load(cache, "scan"+(scanned++));
+            TestCase.assertTrue(cache.size() <= 100);
+        }
+        TestCase.assertEquals("LFU", cache.getPolicy());
+        TestCase.assertEquals(1, cache.getSwitches());
+        TestCase.assertEquals(40*300, cache.getSimulatedRequests());
+        TestCase.assertTrue(cache.getSimulatedHits(1) > cache.getSimulatedHits(0));
+        TestCase.assertTrue(cache.getSimulatedHits(1) > cache.getSimulatedHits(2));
+
+        // the tuples were kept when the strategy changed
+        int count = 0;
+        CacheEntry entry = cache.iteratorStart();
+        while (entry != null) {
+            TestCase.assertEquals("value", entry.getValue());
+            TestCase.assertTrue(cache.containsKey(entry.getKey()));
+            count++;
+            entry = cache.iteratorNext();
+        }
+        TestCase.assertEquals(cache.size(), count);
+        TestCase.assertEquals(100, count);
+        int hits = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.containsKey("hot"+i))
+                hits++;
+        }
+        TestCase.assertTrue(hits >= 45);
+    }
+
+    private static void checkSnapshot(Cache cache) {
+        for (int i = 0; i < 10; i++)
+            cache.put("key"+i, "value"+i, i%3 == 0);
+        CacheEntry deleted = cache.iteratorStart();
+        while (!deleted.getKey().equals("key4"))
+            deleted = cache.iteratorNext();
+        deleted.setDeleted();
+
+        Iterator<CacheEntry> snapshot = cache.snapshot(key -> Integer.parseInt(key.substring(3))%2 == 0);
+
+        // the snapshot does not see later changes of the cache
+        cache.put("key2", "updated", true);
+        cache.put("key10", "value10", false);
+        cache.vacuum();
+        while (cache.size() > 0)
+            cache.evict();
+
+        int count = 0;
+        while (snapshot.hasNext()) {
+            CacheEntry entry = snapshot.next();
+            int i = Integer.parseInt(entry.getKey().substring(3));
+            TestCase.assertEquals(0, i%2);
+            TestCase.assertEquals("value"+i, entry.getValue());
+            TestCase.assertEquals(i%3 == 0, (boolean)entry.isDirty());
+            count++;
+        }
+        // key4 was flagged as deleted
+        TestCase.assertEquals(4, count);
+    }
+
+    @Test
+    public void testSnapshot() {
+        checkSnapshot(new FIFOCache(10));
+        checkSnapshot(new LRUCache(10));
+        checkSnapshot(new LFUCache(10));
+        checkSnapshot(new TinyLFUCache(10));
+        checkSnapshot(new SlabCache(10));
+        checkSnapshot(new AdaptiveCache(10));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package testing;
+
+import common.messages.KVMessage.StatusType;
+import common.messages.Message;
+import common.messages.MessageView;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ *
+ * @author kajo
+ */
+public class MessageTest {
+
+    /**
+     * reads the bytes with Message and MessageView and compares the results
+     */
+    private static void assertSameMessage(byte[] bytes) {
+        Message message = new Message(bytes);
+        MessageView view = new MessageView(ByteBuffer.wrap(bytes));
+        TestCase.assertEquals(message.getValid(), view.getValid());
+        TestCase.assertEquals(message.getStatus(), view.getStatus());
+        if (message.getValid() && bytes.length > 1) {
+            TestCase.assertEquals(message.getKey(), view.getKey());
+            TestCase.assertEquals(message.getKey(), view.getKeyChars().toString());
+        }
+    }
+
+    @Test
+    public void testValidation() {
+        byte[] put = new Message(StatusType.PUT, "key".getBytes(), "value".getBytes()).getByteMessage();
+        assertSameMessage(put);
+        assertSameMessage(new Message(StatusType.GET, "key".getBytes()).getByteMessage());
+        assertSameMessage(new Message(StatusType.AUTH_SUCCESS).getByteMessage());
+
+        // a wrong payload length, a key that is too long and an unknown status
+        byte[] invalid = put.clone();
+        invalid[6] = 9;
+        assertSameMessage(invalid);
+        invalid = new Message(StatusType.GET, "k".getBytes()).getByteMessage();
+        invalid[1] = 21;
+        TestCase.assertFalse(new MessageView(ByteBuffer.wrap(invalid)).getValid());
+        invalid = put.clone();
+        invalid[0] = 13;
+        assertSameMessage(invalid);
+        TestCase.assertFalse(new MessageView(ByteBuffer.allocate(0)).getValid());
+    }
+
+    @Test
+    public void testSlices() {
+        byte[] bytes = new Message(StatusType.PUT, "key".getBytes(), "value".getBytes()).getByteMessage();
+        // the view reads the message in the middle of a larger buffer
+        ByteBuffer buf = ByteBuffer.allocate(bytes.length + 10);
+        buf.position(5);
+        buf.put(bytes);
+        buf.flip();
+        buf.position(5);
+        buf.limit(5 + bytes.length);
+
+        MessageView view = new MessageView().wrap(buf);
+        TestCase.assertTrue(view.getValid());
+        TestCase.assertEquals("value", view.getValue());
+        TestCase.assertEquals(5, view.getValueSlice().remaining());
+        TestCase.assertEquals(5, buf.position());
+
+        // the slices share the bytes of the buffer
+        CharSequence key = view.getKeyChars();
+        buf.put(5 + 2, (byte) 'K');
+        TestCase.assertEquals("Key", key.toString());
+        TestCase.assertEquals('y', key.charAt(2));
+        TestCase.assertEquals("ey", key.subSequence(1, 3).toString());
+
+        Exception ex = null;
+        try {
+            view.getValueSlice().put((byte) 'x');
+        } catch (ReadOnlyBufferException ro) {
+            ex = ro;
+        }
+        TestCase.assertNotNull(ex);
+
+        // a copy stays valid when the view is reused
+        Message copy = view.toMessage();
+        view.wrap(ByteBuffer.wrap(new Message(StatusType.DELETE, "other".getBytes()).getByteMessage()));
+        TestCase.assertEquals("Key", copy.getKey());
+        TestCase.assertEquals(StatusType.DELETE, view.getStatus());
+        TestCase.assertEquals("other", view.getKey());
+        TestCase.assertEquals(0, view.getValueSlice().remaining());
+    }
+
+    @Test
+    public void testEncoder() {
+        byte[] key = "key".getBytes();
+        byte[] value = "value".getBytes();
+        ByteBuffer target = ByteBuffer.allocate(64);
+        Message.encode(target, StatusType.PUT_SUCCESS, ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+        Message.encode(target, StatusType.DELETE_SUCCESS, ByteBuffer.wrap(key));
+        Message.encode(target, StatusType.SUB_SUCCESS);
+        target.flip();
+
+        byte[] put = new Message(StatusType.PUT_SUCCESS, key, value).getByteMessage();
+        byte[] delete = new Message(StatusType.DELETE_SUCCESS, key).getByteMessage();
+        byte[] expected = Arrays.copyOf(put, put.length + delete.length + 1);
+        System.arraycopy(delete, 0, expected, put.length, delete.length);
+        expected[expected.length - 1] = new Message(StatusType.SUB_SUCCESS).getByteMessage()[0];
+        TestCase.assertTrue(Arrays.equals(expected, Arrays.copyOf(target.array(), target.limit())));
+
+        // the encoded message is read back without copying it
+        ByteBuffer encoded = target.duplicate();
+        encoded.limit(put.length);
+        MessageView view = new MessageView(encoded);
+        TestCase.assertTrue(view.getValid());
+        TestCase.assertEquals("value", view.getValueChars().toString());
+
+        Exception ex = null;
+        try {
+            Message.encode(ByteBuffer.allocate(4), StatusType.PUT, ByteBuffer.wrap(key), ByteBuffer.wrap(value));
+        } catch (BufferOverflowException bo) {
+            ex = bo;
+        }
+        TestCase.assertNotNull(ex);
+    }
+}
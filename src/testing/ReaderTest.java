@@ -5,8 +5,21 @@
  */
 package testing;
 
+import common.messages.AdminMessage;
+import common.messages.KVAdminMessage.AdminType;
+import common.messages.KVMessage.StatusType;
+import common.messages.Message;
+import common.reader.BufferPool;
+import common.reader.FrameDecoder;
 import common.reader.UniversalReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 import junit.framework.TestCase;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -17,23 +30,123 @@ import org.junit.Test;
  */
 public class ReaderTest {
     private static UniversalReader ur;
-    
+
     @BeforeClass
     public static void createReader() {
         ur = new UniversalReader();
     }
-    
-    
+
+    /**
+     * delivers at most one byte per read(), like a slow connection
+     */
+    private static class TrickleStream extends InputStream {
+        private final InputStream in;
+
+        public TrickleStream(byte[] bytes) {
+            in = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static byte[] concat(byte[]... messages) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] m : messages)
+            out.write(m);
+        return out.toByteArray();
+    }
+
+    /**
+     * decodes the messages with the FrameDecoder and the UniversalReader and compares them
+     */
+    private static void assertSameFrames(byte[] stream, int count) throws IOException {
+        InputStream expected = new ByteArrayInputStream(stream);
+        InputStream in = new TrickleStream(stream);
+        FrameDecoder decoder = new FrameDecoder();
+        for (int i = 0; i < count; i++) {
+            byte[] frame = FrameDecoder.toArray(decoder.readFrame(in));
+            TestCase.assertTrue(Arrays.equals(ur.readMessage(expected), frame));
+        }
+    }
+
+    @Test
+    public void testAdminMessage() throws IOException {
+        byte[] ping = new AdminMessage(AdminType.PING).getByteMessage();
+        byte[] meta = new AdminMessage(AdminType.META_DATA, "127.0.0.1:50000".getBytes()).getByteMessage();
+        assertSameFrames(concat(ping, meta, ping), 3);
+
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer frame = decoder.readFrame(new ByteArrayInputStream(concat(ping, meta)));
+        TestCase.assertEquals(1, frame.remaining());
+        TestCase.assertEquals(28, frame.get(0));
+        frame = decoder.next();
+        TestCase.assertEquals(meta.length, frame.remaining());
+        TestCase.assertNull(decoder.next());
+    }
+
     @Test
-    public void testAdminMessage() {
-        byte ping = (byte) 28;
-        // should test the reader
-        
+    public void testKVMessage() throws IOException {
+        byte[] put = new Message(StatusType.PUT, "key".getBytes(), "value".getBytes()).getByteMessage();
+        byte[] get = new Message(StatusType.GET, "key".getBytes()).getByteMessage();
+        byte[] success = new Message(StatusType.AUTH_SUCCESS).getByteMessage();
+        assertSameFrames(concat(get, put, success, get), 4);
+
+        // the carriage return after a reply is read on its own
+        FrameDecoder decoder = new FrameDecoder();
+        InputStream in = new ByteArrayInputStream(concat(put, new byte[] { 13 }, get));
+        Message reply = new Message(FrameDecoder.toArray(decoder.readFrame(in)));
+        TestCase.assertEquals(StatusType.PUT, reply.getStatus());
+        TestCase.assertEquals("value", reply.getValue());
+        TestCase.assertEquals(13, decoder.read(in));
+        TestCase.assertEquals(StatusType.GET, new Message(FrameDecoder.toArray(decoder.readFrame(in))).getStatus());
+        TestCase.assertEquals(-1, decoder.read(in));
     }
-    
-    
+
     @Test
-    public void testKVMessage() {
-        
+    public void testLargeMessage() throws IOException {
+        BufferPool pool = new BufferPool(FrameDecoder.MAX_FRAME_LENGTH, 4);
+        byte[] value = new byte[100*1000];
+        Arrays.fill(value, (byte) 'v');
+        byte[] put = new Message(StatusType.PUT, "large".getBytes(), value).getByteMessage();
+        byte[] get = new Message(StatusType.GET, "large".getBytes()).getByteMessage();
+
+        // the large message is received in a buffer of the pool
+        ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(concat(get, put, get)));
+        FrameDecoder decoder = new FrameDecoder(pool);
+        int frames = 0;
+        while (decoder.fill(channel) >= 0) {
+            ByteBuffer frame;
+            while ((frame = decoder.next()) != null) {
+                if (frames == 1)
+                    TestCase.assertTrue(Arrays.equals(put, FrameDecoder.toArray(frame)));
+                frames++;
+            }
+        }
+        TestCase.assertEquals(3, frames);
+
+        // the buffer is returned once all bytes are consumed
+        decoder.release();
+        TestCase.assertEquals(1, pool.getPooled());
+        decoder.readFrame(new ByteArrayInputStream(put));
+        TestCase.assertEquals(0, pool.getPooled());
+
+        // a negative length cannot be decoded
+        byte[] invalid = concat(get);
+        invalid[1] = -1;
+        Exception ex = null;
+        try {
+            new FrameDecoder(pool).readFrame(new ByteArrayInputStream(invalid));
+        } catch (RuntimeException re) {
+            ex = re;
+        }
+        TestCase.assertNotNull(ex);
     }
 }
@@ -0,0 +1,546 @@
+package testing;
+
+import common.hashing.Range;
+import common.messages.KVMessage.StatusType;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import junit.framework.TestCase;
+import manager.CacheManager;
+import manager.FileRegion;
+import manager.LogStorageManager;
+import manager.PartitionedStorage;
+import manager.Storage;
+import manager.StorageManager;
+import manager.StorageOptions;
+import manager.WriteAheadLog;
+import manager.WriteBehindQueue;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+/**
+ * Tests the storage engines directly, without starting a server.
+ */
+public class StorageTest {
+    private static final int HEAP_PORT = 61001;
+    private static final int LOG_PORT = 61002;
+
+    /**
+     * inserts, updates and deletes tuples and checks that the storage returns the latest values
+     * @param storage the storage engine under test
+     */
+    private void checkReadYourWrites(Storage storage) throws Exception {
+        storage.initClearedStorage();
+
+        for (int i = 0; i < 200; i++)
+            storage.writeToDisk("key"+i, "value"+i);
+
+        // updates with smaller and larger values
+        for (int i = 0; i < 200; i += 3)
+            storage.writeToDisk("key"+i, "v"+i);
+        for (int i = 1; i < 200; i += 3)
+            storage.writeToDisk("key"+i, "a much longer value than before "+i);
+
+        // deletes
+        for (int i = 2; i < 200; i += 3)
+            storage.writeToDisk("key"+i, "null");
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 200; i++) {
+                String value = storage.getFromDisk("key"+i);
+                if (i%3 == 0)
+                    TestCase.assertEquals("v"+i, value);
+                else if (i%3 == 1)
+                    TestCase.assertEquals("a much longer value than before "+i, value);
+                else
+                    TestCase.assertNull(value);
+            }
+            TestCase.assertNull(storage.getFromDisk("missing"));
+
+            // the same must hold after the deleted tuples were removed physically
+            storage.vacuum();
+        }
+    }
+
+    @Test
+    public void testHeapStorage() throws Exception {
+        checkReadYourWrites(new StorageManager(HEAP_PORT));
+    }
+
+    @Test
+    public void testLogStorage() throws Exception {
+        checkReadYourWrites(new LogStorageManager(LOG_PORT));
+    }
+
+    /**
+     * compacts in small steps while tuples are updated and deleted between the steps
+     * @param storage the storage engine under test
+     */
+    private void checkCompaction(Storage storage) throws Exception {
+        storage.initClearedStorage();
+        for (int i = 0; i < 1000; i++)
+            storage.writeToDisk("key"+i, "value"+i);
+        for (int i = 0; i < 1000; i += 2)
+            storage.writeToDisk("key"+i, "null");
+        long size = storage.getStorageSize();
+
+        int step = 0;
+        while (!storage.compact(2000)) {
+            // modify tuples before and behind the compaction position
+            int i = (step*7)%1000;
+            storage.writeToDisk("key"+i, "updated"+i);
+            storage.writeToDisk("key"+(999-i), "null");
+            TestCase.assertEquals("updated"+i, storage.getFromDisk("key"+i));
+            step++;
+        }
+        TestCase.assertTrue(step > 1);
+        TestCase.assertTrue(storage.getStorageSize() < size);
+
+        for (int i = 0; i < 1000; i++) {
+            String value = storage.getFromDisk("key"+i);
+            boolean updated = false;
+            boolean deleted = i%2 == 0;
+            for (int s = 0; s < step; s++) {
+                if ((s*7)%1000 == i) {
+                    updated = true;
+                    deleted = false;
+                }
+                else if (999-(s*7)%1000 == i) {
+                    updated = false;
+                    deleted = true;
+                }
+            }
+            if (deleted)
+                TestCase.assertNull(value);
+            else if (updated)
+                TestCase.assertEquals("updated"+i, value);
+            else
+                TestCase.assertEquals("value"+i, value);
+        }
+        TestCase.assertTrue(storage.compact(Long.MAX_VALUE));
+        storage.close();
+    }
+
+    @Test
+    public void testHeapCompaction() throws Exception {
+        checkCompaction(new StorageManager(HEAP_PORT));
+    }
+
+    @Test
+    public void testLogCompaction() throws Exception {
+        checkCompaction(new LogStorageManager(LOG_PORT));
+    }
+
+    /**
+     * lookups of absent keys must be answered correctly, mostly by the Bloom filter
+     */
+    @Test
+    public void testHeapBloomFilter() throws Exception {
+        Storage storage = new StorageManager(HEAP_PORT);
+        storage.initClearedStorage();
+        for (int i = 0; i < 3000; i++)
+            storage.writeToDisk("key"+i, "value"+i);
+
+        for (int i = 0; i < 3000; i++) {
+            TestCase.assertEquals("value"+i, storage.getFromDisk("key"+i));
+            TestCase.assertNull(storage.getFromDisk("absent"+i));
+        }
+        TestCase.assertTrue(storage.getFalsePositiveRate() < 0.05);
+
+        // the filter still holds deleted keys until it is rebuilt
+        for (int i = 0; i < 3000; i++)
+            storage.writeToDisk("key"+i, "null");
+        for (int i = 0; i < 3000; i++)
+            TestCase.assertNull(storage.getFromDisk("key"+i));
+        TestCase.assertTrue(storage.getFalsePositiveRate() > 0.5);
+
+        storage.vacuum();
+        TestCase.assertEquals(0.0, storage.getFalsePositiveRate());
+        for (int i = 0; i < 3000; i++)
+            TestCase.assertNull(storage.getFromDisk("key"+i));
+        TestCase.assertTrue(storage.getFalsePositiveRate() < 0.05);
+        storage.close();
+    }
+
+    @Test
+    public void testPartitionedStorage() throws Exception {
+        checkReadYourWrites(new PartitionedStorage(HEAP_PORT, "HEAP", 16));
+        checkCompaction(new PartitionedStorage(LOG_PORT, "LOG", 4));
+    }
+
+    /**
+     * deleting a range has to remove exactly the keys within the range,
+     * whether their bucket lies completely within the range or only partially
+     */
+    @Test
+    public void testPartitionedDeleteRange() throws Exception {
+        BigInteger quarter = BigInteger.ONE.shiftLeft(126);
+        Range[] ranges = {
+            new Range(BigInteger.ZERO, quarter.multiply(BigInteger.valueOf(2)).subtract(BigInteger.ONE)),
+            new Range(quarter.add(BigInteger.valueOf(12345)), quarter.negate().add(BigInteger.valueOf(777)))
+        };
+        for (Range range : ranges) {
+            Storage storage = new PartitionedStorage(HEAP_PORT, "HEAP", 8);
+            storage.initClearedStorage();
+            for (int i = 0; i < 500; i++)
+                storage.writeToDisk("key"+i, "value"+i);
+
+            storage.deleteData(range);
+            for (int i = 0; i < 500; i++) {
+                if (range.withinRange("key"+i))
+                    TestCase.assertNull(storage.getFromDisk("key"+i));
+                else
+                    TestCase.assertEquals("value"+i, storage.getFromDisk("key"+i));
+            }
+            while (!storage.compact(1000));
+            for (int i = 0; i < 500; i++)
+                TestCase.assertEquals(range.withinRange("key"+i), storage.getFromDisk("key"+i) == null);
+            storage.close();
+        }
+    }
+
+    /**
+     * pinning a range has to return exactly the live keys within the range with their values,
+     * for the heap files, the log segments and the buckets that lie completely within the range
+     */
+    @Test
+    public void testGetRegions() throws Exception {
+        BigInteger quarter = BigInteger.ONE.shiftLeft(126);
+        Range range = new Range(quarter.add(BigInteger.valueOf(12345)), quarter.negate().add(BigInteger.valueOf(777)));
+        Storage[] engines = {
+            new StorageManager(HEAP_PORT), new LogStorageManager(LOG_PORT), new PartitionedStorage(HEAP_PORT, "HEAP", 8)
+        };
+        for (Storage storage : engines) {
+            storage.initClearedStorage();
+            for (int i = 0; i < 300; i++)
+                storage.writeToDisk("key"+i, "value"+i);
+            for (int i = 0; i < 300; i += 7)
+                storage.writeToDisk("key"+i, "null");
+
+            for (Range r : new Range[] { range, null }) {
+                Map<String,FileRegion> regions = storage.getRegions(r);
+                for (int i = 0; i < 300; i++) {
+                    FileRegion region = regions.get("key"+i);
+                    if (i%7 == 0 || (r != null && !r.withinRange("key"+i)))
+                        TestCase.assertNull(region);
+                    else
+                        TestCase.assertEquals("value"+i, region.read());
+                }
+                for (FileRegion region : regions.values())
+                    region.release();
+            }
+            storage.close();
+        }
+    }
+
+    /**
+     * a value transferred from its region has to arrive unchanged,
+     * even if the tuple is updated and the storage is compacted while the region is pinned
+     * @param storage the storage engine under test
+     */
+    private void checkRegionTransfer(Storage storage) throws Exception {
+        storage.initClearedStorage();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 100000; i++)
+            sb.append(i).append(',');
+        String large = sb.toString();
+        storage.writeToDisk("small", "x");
+        storage.writeToDisk("large", large);
+
+        TestCase.assertNull(storage.getRegion("missing"));
+        FileRegion region = storage.getRegion("large");
+        TestCase.assertEquals(large.length(), region.size());
+        String updated = large.replace(',', ';');
+        storage.writeToDisk("large", updated);
+        while (!storage.compact(1000));
+
+        File target = new File(Paths.get("").toAbsolutePath().toString()+"/transfer"+HEAP_PORT+".txt");
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        file.setLength(0);
+        region.transferTo(file.getChannel());
+        region.release();
+        byte[] transferred = new byte[(int)file.length()];
+        file.seek(0);
+        file.readFully(transferred);
+        file.close();
+        TestCase.assertEquals(large, new String(transferred));
+        TestCase.assertEquals(updated, storage.getFromDisk("large"));
+        storage.close();
+    }
+
+    @Test
+    public void testRegionTransfer() throws Exception {
+        checkRegionTransfer(new StorageManager(HEAP_PORT));
+        checkRegionTransfer(new LogStorageManager(LOG_PORT));
+    }
+
+    /**
+     * inserts enough keys in descending order to grow the index mapping several times
+     * the index of a storage that was not closed properly must be readable as well
+     */
+    @Test
+    public void testHeapIndexGrowth() throws Exception {
+        Storage storage = new StorageManager(HEAP_PORT);
+        storage.initClearedStorage();
+        for (int i = 5000; i > 0; i--)
+            storage.writeToDisk(Integer.toString(i), "v"+i);
+        storage.writeToDisk("2500", "null");
+
+        Storage reopened = new StorageManager(HEAP_PORT);
+        reopened.initStorage();
+        for (int i = 1; i <= 5000; i++) {
+            if (i == 2500)
+                TestCase.assertNull(reopened.getFromDisk(Integer.toString(i)));
+            else
+                TestCase.assertEquals("v"+i, reopened.getFromDisk(Integer.toString(i)));
+        }
+        TestCase.assertNull(reopened.getFromDisk("0"));
+        TestCase.assertNull(reopened.getFromDisk("9999"));
+        storage.close();
+        reopened.close();
+    }
+
+    /**
+     * recovery has to accept a consistent index and rebuild a damaged one
+     */
+    @Test
+    public void testHeapRecovery() throws Exception {
+        Storage storage = new StorageManager(HEAP_PORT);
+        storage.initClearedStorage();
+        for (int i = 0; i < 300; i++)
+            storage.writeToDisk("key"+i, "value"+i);
+        for (int i = 0; i < 300; i += 2)
+            storage.writeToDisk("key"+i, "null");
+        storage.close();
+
+        Storage recovered = new StorageManager(HEAP_PORT);
+        TestCase.assertEquals(150, recovered.recover());
+        recovered.close();
+
+        // lose the index completely
+        new File(Paths.get("").toAbsolutePath().toString()+"/index"+HEAP_PORT+".txt").delete();
+        recovered = new StorageManager(HEAP_PORT);
+        TestCase.assertEquals(150, recovered.recover());
+        for (int i = 0; i < 300; i++) {
+            if (i%2 == 0)
+                TestCase.assertNull(recovered.getFromDisk("key"+i));
+            else
+                TestCase.assertEquals("value"+i, recovered.getFromDisk("key"+i));
+        }
+        recovered.close();
+    }
+
+    /**
+     * the key directory of the log storage must be rebuilt from the segments
+     */
+    @Test
+    public void testLogStorageReopen() throws Exception {
+        Storage storage = new LogStorageManager(LOG_PORT);
+        storage.initClearedStorage();
+        storage.writeToDisk("a", "1");
+        storage.writeToDisk("b", "2");
+        storage.writeToDisk("a", "3");
+        storage.writeToDisk("b", "null");
+
+        Storage reopened = new LogStorageManager(LOG_PORT);
+        reopened.initStorage();
+        TestCase.assertEquals("3", reopened.getFromDisk("a"));
+        TestCase.assertNull(reopened.getFromDisk("b"));
+    }
+
+    /**
+     * records that were acknowledged by the log must be replayed into an empty storage
+     */
+    @Test
+    public void testWriteAheadLogReplay() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(HEAP_PORT, WriteAheadLog.SYNC_ALWAYS, 100);
+        wal.truncate();
+        wal.start();
+        long lsn = 0;
+        for (int i = 0; i < 100; i++)
+            lsn = wal.append("key"+i, "value"+i);
+        for (int i = 0; i < 100; i += 2)
+            lsn = wal.append("key"+i, "null");
+        TestCase.assertTrue(wal.awaitDurable(lsn));
+        wal.close();
+
+        Storage storage = new StorageManager(HEAP_PORT);
+        storage.initClearedStorage();
+        WriteAheadLog reopened = new WriteAheadLog(HEAP_PORT, WriteAheadLog.SYNC_ALWAYS, 100);
+        TestCase.assertEquals(150, reopened.replay(storage));
+        for (int i = 0; i < 100; i++) {
+            if (i%2 == 0)
+                TestCase.assertNull(storage.getFromDisk("key"+i));
+            else
+                TestCase.assertEquals("value"+i, storage.getFromDisk("key"+i));
+        }
+        reopened.truncate();
+        reopened.close();
+        storage.close();
+    }
+
+    @Test
+    public void testWriteBehindQueue() throws Exception {
+        Storage storage = new StorageManager(HEAP_PORT);
+        storage.initClearedStorage();
+        WriteBehindQueue queue = new WriteBehindQueue(storage, new ReentrantReadWriteLock(), 1000, () -> {});
+
+        // the flusher is not started, so the tuples stay queued and are coalesced per key
+        for (int i = 0; i < 100; i++)
+            queue.add("key"+i, "value"+i);
+        for (int i = 0; i < 100; i += 2)
+            queue.add("key"+i, "null");
+        TestCase.assertEquals(100, queue.size());
+        TestCase.assertEquals("null", queue.get("key0"));
+        TestCase.assertEquals("value1", queue.get("key1"));
+        TestCase.assertNull(storage.getFromDisk("key1"));
+
+        queue.flush();
+        TestCase.assertEquals(0, queue.size());
+        TestCase.assertNull(queue.get("key1"));
+        for (int i = 0; i < 100; i++) {
+            if (i%2 == 0)
+                TestCase.assertNull(storage.getFromDisk("key"+i));
+            else
+                TestCase.assertEquals("value"+i, storage.getFromDisk("key"+i));
+        }
+        storage.close();
+    }
+
+    @Test
+    public void testConcurrentMisses() throws Exception {
+        StorageOptions options = new StorageOptions();
+        options.setStorageBuckets(1);
+        CacheManager manager = new CacheManager(64, "LRU", HEAP_PORT, options);
+        for (int i = 0; i < 1000; i++)
+            manager.put("key"+i, "value"+i);
+
+        // many threads miss on the same few keys at once
+        Thread[] threads = new Thread[16];
+        String[] errors = new String[threads.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    String key = "key"+(i%10);
+                    String value = manager.get(key);
+                    if (!("value"+(i%10)).equals(value))
+                        errors[thread] = key+" -> "+value;
+                    manager.get("key"+(100+(i*7+thread)%900));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (String error : errors)
+            TestCase.assertNull(error);
+        manager.shutDown();
+    }
+
+    @Test
+    public void testNegativeCache() throws Exception {
+        StorageOptions options = new StorageOptions();
+        options.setStorageBuckets(1);
+        options.setNegativeCacheSize(16);
+        // nothing is evicted, so that no background flush of the write-behind queue
+        // modifies the storage while an absent key is looked up
+        options.setCacheStripes(1);
+        CacheManager manager = new CacheManager(64, "LRU", HEAP_PORT, options);
+        for (int i = 0; i < 50; i++)
+            manager.put("key"+i, "value"+i);
+
+        // the second lookup of an absent key does not read the disk
+        TestCase.assertNull(manager.get("absent0"));
+        TestCase.assertEquals(1, manager.getNegativeMisses());
+        TestCase.assertNull(manager.get("absent0"));
+        TestCase.assertEquals(1, manager.getNegativeHits());
+        TestCase.assertEquals(0, manager.getCacheHits());
+        TestCase.assertEquals(2, manager.getCacheMisses());
+
+        // a put makes the key visible again and is reported as an insert
+        TestCase.assertEquals(StatusType.PUT_SUCCESS, manager.put("absent0", "value"));
+        TestCase.assertEquals("value", manager.get("absent0"));
+        TestCase.assertEquals(1, manager.getCacheHits());
+
+        // a delete is served from the cache
+        TestCase.assertEquals(StatusType.DELETE_SUCCESS, manager.put("absent0", "null"));
+        TestCase.assertNull(manager.get("absent0"));
+
+        // deleting data forgets the absent keys
+        TestCase.assertNull(manager.get("absent1"));
+        TestCase.assertNull(manager.get("absent1"));
+        long negative_misses = manager.getNegativeMisses();
+        manager.deleteData(new Range(BigInteger.ZERO, BigInteger.ONE));
+        TestCase.assertNull(manager.get("absent1"));
+        TestCase.assertEquals(negative_misses+1, manager.getNegativeMisses());
+        TestCase.assertEquals("value49", manager.get("key49"));
+        manager.shutDown();
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        StorageOptions options = new StorageOptions();
+        options.setStorageBuckets(1);
+        options.setWalPolicy("OS");
+        CacheManager manager = new CacheManager(64, "LRU", HEAP_PORT, options);
+        for (int i = 0; i < 200; i++)
+            manager.put("key"+i, "value"+i);
+        for (int i = 150; i < 160; i++)
+            manager.get("key"+i);
+        manager.shutDown();
+
+        // the restarted server loads the keys that were in the cache, the most recently used last
+        options.setRecover(true);
+        CacheManager restarted = new CacheManager(32, "LRU", HEAP_PORT, options);
+        restarted.awaitWarmUp();
+        TestCase.assertEquals(64, restarted.getWarmedKeys());
+        TestCase.assertEquals(32, restarted.size());
+        for (int i = 150; i < 160; i++)
+            TestCase.assertEquals("value"+i, restarted.get("key"+i));
+        TestCase.assertEquals(10, restarted.getCacheHits());
+        TestCase.assertEquals("value100", restarted.get("key100"));
+        TestCase.assertEquals(1, restarted.getCacheMisses());
+        restarted.shutDown();
+    }
+
+    @Test
+    public void testResizeCache() throws Exception {
+        StorageOptions options = new StorageOptions();
+        options.setStorageBuckets(1);
+        options.setCacheStripes(1);
+        CacheManager manager = new CacheManager(256, "LFU", HEAP_PORT, options);
+        for (int i = 0; i < 256; i++)
+            manager.put("key"+i, "value"+i);
+        TestCase.assertEquals(256, manager.size());
+
+        // shrinking evicts the dirty tuples to the storage
+        manager.resizeCache(25);
+        TestCase.assertEquals(25, manager.getCapacityPercent());
+        TestCase.assertEquals(64, manager.size());
+        for (int i = 0; i < 256; i++)
+            TestCase.assertEquals("value"+i, manager.get("key"+i));
+        TestCase.assertEquals(64, manager.size());
+
+        // the cache fills up again after it grew
+        manager.resizeCache(100);
+        for (int i = 0; i < 256; i++)
+            manager.get("key"+i);
+        TestCase.assertEquals(256, manager.size());
+        TestCase.assertEquals(2, manager.getCacheResizes());
+        manager.shutDown();
+    }
+
+    @AfterClass
+    public static void removeFiles() {
+        File dir = Paths.get("").toAbsolutePath().toFile();
+        for (File f : dir.listFiles()) {
+            String name = f.getName();
+            if (name.contains(Integer.toString(HEAP_PORT)) || name.contains(Integer.toString(LOG_PORT)))
+                f.delete();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package testing;
+
+import app_kvServer.ResponseWriter;
+import common.messages.KVMessage.StatusType;
+import common.messages.Message;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+/**
+ * Compares the number of writes, i.e. system calls on a socket, of the per-byte output
+ * loops with the ones of the ResponseWriter.
+ * @author kajo
+ */
+public class WriterBenchmark {
+    private static final int REPLIES = 1000;
+
+    /**
+     * counts the writes and accepts at most limit bytes per write, like the send buffer of a socket
+     */
+    private static class CountingChannel implements GatheringByteChannel {
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private final int limit;
+        private int writes = 0;
+
+        public CountingChannel(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long written = 0;
+            for (int i = offset; i < offset + length && written < limit; i++) {
+                int n = (int) Math.min(srcs[i].remaining(), limit - written);
+                byte[] bytes = new byte[n];
+                srcs[i].get(bytes);
+                received.write(bytes, 0, n);
+                written += n;
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * the way the replies were sent before: every byte is written on its own
+     */
+    private static void sendPerByte(byte[] byteMessage, OutputStream out) throws IOException {
+        for (byte b : byteMessage) {
+            out.write(b);
+        }
+        out.write((byte) 13);
+        out.flush();
+    }
+
+    private static byte[] value(int length) {
+        byte[] value = new byte[length];
+        Arrays.fill(value, (byte) 'v');
+        return value;
+    }
+
+    @Test
+    public void testSmallReplies() throws IOException {
+        byte[] key = "key".getBytes();
+        byte[] value = value(100);
+
+        CountingChannel perByte = new CountingChannel(Integer.MAX_VALUE);
+        OutputStream out = Channels.newOutputStream(perByte);
+        long start = System.nanoTime();
+        for (int i = 0; i < REPLIES; i++)
+            sendPerByte(new Message(StatusType.GET_SUCCESS, key, value).getByteMessage(), out);
+        long perByteTime = System.nanoTime() - start;
+
+        CountingChannel gathering = new CountingChannel(Integer.MAX_VALUE);
+        ResponseWriter writer = new ResponseWriter(gathering);
+        start = System.nanoTime();
+        for (int i = 0; i < REPLIES; i++)
+            writer.send(StatusType.GET_SUCCESS, key, value);
+        long gatheringTime = System.nanoTime() - start;
+
+        System.out.println("small replies: per byte " + perByte.writes + " writes in " + perByteTime/1000 + " us, "
+                + "gathering " + gathering.writes + " writes in " + gatheringTime/1000 + " us");
+        TestCase.assertTrue(Arrays.equals(perByte.received.toByteArray(), gathering.received.toByteArray()));
+        TestCase.assertEquals(REPLIES, gathering.writes);
+        TestCase.assertTrue(perByte.writes > 100 * gathering.writes);
+    }
+
+    @Test
+    public void testLargeReply() throws IOException {
+        byte[] value = value(100*1000);
+        byte[] expected = new Message(StatusType.PUT_SUCCESS, "large".getBytes(), value).getByteMessage();
+
+        // the socket takes 64 KB per write, the rest is written by a second call
+        CountingChannel gathering = new CountingChannel(64*1024);
+        ResponseWriter writer = new ResponseWriter(gathering);
+        long start = System.nanoTime();
+        writer.send(StatusType.PUT_SUCCESS, "large".getBytes(), value);
+        long gatheringTime = System.nanoTime() - start;
+
+        System.out.println("large reply: per byte " + (expected.length + 1) + " writes, "
+                + "gathering " + gathering.writes + " writes in " + gatheringTime/1000 + " us");
+        byte[] received = gathering.received.toByteArray();
+        TestCase.assertEquals(expected.length + 1, received.length);
+        TestCase.assertTrue(Arrays.equals(expected, Arrays.copyOf(received, expected.length)));
+        TestCase.assertEquals(13, received[expected.length]);
+        TestCase.assertEquals(2, gathering.writes);
+    }
+
+    @Test
+    public void testPipelinedReplies() throws IOException {
+        byte[] key = "key".getBytes();
+        CountingChannel gathering = new CountingChannel(Integer.MAX_VALUE);
+        ResponseWriter writer = new ResponseWriter(gathering);
+
+        // the replies to pipelined requests are sent with the last one
+        writer.setBatching(true);
+        for (int i = 0; i < 42; i++)
+            writer.send(new Message(StatusType.DELETE_SUCCESS, key));
+        TestCase.assertEquals(0, gathering.writes);
+        writer.setBatching(false);
+        TestCase.assertEquals(1, gathering.writes);
+        TestCase.assertEquals(42 * (2 + key.length + 1), gathering.received.size());
+
+        // a batch is sent once it is large, even if more replies follow
+        writer.setBatching(true);
+        byte[] value = value(10*1000);
+        for (int i = 0; i < REPLIES; i++)
+            writer.send(StatusType.GET_SUCCESS, key, value);
+        writer.flush();
+        System.out.println("pipelined replies: gathering " + (gathering.writes - 1) + " writes for " + REPLIES + " replies");
+        TestCase.assertTrue(gathering.writes - 1 < REPLIES / 5);
+    }
+}